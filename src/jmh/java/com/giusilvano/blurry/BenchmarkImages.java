@@ -0,0 +1,69 @@
+package com.giusilvano.blurry;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates the images used by the benchmarks: photo-like content (smooth gradients plus some noise), so decoders
+ * and kernels do realistic work.
+ */
+public class BenchmarkImages {
+
+    /**
+     * Returns a 3-byte BGR image of the given size, always the same for the same size.
+     */
+    public static BufferedImage newImage(int width, int height) {
+        final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        final byte[] bytes = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        final Random random = new Random(width * 31L + height);
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final double wave = Math.sin(x / 37d) * Math.cos(y / 53d);
+                final int noise = random.nextInt(24);
+                bytes[index++] = (byte) clamp(128 + (int) (90 * wave) + noise);
+                bytes[index++] = (byte) clamp(100 + (int) (70 * wave) + noise);
+                bytes[index++] = (byte) clamp(80 + (int) (110 * wave) + noise);
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Parses a size like "4000x3000" and returns a new image of that size.
+     */
+    public static BufferedImage newImage(String size) {
+        final String[] dimensions = size.split("x");
+        return newImage(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+    }
+
+    /**
+     * Writes a JPEG of the given size in the directory, and returns it.
+     */
+    public static File writeJpeg(File directory, String name, int width, int height) throws IOException {
+        final File file = new File(directory, name);
+        ImageIO.write(newImage(width, height), "jpg", file);
+        return file;
+    }
+
+    /**
+     * Deletes a directory with all its content.
+     */
+    public static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
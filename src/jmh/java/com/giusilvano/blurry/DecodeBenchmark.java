@@ -0,0 +1,61 @@
+package com.giusilvano.blurry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the decoding of a JPEG file: the full decoding of ImageIO.read against the decoding of only the rows and
+ * columns scanned by the score.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"2000x1500", "6000x4000"})
+    public String size;
+
+    private File directory;
+    private File file;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("blurry-decode-benchmark").toFile();
+        final String[] dimensions = size.split("x");
+        file = BenchmarkImages.writeJpeg(directory, "image.jpg", Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkImages.delete(directory);
+    }
+
+    @Benchmark
+    public BufferedImage imageIORead() throws Exception {
+        return ImageIO.read(file);
+    }
+
+    @Benchmark
+    public SampledImage sampledImageRead() throws Exception {
+        return SampledImageReader.read(file, ProcessingSettings.DEFAULT_SAMPLE_COVERAGE);
+    }
+}
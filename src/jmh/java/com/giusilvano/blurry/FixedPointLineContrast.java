@@ -0,0 +1,53 @@
+package com.giusilvano.blurry;
+
+/**
+ * An alternative to {@link ImageContrastEvaluation#getPixelLineContrastsSum} for 3-byte BGR pixels, that lives only
+ * among the benchmarks: the luminances are ints in units of 2^-22, so the differences are summed without floating point
+ * additions.
+ *
+ * <p>It's kept to be measured against the scalar kernel by {@link LineContrastBenchmark} on other JVMs and CPUs, and
+ * to be moved to the scoring only if it ever turns out faster. The benchmark checks its sums are within
+ * {@link #TOLERANCE_PER_PIXEL} of the scalar ones before measuring it.
+ */
+class FixedPointLineContrast {
+
+    private static final int BITS = 22;
+    private static final double UNIT = 1d / (1 << BITS);
+    // Each contribution is rounded by at most half a unit, so each difference is off by less than 3 units
+    static final double TOLERANCE_PER_PIXEL = 3 * UNIT;
+
+    private static final int[] rLuminance = toFixedPoint(ImageContrastEvaluation.rLuminance);
+    private static final int[] gLuminance = toFixedPoint(ImageContrastEvaluation.gLuminance);
+    private static final int[] bLuminance = toFixedPoint(ImageContrastEvaluation.bLuminance);
+
+    private FixedPointLineContrast() {
+    }
+
+    private static int[] toFixedPoint(double[] luminances) {
+        final int[] fixedPoint = new int[luminances.length];
+        for (int i = 0; i < luminances.length; i++) {
+            fixedPoint[i] = (int) Math.round(luminances[i] * (1 << BITS));
+        }
+        return fixedPoint;
+    }
+
+    /**
+     * Same as {@link ImageContrastEvaluation#getPixelLineContrastsSum}, within {@link #TOLERANCE_PER_PIXEL} for each
+     * pixel of the line.
+     */
+    static double getPixelLineContrastsSum(byte[] bytes, int startIndex, int indexIncrement, int stopIndex) {
+        int index = startIndex;
+        int prevLuminance = rLuminance[bytes[index + 2] & 0xFF] + gLuminance[bytes[index + 1] & 0xFF] + bLuminance[bytes[index] & 0xFF];
+        long sum = 0;
+        index += indexIncrement;
+        for (; index <= stopIndex; index += indexIncrement) {
+            final int curLuminance = rLuminance[bytes[index + 2] & 0xFF] + gLuminance[bytes[index + 1] & 0xFF] + bLuminance[bytes[index] & 0xFF];
+            // Branchless absolute value: Math.abs has been measured almost twice as slow here
+            final int difference = curLuminance - prevLuminance;
+            final int sign = difference >> 31;
+            sum += (difference ^ sign) - sign;
+            prevLuminance = curLuminance;
+        }
+        return sum * UNIT;
+    }
+}
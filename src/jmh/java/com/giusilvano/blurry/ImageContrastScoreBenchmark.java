@@ -0,0 +1,64 @@
+package com.giusilvano.blurry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures getImageContrastScore on already decoded images, across image sizes and sample coverages, scanning the
+ * lines with a single thread or splitting them among all the cores; and classifyContrast against a threshold at
+ * half of the score, an image clearly sharp as most of the ones a reject filter sees.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageContrastScoreBenchmark {
+
+    @Param({"1000x750", "4000x3000", "8000x6000"})
+    public String size;
+
+    @Param({"0.005", "0.01", "0.05"})
+    public float sampleCoverage;
+
+    private SampledImage sampledImage;
+    private double threshold;
+
+    @Setup
+    public void setup() {
+        sampledImage = SampledImage.fromFullImage(BenchmarkImages.newImage(size), sampleCoverage);
+        try {
+            threshold = ImageContrastEvaluation.getImageContrastScore(sampledImage) / 2;
+        } catch (ImageContrastEvaluation.UnsupportedImageTypeException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Benchmark
+    public double sequential() throws Exception {
+        return ImageContrastEvaluation.getImageContrastScore(sampledImage);
+    }
+
+    @Benchmark
+    public double parallel() throws Exception {
+        return ImageContrastEvaluation.getImageContrastScore(sampledImage, 0);
+    }
+
+    @Benchmark
+    public ContrastClassification classify() throws Exception {
+        return ImageContrastEvaluation.classifyContrast(sampledImage, threshold, 3);
+    }
+}
@@ -0,0 +1,120 @@
+package com.giusilvano.blurry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures getPixelLineContrastsSum scanning rows (sequential memory access) and columns (a jump of a whole row
+ * between pixels) of a 24 megapixel image, and the same columns scanned all together a row at a time. All of them
+ * scan the same number of pixels, and scores are per pixel: their inverse is the throughput in pixels/ns.
+ *
+ * <p>rowsFixedPoint measures {@link FixedPointLineContrast}, an alternative to the kernel whose luminances are ints, so
+ * the differences are summed without the floating point additions that the JIT can't reorder nor vectorize. It has
+ * been about a third slower than the kernel so far (0.99 against 0.74 ns/pixel on JDK 17): the loop is bound by its 6
+ * loads per pixel (3 samples and 3 table lookups), not by the additions, and SIMD instructions couldn't do the lookups
+ * without gathers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineContrastBenchmark {
+
+    private static final int WIDTH = 6000;
+    private static final int HEIGHT = 4000;
+    private static final int BYTES_PER_PIXEL = 3;
+    // 40 rows or 60 columns: 240000 pixels in both cases
+    private static final int ROWS = 40;
+    private static final int COLUMNS = 60;
+    private static final int PIXELS = ROWS * WIDTH;
+
+    private byte[] bytes;
+    private LineContrastKernel kernel;
+
+    @Setup
+    public void setup() throws Exception {
+        final BufferedImage img = BenchmarkImages.newImage(WIDTH, HEIGHT);
+        bytes = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        kernel = LineContrastKernel.forImage(img);
+        checkFixedPointSums();
+    }
+
+    /**
+     * Checks that {@link FixedPointLineContrast} sums the rows measured within its tolerance of the scalar kernel.
+     */
+    private void checkFixedPointSums() {
+        for (int i = 0; i < ROWS; i++) {
+            final int startIndex = (HEIGHT / ROWS * i) * WIDTH * BYTES_PER_PIXEL;
+            final int stopIndex = startIndex + (WIDTH - 1) * BYTES_PER_PIXEL;
+            final double expected = ImageContrastEvaluation.getPixelLineContrastsSum(bytes, startIndex, BYTES_PER_PIXEL, stopIndex);
+            final double actual = FixedPointLineContrast.getPixelLineContrastsSum(bytes, startIndex, BYTES_PER_PIXEL, stopIndex);
+            if (Math.abs(expected - actual) > FixedPointLineContrast.TOLERANCE_PER_PIXEL * WIDTH) {
+                throw new IllegalStateException(String.format("Fixed-point sum of row %d is %f instead of %f", i, actual, expected));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public double rows() {
+        double sum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            final int startIndex = (HEIGHT / ROWS * i) * WIDTH * BYTES_PER_PIXEL;
+            final int stopIndex = startIndex + (WIDTH - 1) * BYTES_PER_PIXEL;
+            sum += ImageContrastEvaluation.getPixelLineContrastsSum(bytes, startIndex, BYTES_PER_PIXEL, stopIndex);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public double rowsFixedPoint() {
+        double sum = 0;
+        for (int i = 0; i < ROWS; i++) {
+            final int startIndex = (HEIGHT / ROWS * i) * WIDTH * BYTES_PER_PIXEL;
+            final int stopIndex = startIndex + (WIDTH - 1) * BYTES_PER_PIXEL;
+            sum += FixedPointLineContrast.getPixelLineContrastsSum(bytes, startIndex, BYTES_PER_PIXEL, stopIndex);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public double columns() {
+        double sum = 0;
+        for (int i = 0; i < COLUMNS; i++) {
+            final int startIndex = (WIDTH / COLUMNS * i) * BYTES_PER_PIXEL;
+            final int indexIncrement = WIDTH * BYTES_PER_PIXEL;
+            final int stopIndex = startIndex + (HEIGHT - 1) * indexIncrement;
+            sum += ImageContrastEvaluation.getPixelLineContrastsSum(bytes, startIndex, indexIncrement, stopIndex);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIXELS)
+    public double columnsTogether() {
+        final double[] sums = new double[COLUMNS];
+        kernel.addColumnsContrastsSums(0, WIDTH / COLUMNS, COLUMNS, HEIGHT, sums);
+        double sum = 0;
+        for (final double columnSum : sums) {
+            sum += columnSum;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,79 @@
+package com.giusilvano.blurry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures PathsProcessor.process end to end (discovery, decode, score and rename) on a generated corpus of JPEGs.
+ *
+ * <p>Filenames are restored after each invocation, so every invocation processes the same files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"64"})
+    public int images;
+
+    @Param({"3000x2000"})
+    public String size;
+
+    private File directory;
+    private List<String> paths;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("blurry-pipeline-benchmark").toFile();
+        final String[] dimensions = size.split("x");
+        for (int i = 0; i < images; i++) {
+            BenchmarkImages.writeJpeg(directory, String.format("image%03d.jpg", i), Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+        }
+        paths = Collections.singletonList(directory.getPath());
+        // The progress printed for every image is not part of what is measured
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+        BenchmarkImages.delete(directory);
+    }
+
+    @TearDown(Level.Invocation)
+    public void restoreFilenames() {
+        PathsProcessor.restoreFilenames(paths, new ProcessingSettings());
+    }
+
+    @Benchmark
+    public void process() {
+        PathsProcessor.process(paths, new ProcessingSettings());
+    }
+}
@@ -0,0 +1,85 @@
+package com.giusilvano.blurry;
+
+import org.apache.commons.math3.util.FastMath;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Measures the time to the first score and the heap retained by the luminance tables, comparing them with the old
+ * 256x256x256 luminance cube.
+ *
+ * <p>This is not a JMH benchmark: it's meaningful only in a fresh JVM, where ImageContrastEvaluation has not been
+ * loaded yet. Run it from the IDE, or after {@code mvn -P benchmark clean compile} with
+ * {@code java -cp target/classes:<deps> com.giusilvano.blurry.StartupFootprintBenchmark}.
+ */
+public class StartupFootprintBenchmark {
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Builds the luminance cube exactly as the old static initializer of ImageContrastEvaluation did.
+     */
+    private static double[][][] buildLegacyCube() {
+        final double[] rCache = new double[256];
+        final double[] gCache = new double[256];
+        final double[] bCache = new double[256];
+        for (int i = 0; i <= 255; i++) {
+            double value = i / 255d;
+            if (value <= 0.03928d) {
+                value = value / 12.92d;
+            } else {
+                value = FastMath.pow((value + 0.055d) / 1.055d, 2.4d);
+            }
+            rCache[i] = value * 0.2126d;
+            gCache[i] = value * 0.7152d;
+            bCache[i] = value * 0.0722d;
+        }
+        final double[][][] cube = new double[256][256][256];
+        for (int r = 0; r <= 255; r++) {
+            for (int g = 0; g <= 255; g++) {
+                for (int b = 0; b <= 255; b++) {
+                    cube[r][g][b] = rCache[r] + gCache[g] + bCache[b];
+                }
+            }
+        }
+        return cube;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Build the test image before starting the clock, so only the evaluation is measured
+        final BufferedImage img = BenchmarkImages.newImage(50, 50);
+        final long heapBefore = usedHeap();
+
+        long start = System.nanoTime();
+        ImageContrastEvaluation.getImageContrastScore(img, 0.01f);
+        final long tablesFirstScoreNanos = System.nanoTime() - start;
+        final long tablesHeap = usedHeap() - heapBefore;
+
+        start = System.nanoTime();
+        final double[][][] cube = buildLegacyCube();
+        final long cubeInitNanos = System.nanoTime() - start;
+        final long cubeHeap = usedHeap() - heapBefore - tablesHeap;
+
+        // Check that the new tables give exactly the same values of the old cube
+        long mismatches = 0;
+        for (int r = 0; r <= 255; r++) {
+            for (int g = 0; g <= 255; g++) {
+                for (int b = 0; b <= 255; b++) {
+                    if (Double.doubleToLongBits(cube[r][g][b]) != Double.doubleToLongBits(ImageContrastEvaluation.getLuminance(r, g, b))) {
+                        mismatches++;
+                    }
+                }
+            }
+        }
+
+        System.out.printf("Luminance tables: time to first score %.2f ms, retained heap ~%d KB\n", tablesFirstScoreNanos / 1e6, tablesHeap / 1024);
+        System.out.printf("Legacy cube:      init only %.2f ms, retained heap ~%d KB\n", cubeInitNanos / 1e6, cubeHeap / 1024);
+        System.out.printf("Values differing from the legacy cube: %d\n", mismatches);
+    }
+}
@@ -0,0 +1,94 @@
+package com.giusilvano.blurry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends lines to the text files where Blurry keeps its state, like the score cache and the rename journal.
+ *
+ * <p>The file is opened in append mode and the lines are written at once, so lines appended at the same time, even
+ * by different objects or processes, never overwrite each other. A crash while appending can leave the last line
+ * truncated, without its newline: the readers of these files skip such a line, but the next line appended would be
+ * joined to it and skipped too. So a newline is written first when the file doesn't end with one.
+ *
+ * <p>Fields are separated by tabs: {@link #escape} keeps tabs, newlines and backslashes in the fields from breaking
+ * the lines.
+ */
+class AppendOnlyFile {
+
+    private AppendOnlyFile() {
+    }
+
+    /**
+     * Appends the lines, each already ending with a newline, creating the file if it doesn't exist.
+     *
+     * @param sync if true, returns only once the lines are on the storage, as well as the file itself if just created
+     */
+    static void append(File file, String lines, boolean sync) throws IOException {
+        final boolean created = !file.exists();
+        final boolean endsWithNewline = created || endsWithNewline(file);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            // An empty line, if another append ends the truncated line first, is skipped like the truncated ones
+            writeFully(channel, ByteBuffer.wrap((endsWithNewline ? lines : "\n" + lines).getBytes(StandardCharsets.UTF_8)));
+            if (sync) {
+                channel.force(true);
+            }
+        }
+        if (sync && created) {
+            forceDirectory(file.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final ByteBuffer lastByte = ByteBuffer.allocate(1);
+            return size == 0 || channel.read(lastByte, size - 1) != 1 || lastByte.get(0) == '\n';
+        }
+    }
+
+    /**
+     * Escapes the tabs, newlines and backslashes of a field.
+     */
+    static String escape(String field) {
+        return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Gives back the field escaped by {@link #escape}.
+     */
+    static String unescape(String field) {
+        final StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            if (c != '\\' || i + 1 == field.length()) {
+                sb.append(c);
+                continue;
+            }
+            final char escaped = field.charAt(++i);
+            sb.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Forces the entries of the directory to the storage, where the platform allows it.
+     */
+    static void forceDirectory(File directory) {
+        try (final FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories can't be opened on every platform, and there's nothing else to do there
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.giusilvano.blurry;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Scores images for applications that embed Blurry, e.g. a service scoring the uploaded pictures, without printing
+ * anything.
+ *
+ * <p>An engine is thread-safe and meant to be reused: the memory budget, the raster pool and the score cache are
+ * shared by all the images it scores, whoever submits them. Images are decoded and scored on the executor, and each
+ * result is an {@link ImageProcessor} whose outcome tells how the processing ended: the future completes exceptionally
+ * only if the image couldn't even be read from the stream given by the caller, or if its processing threw an error,
+ * like an OutOfMemoryError. Files are renamed, and their scores cached, only if the settings ask for it; images given
+ * in memory never are. Renames are journaled like those of the command line, so they can be undone restoring the
+ * filenames.
+ *
+ * <p>Cancelling a future skips its image if not started yet, or interrupts its processing otherwise.
+ */
+public class BlurryEngine implements AutoCloseable {
+
+    private final ProcessingSettings settings;
+    private final Executor executor;
+    // Null if the executor has been given by the caller, who shuts it down
+    private final ExecutorService ownedExecutor;
+    private final ResultsWriter resultsWriter;
+    private final RasterMemoryBudget budget;
+    private final RasterPool pool;
+    private final ScoreCache cache;
+    private final AtomicInteger discoveryThreadsCount = new AtomicInteger();
+
+    /**
+     * A source of the content of an image, read on the executor.
+     */
+    private interface ContentSource {
+        ImageProcessor open() throws IOException;
+    }
+
+    /**
+     * The future result of an image, that runs its processing and interrupts it when cancelled.
+     */
+    private class ScoringTask extends CompletableFuture<ImageProcessor> implements Runnable {
+        private final ContentSource source;
+        // The thread processing the image, null if not running; guarded by this
+        private Thread runner;
+
+        ScoringTask(ContentSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (isDone()) {
+                    // Cancelled before starting
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                final ImageProcessor image = source.open();
+                if (image.decode(budget, pool) && image.score(budget, pool)) {
+                    ImageProcessor.renameAll(Collections.singletonList(image));
+                }
+                if (resultsWriter != null) {
+                    resultsWriter.write(image);
+                }
+                complete(image);
+            } catch (InterruptedException e) {
+                cancel(true);
+            } catch (Throwable e) {
+                // Errors too, or the future would never complete
+                completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+                // An interruption that arrived too late must not hit the next task run by this thread
+                Thread.interrupted();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            synchronized (this) {
+                if (cancelled && runner != null && runner != Thread.currentThread()) {
+                    runner.interrupt();
+                }
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * Creates an engine with its own pool of as many threads as the score threads of the settings, shut down by
+     * {@link #close()}.
+     */
+    public BlurryEngine(ProcessingSettings settings) {
+        this(settings, null, null);
+    }
+
+    /**
+     * @param executor where the images are decoded and scored, or null to use a pool owned by the engine
+     * @param resultsWriter if not null, the result of each image is written here too; it's not closed by the engine
+     */
+    public BlurryEngine(ProcessingSettings settings, Executor executor, ResultsWriter resultsWriter) {
+        this.settings = settings;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            final AtomicInteger threadsCount = new AtomicInteger();
+            this.ownedExecutor = Executors.newFixedThreadPool(settings.getScoreThreads(), runnable -> {
+                final Thread thread = new Thread(runnable, "blurry-engine-" + threadsCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor = ownedExecutor;
+        }
+        this.resultsWriter = resultsWriter;
+        this.budget = new RasterMemoryBudget(settings.getMemoryBudgetBytes());
+        this.pool = new RasterPool(settings.getRasterPoolBytes());
+        this.cache = settings.isScoreCacheEnabled() ? new ScoreCache(settings.isScoreCacheHashContent()) : null;
+    }
+
+    /**
+     * Scores an image file.
+     */
+    public CompletableFuture<ImageProcessor> score(File file) {
+        return submit(() -> new ImageProcessor(file, settings, null, cache));
+    }
+
+    /**
+     * Scores an image given in memory.
+     *
+     * @param name how the image is reported in its result, as its file
+     */
+    public CompletableFuture<ImageProcessor> score(byte[] content, String name) {
+        return submit(() -> ImageProcessor.forContent(name, content, settings));
+    }
+
+    /**
+     * Scores the image read from the stream, that is read on the executor and closed at the end.
+     *
+     * @param name how the image is reported in its result, as its file
+     */
+    public CompletableFuture<ImageProcessor> score(InputStream in, String name) {
+        return submit(() -> {
+            try (InputStream stream = in) {
+                return ImageProcessor.forContent(name, IOUtils.toByteArray(stream), settings);
+            }
+        });
+    }
+
+    private CompletableFuture<ImageProcessor> submit(ContentSource source) {
+        final ScoringTask task = new ScoringTask(source);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Scores all the images found in the given paths, passing each result to the consumer as soon as it's ready.
+     *
+     * <p>The paths are walked by a thread of the engine, that waits when the images found and not yet scored are as
+     * many as the queue capacity of the settings. The consumer is called by the threads of the executor. The returned
+     * future completes when all the images have been passed to the consumer, or exceptionally if the consumer throws;
+     * cancelling it stops walking the paths and cancels the images in flight.
+     */
+    public CompletableFuture<Void> scoreAll(List<String> paths, Consumer<ImageProcessor> consumer) {
+        final CompletableFuture<Void> all = new CompletableFuture<>();
+        final Set<CompletableFuture<ImageProcessor>> inFlight = ConcurrentHashMap.newKeySet();
+        final int maxInFlight = settings.getQueueCapacity();
+        final Semaphore slots = new Semaphore(maxInFlight);
+        final ImageFilesFinder finder = new ImageFilesFinder(settings.getMaxDepth(), settings.isSniffMagicNumbers());
+
+        final Thread discoveryThread = new Thread(() -> {
+            try {
+                finder.find(paths, file -> {
+                    slots.acquire();
+                    final CompletableFuture<ImageProcessor> result = score(file);
+                    inFlight.add(result);
+                    result.whenComplete((image, e) -> {
+                        inFlight.remove(result);
+                        try {
+                            if (image != null && !all.isDone()) {
+                                consumer.accept(image);
+                            }
+                        } catch (RuntimeException consumerException) {
+                            all.completeExceptionally(consumerException);
+                        } finally {
+                            slots.release();
+                        }
+                    });
+                });
+                // All the slots are back when all the images are done
+                slots.acquire(maxInFlight);
+                all.complete(null);
+            } catch (InterruptedException e) {
+                // Cancelled
+            } catch (RuntimeException e) {
+                all.completeExceptionally(e);
+            }
+        }, "blurry-engine-discovery-" + discoveryThreadsCount.getAndIncrement());
+        discoveryThread.setDaemon(true);
+
+        all.whenComplete((nothing, e) -> {
+            if (e != null) {
+                discoveryThread.interrupt();
+                for (final CompletableFuture<ImageProcessor> result : inFlight) {
+                    result.cancel(true);
+                }
+            }
+        });
+        discoveryThread.start();
+        return all;
+    }
+
+    /**
+     * Shuts down the pool of the engine, if it owns one, cancelling the images still in flight.
+     */
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            // The running ones are interrupted, the others never run
+            for (final Runnable task : ownedExecutor.shutdownNow()) {
+                ((ScoringTask) task).cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.giusilvano.blurry;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups the scored images that are near-duplicates, like the shots of a burst, and finds the sharpest of each group.
+ *
+ * <p>Two images are near-duplicates if their {@link PerceptualHash perceptual hashes} are within a maximum distance
+ * and they have been taken within a maximum time gap; groups are formed transitively, so a long burst is a single
+ * group even if its first and last shot are quite different.
+ *
+ * <p>Images are indexed by capture time first: time is split in buckets as long as the maximum gap, and an image is
+ * compared only with the ones in its bucket and in the two adjacent ones. Then, in each bucket, hashes are kept in a
+ * BK-tree: each node has a child for each distance from its hash, so finding the hashes within a distance from a
+ * given one needs to visit only the children whose distance is compatible, by the triangle inequality. This way a
+ * large collection is never compared all against all.
+ */
+public class BurstGrouper {
+
+    /**
+     * A scored image.
+     */
+    public static class Member {
+        public final File file;
+        public final double score;
+        final long hash;
+        final long captureTime;
+
+        Member(File file, double score, long hash, long captureTime) {
+            this.file = file;
+            this.score = score;
+            this.hash = hash;
+            this.captureTime = captureTime;
+        }
+    }
+
+    /**
+     * A group of near-duplicate images.
+     */
+    public static class Group {
+        // Sorted by capture time
+        public final List<Member> members;
+        public final Member best;
+
+        Group(List<Member> members, Member best) {
+            this.members = Collections.unmodifiableList(members);
+            this.best = best;
+        }
+    }
+
+    /**
+     * A node of the BK-tree, with the images having exactly its hash.
+     */
+    private static class Node {
+        final long hash;
+        final List<Integer> members = new ArrayList<>(1);
+        Map<Integer, Node> children;
+
+        Node(long hash) {
+            this.hash = hash;
+        }
+    }
+
+    private final int maxHashDistance;
+    private final long maxTimeGapMillis;
+    private final List<Member> members = new ArrayList<>();
+    // Union-find forest of the groups: each member points to another member of its group, the root to itself
+    private int[] parents = new int[1024];
+    // The root of the BK-tree of each time bucket
+    private final Map<Long, Node> roots = new HashMap<>();
+
+    /**
+     * @param maxHashDistance maximum number of different bits between the hashes of two near-duplicate images
+     * @param maxTimeGapMillis maximum time between the captures of two near-duplicate images
+     */
+    public BurstGrouper(int maxHashDistance, long maxTimeGapMillis) {
+        this.maxHashDistance = maxHashDistance;
+        this.maxTimeGapMillis = maxTimeGapMillis;
+    }
+
+    /**
+     * Adds a scored image, joining its group with the ones of its near-duplicates.
+     *
+     * @param hash the perceptual hash of the image
+     * @param captureTime when the image has been taken, in milliseconds since the epoch
+     */
+    public synchronized void add(File file, double score, long hash, long captureTime) {
+        final int index = members.size();
+        final Member member = new Member(file, score, hash, captureTime);
+        members.add(member);
+        if (index == parents.length) {
+            parents = Arrays.copyOf(parents, 2 * parents.length);
+        }
+        parents[index] = index;
+
+        // Join the groups of the near-duplicates in the adjacent time buckets
+        final long timeBucket = Math.floorDiv(captureTime, maxTimeGapMillis);
+        for (long bucket = timeBucket - 1; bucket <= timeBucket + 1; bucket++) {
+            final Node root = roots.get(bucket);
+            if (root != null) {
+                joinNearDuplicates(root, index);
+            }
+        }
+        final Node root = roots.get(timeBucket);
+        if (root == null) {
+            final Node newRoot = new Node(hash);
+            newRoot.members.add(index);
+            roots.put(timeBucket, newRoot);
+        } else {
+            insert(root, index);
+        }
+    }
+
+    /**
+     * Returns the groups with more than one image, in order of capture time.
+     */
+    public synchronized List<Group> getGroups() {
+        final Map<Integer, List<Member>> membersByRoot = new LinkedHashMap<>();
+        for (int i = 0; i < members.size(); i++) {
+            membersByRoot.computeIfAbsent(find(i), r -> new ArrayList<>()).add(members.get(i));
+        }
+        final List<Group> groups = new ArrayList<>();
+        for (final List<Member> groupMembers : membersByRoot.values()) {
+            if (groupMembers.size() < 2) {
+                continue;
+            }
+            groupMembers.sort(Comparator.comparingLong(member -> member.captureTime));
+            Member best = groupMembers.get(0);
+            for (final Member member : groupMembers) {
+                if (member.score > best.score) {
+                    best = member;
+                }
+            }
+            groups.add(new Group(groupMembers, best));
+        }
+        groups.sort(Comparator.comparingLong(group -> group.members.get(0).captureTime));
+        return groups;
+    }
+
+    /**
+     * Joins the group of a member with the ones of its near-duplicates in a BK-tree.
+     */
+    private void joinNearDuplicates(Node root, int index) {
+        final Member member = members.get(index);
+        final Deque<Node> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            final Node node = toVisit.pop();
+            final int distance = PerceptualHash.distance(node.hash, member.hash);
+            if (distance <= maxHashDistance) {
+                for (final int other : node.members) {
+                    if (Math.abs(members.get(other).captureTime - member.captureTime) <= maxTimeGapMillis) {
+                        union(index, other);
+                    }
+                }
+            }
+            if (node.children != null) {
+                for (int d = Math.max(0, distance - maxHashDistance); d <= distance + maxHashDistance; d++) {
+                    final Node child = node.children.get(d);
+                    if (child != null) {
+                        toVisit.push(child);
+                    }
+                }
+            }
+        }
+    }
+
+    private void insert(Node root, int index) {
+        final long hash = members.get(index).hash;
+        Node node = root;
+        while (true) {
+            final int distance = PerceptualHash.distance(node.hash, hash);
+            if (distance == 0) {
+                node.members.add(index);
+                return;
+            }
+            if (node.children == null) {
+                node.children = new HashMap<>();
+            }
+            final Node child = node.children.get(distance);
+            if (child == null) {
+                final Node newNode = new Node(hash);
+                newNode.members.add(index);
+                node.children.put(distance, newNode);
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private int find(int index) {
+        while (parents[index] != index) {
+            // Path halving: make each visited member point to its grandparent
+            parents[index] = parents[parents[index]];
+            index = parents[index];
+        }
+        return index;
+    }
+
+    private void union(int index1, int index2) {
+        final int root1 = find(index1);
+        final int root2 = find(index2);
+        if (root1 != root2) {
+            parents[Math.max(root1, root2)] = Math.min(root1, root2);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.giusilvano.blurry;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * An ImageInputStream over the content of a file already in memory.
+ *
+ * <p>ImageIO would wrap a ByteArrayInputStream in a stream that caches everything it reads in memory or in a temporary
+ * file, copying the bytes once more: this one reads them in place.
+ */
+class ByteArrayImageInputStream extends ImageInputStreamImpl {
+
+    private final byte[] bytes;
+
+    ByteArrayImageInputStream(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    @Override
+    public int read() {
+        bitOffset = 0;
+        return streamPos < bytes.length ? bytes[(int) streamPos++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= bytes.length) {
+            return -1;
+        }
+        final int count = (int) Math.min(len, bytes.length - streamPos);
+        System.arraycopy(bytes, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return bytes.length;
+    }
+}
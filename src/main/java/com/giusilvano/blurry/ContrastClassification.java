@@ -0,0 +1,57 @@
+package com.giusilvano.blurry;
+
+/**
+ * Tells whether an image is above or below a sharpness threshold, as computed by
+ * {@link ImageContrastEvaluation#classifyContrast}, with the score estimated from the lines scanned before the
+ * result was settled.
+ */
+public class ContrastClassification {
+
+    public enum Label {
+        // The score is at least the threshold
+        SHARP,
+        BLURRY
+    }
+
+    private final Label label;
+    private final double score;
+    private final long pixelsRead;
+    private final long totalPixels;
+
+    ContrastClassification(Label label, double score, long pixelsRead, long totalPixels) {
+        this.label = label;
+        this.score = score;
+        this.pixelsRead = pixelsRead;
+        this.totalPixels = totalPixels;
+    }
+
+    public Label getLabel() {
+        return label;
+    }
+
+    /**
+     * Returns the score estimated from the pixels read, that is exactly the score of the image if all of them have
+     * been read.
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Returns the number of pixels of the sampled rows and columns that have been read before the result was settled.
+     */
+    public long getPixelsRead() {
+        return pixelsRead;
+    }
+
+    /**
+     * Returns the number of pixels of all the sampled rows and columns.
+     */
+    public long getTotalPixels() {
+        return totalPixels;
+    }
+
+    public boolean isComplete() {
+        return pixelsRead == totalPixels;
+    }
+}
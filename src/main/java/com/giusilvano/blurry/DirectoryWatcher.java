@@ -0,0 +1,250 @@
+package com.giusilvano.blurry;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directories and passes to a consumer each image that appears in them, for as long as it runs.
+ *
+ * <p>The images already in the directories are passed first, then the new ones as they arrive. A file is passed only
+ * after its size and last modified time have been unchanged for a debounce interval, so images still being written or
+ * copied are never decoded halfway. Files whose name already contains a score are ignored, so the images renamed by
+ * Blurry itself are not processed again.
+ *
+ * <p>Like {@link ImageFilesFinder}, subdirectories are watched up to a maximum depth, including the ones created
+ * while watching. When the events of a directory are lost, it's listed again: the files already passed and unchanged
+ * since are not passed twice, as long as they are among the last {@link #MAX_PASSED_FILES} passed.
+ */
+public class DirectoryWatcher implements Closeable {
+
+    // How many of the files passed are remembered, so they are not passed again when events are lost. Each costs
+    // about 200 bytes, and older ones are forgotten first.
+    static final int MAX_PASSED_FILES = 50000;
+
+    /**
+     * A file that has been created or modified, waiting to be stable for the debounce interval, or already passed.
+     */
+    private static class PendingFile {
+        long size = -1;
+        long lastModified = -1;
+        long lastChangeNanos;
+    }
+
+    private final ImageFilesFinder finder;
+    private final int maxDepth;
+    private final long debounceNanos;
+    private final WatchService watchService;
+    // Depth of each watched directory
+    private final Map<WatchKey, Integer> watchedDepths = new HashMap<>();
+    private final Set<Path> watchedDirectories = new HashSet<>();
+    private final Map<Path, PendingFile> pendingFiles = new LinkedHashMap<>();
+    // The last files passed to the consumer, with their size and last modified time when passed
+    private final Map<Path, PendingFile> passedFiles;
+
+    /**
+     * @param finder used to recognize the images
+     * @param maxDepth how many levels of directories to watch, like {@link ProcessingSettings#setMaxDepth}
+     * @param debounceMillis how long a file must be unchanged before being passed to the consumer
+     */
+    public DirectoryWatcher(ImageFilesFinder finder, int maxDepth, long debounceMillis) throws IOException {
+        this(finder, maxDepth, debounceMillis, MAX_PASSED_FILES);
+    }
+
+    /**
+     * Like {@link #DirectoryWatcher(ImageFilesFinder, int, long)}, remembering at most the given number of files
+     * passed.
+     */
+    DirectoryWatcher(ImageFilesFinder finder, int maxDepth, long debounceMillis, int maxPassedFiles) throws IOException {
+        this.finder = finder;
+        this.maxDepth = maxDepth;
+        this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.passedFiles = new LinkedHashMap<Path, PendingFile>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, PendingFile> eldest) {
+                return size() > maxPassedFiles;
+            }
+        };
+    }
+
+    /**
+     * Passes to the consumer the images in the given paths, and then the new ones, until the thread is interrupted
+     * or the watcher is closed.
+     */
+    public void watch(List<String> paths, ImageFilesFinder.Consumer consumer) throws InterruptedException {
+        for (final String path : paths) {
+            final Path start = Paths.get(path);
+            if (Files.isDirectory(start)) {
+                watchDirectory(start, 1);
+            } else if (Files.isRegularFile(start)) {
+                addPendingFile(start);
+            }
+        }
+        try {
+            while (true) {
+                passStableFiles(consumer);
+                final WatchKey key = pendingFiles.isEmpty()
+                        ? watchService.take() : watchService.poll(getNanosToNextCheck(), TimeUnit.NANOSECONDS);
+                if (key != null) {
+                    processEvents(key);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed by another thread
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * Starts watching a directory, adding its files to the pending ones and watching its subdirectories up to the
+     * maximum depth.
+     */
+    private void watchDirectory(Path directory, int depth) {
+        try {
+            final WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDepths.put(key, depth);
+            watchedDirectories.add(directory);
+        } catch (IOException e) {
+            // Unreadable directory, go on with the others
+            return;
+        }
+        // Files created between the registration and the listing are found twice, but pending files are unique
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (final Path entry : entries) {
+                addEntry(entry, depth);
+            }
+        } catch (IOException e) {
+            // Already being watched, new files will be found anyway
+        }
+    }
+
+    private void addEntry(Path entry, int depth) {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // Already gone
+            return;
+        }
+        if (attributes.isDirectory()) {
+            // Don't follow links to directories, they could make the watch loop forever
+            if (depth < maxDepth && !Files.isSymbolicLink(entry)) {
+                watchDirectory(entry, depth + 1);
+            }
+        } else if (attributes.isRegularFile() && !isPassed(entry, attributes)) {
+            addPendingFile(entry);
+        }
+    }
+
+    /**
+     * Returns true if the file has already been passed to the consumer, and it hasn't changed since.
+     */
+    private boolean isPassed(Path file, BasicFileAttributes attributes) {
+        final PendingFile passedFile = passedFiles.get(file);
+        return passedFile != null && passedFile.size == attributes.size()
+                && passedFile.lastModified == attributes.lastModifiedTime().toMillis();
+    }
+
+    private void addPendingFile(Path file) {
+        if (!pendingFiles.containsKey(file) && !FileRenamer.hasScore(file.toFile())) {
+            final PendingFile pendingFile = new PendingFile();
+            pendingFile.lastChangeNanos = System.nanoTime();
+            pendingFiles.put(file, pendingFile);
+        }
+    }
+
+    private void processEvents(WatchKey key) {
+        final Integer depth = watchedDepths.get(key);
+        final Path directory = (Path) key.watchable();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (depth == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Some events have been lost: look again at all the entries of the directory, the subdirectories
+                // already watched have their own events
+                try (final DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (final Path entry : entries) {
+                        if (!watchedDirectories.contains(entry)) {
+                            addEntry(entry, depth);
+                        }
+                    }
+                } catch (IOException e) {
+                    // The directory is gone
+                }
+            } else {
+                addEntry(directory.resolve((Path) event.context()), depth);
+            }
+        }
+        if (!key.reset()) {
+            watchedDepths.remove(key);
+            watchedDirectories.remove(directory);
+        }
+    }
+
+    /**
+     * Passes to the consumer the pending files unchanged for the debounce interval, and forgets the deleted ones.
+     */
+    private void passStableFiles(ImageFilesFinder.Consumer consumer) throws InterruptedException {
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<Path, PendingFile>> iterator = pendingFiles.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Path, PendingFile> entry = iterator.next();
+            final File file = entry.getKey().toFile();
+            final PendingFile pendingFile = entry.getValue();
+            final long size = file.length();
+            final long lastModified = file.lastModified();
+            if (lastModified == 0) {
+                iterator.remove();
+            } else if (size != pendingFile.size || lastModified != pendingFile.lastModified) {
+                pendingFile.size = size;
+                pendingFile.lastModified = lastModified;
+                pendingFile.lastChangeNanos = now;
+            } else if (now - pendingFile.lastChangeNanos >= debounceNanos) {
+                iterator.remove();
+                if (finder.isImage(entry.getKey())) {
+                    // Put last, even if it was passed before
+                    passedFiles.remove(entry.getKey());
+                    passedFiles.put(entry.getKey(), pendingFile);
+                    consumer.accept(file);
+                }
+            }
+        }
+    }
+
+    private long getNanosToNextCheck() {
+        long firstChangeNanos = Long.MAX_VALUE;
+        for (final PendingFile pendingFile : pendingFiles.values()) {
+            // Files never checked must be checked right away
+            if (pendingFile.size < 0) {
+                return 0;
+            }
+            firstChangeNanos = Math.min(firstChangeNanos, pendingFile.lastChangeNanos);
+        }
+        return Math.max(0, firstChangeNanos + debounceNanos - System.nanoTime());
+    }
+}
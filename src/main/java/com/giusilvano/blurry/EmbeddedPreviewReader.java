@@ -0,0 +1,228 @@
+package com.giusilvano.blurry;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Finds and decodes the previews that cameras embed in their JPEG files, to score an image reading a few kilobytes of
+ * it instead of decoding it at full resolution.
+ *
+ * <p>Two kinds of previews are looked for: the EXIF thumbnail, a small JPEG (usually 160x120) inside the APP1
+ * segment, described by the second IFD of the EXIF data; and the Multi-Picture Format previews, bigger JPEGs (usually
+ * from VGA to full HD) stored after the main image and listed by the MP entries in the APP2 segment. Only the
+ * segments at the beginning of the file and the chosen preview are read, with positional reads of the file channel.
+ */
+class EmbeddedPreviewReader {
+
+    private static final int MARKER_APP2 = 0xE2;
+    private static final byte[] MPF_HEADER = {'M', 'P', 'F', 0};
+    private static final int MP_ENTRY_SIZE = 16;
+
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_MP_ENTRY = 0xB002;
+
+    /**
+     * A decoded preview.
+     */
+    static class Preview {
+        final BufferedImage image;
+        // Bytes of the file read to find and decode the preview
+        final long bytesRead;
+
+        Preview(BufferedImage image, long bytesRead) {
+            this.image = image;
+            this.bytesRead = bytesRead;
+        }
+    }
+
+    /**
+     * Where a preview is in the file.
+     */
+    private static class Candidate {
+        final long position;
+        final int length;
+
+        Candidate(long position, int length) {
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Returns the biggest preview of the image whose longer side is at least minSize pixels, or null if the file is
+     * not a JPEG or has no such preview.
+     */
+    static Preview read(File file, int minSize) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final List<Candidate> candidates = new ArrayList<>();
+            long bytesRead = findCandidates(channel, candidates);
+            if (bytesRead < 0) {
+                return null;
+            }
+            // Bigger files are bigger previews: try them first, and stop at the first big enough
+            candidates.sort(Comparator.comparingInt((Candidate candidate) -> candidate.length).reversed());
+            for (final Candidate candidate : candidates) {
+                if (candidate.length <= 0 || candidate.position + candidate.length > channel.size()) {
+                    continue;
+                }
+                final byte[] bytes = new byte[candidate.length];
+                readFully(channel, candidate.position, ByteBuffer.wrap(bytes));
+                bytesRead += bytes.length;
+                final BufferedImage image = decode(bytes, minSize);
+                if (image != null) {
+                    return new Preview(image, bytesRead);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Adds to candidates the previews listed in the segments at the beginning of the file.
+     *
+     * @return the bytes read, or -1 if the file is not a JPEG
+     */
+    private static long findCandidates(FileChannel channel, List<Candidate> candidates) throws IOException {
+        final byte[] marker = new byte[4];
+        long bytesRead = 0;
+        try {
+            readFully(channel, 0, ByteBuffer.wrap(marker, 0, 2));
+            bytesRead += 2;
+            if ((marker[0] & 0xFF) != 0xFF || (marker[1] & 0xFF) != ExifReader.MARKER_SOI) {
+                return -1;
+            }
+            long position = 2;
+            while (true) {
+                readFully(channel, position, ByteBuffer.wrap(marker));
+                bytesRead += marker.length;
+                final int markerType = marker[1] & 0xFF;
+                if ((marker[0] & 0xFF) != 0xFF || markerType == ExifReader.MARKER_SOS || markerType == ExifReader.MARKER_EOI) {
+                    // The image data begins, no more metadata
+                    return bytesRead;
+                }
+                if (markerType == 0xFF) {
+                    // A fill byte before the marker
+                    position++;
+                    continue;
+                }
+                final int length = (((marker[2] & 0xFF) << 8) | (marker[3] & 0xFF)) - 2;
+                final long contentPosition = position + marker.length;
+                if (length < 0) {
+                    return bytesRead;
+                }
+                if (markerType == ExifReader.MARKER_APP1 || markerType == MARKER_APP2) {
+                    final byte[] segment = new byte[length];
+                    readFully(channel, contentPosition, ByteBuffer.wrap(segment));
+                    bytesRead += length;
+                    try {
+                        if (markerType == ExifReader.MARKER_APP1) {
+                            addExifThumbnail(segment, contentPosition, candidates);
+                        } else {
+                            addMultiPictureImages(segment, contentPosition, candidates);
+                        }
+                    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                        // Corrupted metadata, look for other previews
+                    }
+                }
+                position = contentPosition + length;
+            }
+        } catch (EOFException e) {
+            // A truncated file: keep the previews found so far
+            return bytesRead < 2 ? -1 : bytesRead;
+        }
+    }
+
+    private static void addExifThumbnail(byte[] segment, long segmentPosition, List<Candidate> candidates) {
+        final ByteBuffer tiff = ExifReader.getExifTiff(segment);
+        if (tiff == null) {
+            return;
+        }
+        final int ifd1 = ExifReader.getNextIfdOffset(tiff, ExifReader.getIfd0Offset(tiff));
+        if (ifd1 <= 0) {
+            return;
+        }
+        final long offset = ExifReader.getIntegerValue(tiff, ExifReader.findEntry(tiff, ifd1, TAG_JPEG_INTERCHANGE_FORMAT));
+        final long length = ExifReader.getIntegerValue(tiff, ExifReader.findEntry(tiff, ifd1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH));
+        if (offset > 0 && length > 0 && length <= Integer.MAX_VALUE) {
+            // Offsets are from the beginning of the TIFF structure
+            candidates.add(new Candidate(segmentPosition + ExifReader.EXIF_HEADER.length + offset, (int) length));
+        }
+    }
+
+    private static void addMultiPictureImages(byte[] segment, long segmentPosition, List<Candidate> candidates) {
+        if (segment.length <= MPF_HEADER.length) {
+            return;
+        }
+        for (int i = 0; i < MPF_HEADER.length; i++) {
+            if (segment[i] != MPF_HEADER[i]) {
+                return;
+            }
+        }
+        final ByteBuffer tiff = ExifReader.getTiff(segment, MPF_HEADER.length);
+        final int entry = ExifReader.findEntry(tiff, ExifReader.getIfd0Offset(tiff), TAG_MP_ENTRY);
+        if (entry < 0) {
+            return;
+        }
+        // An UNDEFINED value, with 16 bytes for each image: attributes, size, offset and two dependent images
+        final int entriesCount = tiff.getInt(entry + 4) / MP_ENTRY_SIZE;
+        final int entriesOffset = tiff.getInt(entry + 8);
+        for (int i = 0; i < entriesCount; i++) {
+            final long size = tiff.getInt(entriesOffset + i * MP_ENTRY_SIZE + 4) & 0xFFFFFFFFL;
+            final long offset = tiff.getInt(entriesOffset + i * MP_ENTRY_SIZE + 8) & 0xFFFFFFFFL;
+            // The offset of the main image is 0, the others are from the beginning of the TIFF structure
+            if (offset > 0 && size > 0 && size <= Integer.MAX_VALUE) {
+                candidates.add(new Candidate(segmentPosition + MPF_HEADER.length + offset, (int) size));
+            }
+        }
+    }
+
+    /**
+     * Decodes a preview if its longer side is at least minSize pixels, otherwise returns null.
+     */
+    private static BufferedImage decode(byte[] bytes, int minSize) throws IOException {
+        try (final ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                if (Math.max(reader.getWidth(0), reader.getHeight(0)) < minSize) {
+                    return null;
+                }
+                return reader.read(0);
+            } catch (IOException | RuntimeException e) {
+                // Not a valid image
+                return null;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.giusilvano.blurry;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * Reads the few EXIF fields Blurry needs from the header of JPEG files, without decoding nor reading the rest of the
+ * file.
+ *
+ * <p>The EXIF data is a small TIFF structure in the APP1 segment at the beginning of the file: a list of directories
+ * (IFDs) whose entries are a tag, a type, a count and a value, or the offset of the value when it doesn't fit in 4
+ * bytes.
+ */
+class ExifReader {
+
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_SOS = 0xDA;
+    static final int MARKER_EOI = 0xD9;
+    static final int MARKER_APP1 = 0xE1;
+    static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+    // Dates are 20 characters long, longer strings are not what we are looking for
+    private static final int MAX_ASCII_LENGTH = 64;
+    private static final String DATE_TIME_FORMAT = "yyyy:MM:dd HH:mm:ss";
+
+    /**
+     * Returns the time the picture was taken according to its EXIF data, in milliseconds since the epoch, or -1 if
+     * the file has no EXIF capture time.
+     *
+     * <p>EXIF times have no time zone, so they are read in the local one: fine to compare pictures of the same camera.
+     */
+    static long readCaptureTime(File file) {
+        return getCaptureTime(readExifSegment(file));
+    }
+
+    /**
+     * Like {@link #readCaptureTime(File)}, for the content of a file already read in memory.
+     */
+    static long readCaptureTime(byte[] content) {
+        return getCaptureTime(readExifSegment(new ByteArrayInputStream(content)));
+    }
+
+    private static long getCaptureTime(ByteBuffer tiff) {
+        if (tiff == null) {
+            return -1;
+        }
+        try {
+            final int ifd0 = getIfd0Offset(tiff);
+            String dateTime = null;
+            final int exifIfd = findEntry(tiff, ifd0, TAG_EXIF_IFD);
+            if (exifIfd >= 0) {
+                dateTime = getAsciiValue(tiff, findEntry(tiff, tiff.getInt(exifIfd + 8), TAG_DATE_TIME_ORIGINAL));
+            }
+            if (dateTime == null) {
+                dateTime = getAsciiValue(tiff, findEntry(tiff, ifd0, TAG_DATE_TIME));
+            }
+            if (dateTime == null) {
+                return -1;
+            }
+            return new SimpleDateFormat(DATE_TIME_FORMAT).parse(dateTime).getTime();
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | ParseException e) {
+            // Corrupted EXIF data
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the TIFF structure in the EXIF segment of a JPEG file, with the right byte order, or null if the file
+     * is not a JPEG or has no EXIF segment.
+     */
+    static ByteBuffer readExifSegment(File file) {
+        try (final InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return readExifSegment(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer readExifSegment(InputStream stream) {
+        final DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) {
+                return null;
+            }
+            while (true) {
+                if (in.readUnsignedByte() != 0xFF) {
+                    return null;
+                }
+                int marker = in.readUnsignedByte();
+                // Markers can be preceded by any number of 0xFF fill bytes
+                while (marker == 0xFF) {
+                    marker = in.readUnsignedByte();
+                }
+                if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                    // The image data begins, no more metadata
+                    return null;
+                }
+                final int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+                if (marker == MARKER_APP1 && length > EXIF_HEADER.length) {
+                    final byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    final ByteBuffer tiff = getExifTiff(segment);
+                    if (tiff != null) {
+                        return tiff;
+                    }
+                } else {
+                    skipFully(in, length);
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the TIFF structure in the content of an APP1 segment, or null if it's not an EXIF segment.
+     */
+    static ByteBuffer getExifTiff(byte[] segment) {
+        if (segment.length <= EXIF_HEADER.length) {
+            return null;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[i] != EXIF_HEADER[i]) {
+                return null;
+            }
+        }
+        return getTiff(segment, EXIF_HEADER.length);
+    }
+
+    /**
+     * Returns the TIFF structure starting at the given offset of a segment, with the byte order of its header.
+     */
+    static ByteBuffer getTiff(byte[] segment, int offset) {
+        final ByteBuffer tiff = ByteBuffer.wrap(segment, offset, segment.length - offset).slice();
+        tiff.order(segment[offset] == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        return tiff;
+    }
+
+    /**
+     * Returns the offset of the first IFD of the TIFF structure.
+     */
+    static int getIfd0Offset(ByteBuffer tiff) {
+        return tiff.getInt(4);
+    }
+
+    /**
+     * Returns the offset of the entry with the given tag in an IFD, or -1 if there's none.
+     */
+    static int findEntry(ByteBuffer tiff, int ifdOffset, int tag) {
+        final int entries = tiff.getShort(ifdOffset) & 0xFFFF;
+        for (int i = 0; i < entries; i++) {
+            final int entryOffset = ifdOffset + 2 + i * 12;
+            if ((tiff.getShort(entryOffset) & 0xFFFF) == tag) {
+                return entryOffset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset of the IFD following the given one, or 0 if it's the last.
+     */
+    static int getNextIfdOffset(ByteBuffer tiff, int ifdOffset) {
+        final int entries = tiff.getShort(ifdOffset) & 0xFFFF;
+        return tiff.getInt(ifdOffset + 2 + entries * 12);
+    }
+
+    /**
+     * Returns the value of an entry of type SHORT or LONG, or -1 if the entry is missing or of another type.
+     */
+    static long getIntegerValue(ByteBuffer tiff, int entryOffset) {
+        if (entryOffset < 0) {
+            return -1;
+        }
+        switch (tiff.getShort(entryOffset + 2)) {
+            case TYPE_SHORT:
+                return tiff.getShort(entryOffset + 8) & 0xFFFF;
+            case TYPE_LONG:
+                return tiff.getInt(entryOffset + 8) & 0xFFFFFFFFL;
+            default:
+                return -1;
+        }
+    }
+
+    private static String getAsciiValue(ByteBuffer tiff, int entryOffset) {
+        if (entryOffset < 0) {
+            return null;
+        }
+        final int count = tiff.getInt(entryOffset + 4);
+        if (count < 0 || count > MAX_ASCII_LENGTH) {
+            return null;
+        }
+        final int valueOffset = count <= 4 ? entryOffset + 8 : tiff.getInt(entryOffset + 8);
+        final byte[] value = new byte[Math.max(0, count - 1)];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = tiff.get(valueOffset + i);
+        }
+        return new String(value, StandardCharsets.US_ASCII).trim();
+    }
+
+    private static void skipFully(DataInputStream in, int bytes) throws IOException {
+        int skipped = 0;
+        while (skipped < bytes) {
+            final int n = in.skipBytes(bytes - skipped);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            skipped += n;
+        }
+    }
+}
@@ -3,12 +3,15 @@ package com.giusilvano.blurry;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class FileRenamer {
 
-    private static final String FILENAME_RENAME_FORMAT = "%s __%.4f.%s";
+    private static final String FILENAME_RENAME_FORMAT = "%s __%.4f%s";
     private static final Pattern FILENAME_RESTORE_PATTERN = Pattern.compile("^.+( __[\\.\\d]+)$");
 
     public static class CantRenameException extends Exception {
@@ -19,33 +22,75 @@ public class FileRenamer {
         }
     }
 
-    public static void renameAddingScore(File file, Double score) throws CantRenameException {
-        final String filenameWithoutExtension = FilenameUtils.removeExtension(file.getAbsolutePath());
+    /**
+     * Returns the extension of the file preceded by the dot, or an empty string if the file has no extension (that
+     * happens for images recognized by their content).
+     */
+    private static String getDotExtension(File file) {
         final String filenameExtension = FilenameUtils.getExtension(file.getName());
-        final String newFilename = String.format(FILENAME_RENAME_FORMAT, filenameWithoutExtension, score, filenameExtension);
-        final File renamedFile = new File(newFilename);
-        if (renamedFile.exists()) {
-            throw new CantRenameException(newFilename);
-        } else {
-            file.renameTo(renamedFile);
+        return filenameExtension.isEmpty() ? "" : "." + filenameExtension;
+    }
+
+    /**
+     * Returns the file as it will be named by {@link #renameAddingScore}.
+     */
+    public static File getScoredFile(File file, double score) {
+        final String filenameWithoutExtension = FilenameUtils.removeExtension(file.getAbsolutePath());
+        return new File(String.format(FILENAME_RENAME_FORMAT, filenameWithoutExtension, score, getDotExtension(file)));
+    }
+
+    /**
+     * Renames the file adding the score to its name.
+     *
+     * @return the renamed file
+     */
+    public static File renameAddingScore(File file, Double score) throws CantRenameException, IOException {
+        final File renamedFile = getScoredFile(file, score);
+        move(file, renamedFile);
+        return renamedFile;
+    }
+
+    /**
+     * Renames a file, never replacing an existing one.
+     *
+     * <p>The file stays in its directory, so the rename is atomic: the file is found either with the old name or with
+     * the new one, even after a crash. An ATOMIC_MOVE isn't used, as it may replace an existing file.
+     */
+    static void move(File file, File renamedFile) throws CantRenameException, IOException {
+        try {
+            Files.move(file.toPath(), renamedFile.toPath());
+        } catch (FileAlreadyExistsException e) {
+            throw new CantRenameException(renamedFile.getPath());
         }
     }
 
-    public static boolean renameRemovingScore(File file) throws CantRenameException {
+    /**
+     * Returns true if the name of the file already contains a score added by {@link #renameAddingScore}.
+     */
+    public static boolean hasScore(File file) {
+        return FILENAME_RESTORE_PATTERN.matcher(file.getName()).find()
+                || FILENAME_RESTORE_PATTERN.matcher(FilenameUtils.removeExtension(file.getName())).find();
+    }
+
+    public static boolean renameRemovingScore(File file) throws CantRenameException, IOException {
+        // Files without extension end with the score, whose decimal dot would be mistaken for an extension dot
+        final Matcher noExtensionMatcher = FILENAME_RESTORE_PATTERN.matcher(file.getName());
+        if (noExtensionMatcher.find()) {
+            final String filename = file.getAbsolutePath();
+            return renameTo(file, filename.substring(0, filename.length() - noExtensionMatcher.group(1).length()));
+        }
         final String filenameWithoutExtension = FilenameUtils.removeExtension(file.getAbsolutePath());
         final Matcher m = FILENAME_RESTORE_PATTERN.matcher(filenameWithoutExtension);
         if (!m.find()) {
             return false;
         } else {
-            final String filenameExtension = FilenameUtils.getExtension(file.getName());
-            final String newFilename = filenameWithoutExtension.substring(0, filenameWithoutExtension.length() - m.group(1).length()) + "." + filenameExtension;
-            final File renamedFile = new File(newFilename);
-            if (renamedFile.exists()) {
-                throw new CantRenameException(newFilename);
-            } else {
-                file.renameTo(renamedFile);
-                return true;
-            }
+            final String newFilename = filenameWithoutExtension.substring(0, filenameWithoutExtension.length() - m.group(1).length()) + getDotExtension(file);
+            return renameTo(file, newFilename);
         }
     }
+
+    private static boolean renameTo(File file, String newFilename) throws CantRenameException, IOException {
+        move(file, new File(newFilename));
+        return true;
+    }
 }
@@ -3,7 +3,10 @@ package com.giusilvano.blurry;
 import org.apache.commons.math3.util.FastMath;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Contains methods to evaluate images' contrast and assign a score.
@@ -20,13 +23,23 @@ import java.awt.image.DataBufferByte;
  */
 public class ImageContrastEvaluation {
 
-    // Cache all the luminance values for the RGB space
-    private static final double[][][] luminance;
+    // Identifies the scoring algorithm: change it whenever a change in this class changes the scores
+    public static final String ALGORITHM = "luminance-contrast-v1";
+
+    // Cache the luminance contribution of every value of each RGB channel: the luminance of a pixel is the sum of the
+    // three contributions, so 3 small tables give exactly the same values of a full 256x256x256 cube
+    static final double[] rLuminance = new double[256];
+    static final double[] gLuminance = new double[256];
+    static final double[] bLuminance = new double[256];
+
+    // Lines read before the first check of a classification, to estimate reliably how much the lines differ
+    private static final int MIN_CLASSIFICATION_LINES = 8;
 
     /**
      * Exception thrown when methods of this class can't analyze a certain image type.
      *
-     * <p>In this moment, the only image type supported is 3-bytes BGR.
+     * <p>All the standard image types are supported, through the kernels of {@link LineContrastKernel}: this is
+     * thrown only for images whose pixels can't be converted to RGB.
      */
     public static class UnsupportedImageTypeException extends Exception {}
 
@@ -34,10 +47,6 @@ public class ImageContrastEvaluation {
         // Luminance calculated according to the W3C rules:
         // http://www.w3.org/TR/2008/REC-WCAG20-20081211/#relativeluminancedef
 
-        final double[] rCache = new double[256];
-        final double[] gCache = new double[256];
-        final double[] bCache = new double[256];
-
         for (int i = 0; i <= 255; i++) {
             double value = i / 255d;
             // Apply gamma compensation, according W3C rules.
@@ -47,20 +56,20 @@ public class ImageContrastEvaluation {
             } else {
                 value = FastMath.pow((value + 0.055d) / 1.055d, 2.4d);
             }
-            rCache[i] = value * 0.2126d;
-            gCache[i] = value * 0.7152d;
-            bCache[i] = value * 0.0722d;
+            rLuminance[i] = value * 0.2126d;
+            gLuminance[i] = value * 0.7152d;
+            bLuminance[i] = value * 0.0722d;
         }
+    }
 
-        // Store in cache all the values for faster computations
-        luminance  = new double[256][256][256];
-        for (int r = 0; r <= 255; r++) {
-            for (int g = 0; g <= 255; g++) {
-                for (int b = 0; b <= 255; b++) {
-                    luminance[r][g][b] = rCache[r] + gCache[g] + bCache[b];
-                }
-            }
-        }
+    /**
+     * Returns the luminance of a pixel, given its 3 channels values (0-255 each).
+     *
+     * <p>Channels contributions are always summed in red, green, blue order, so the result is bit-identical to the
+     * one of the old precomputed cube.
+     */
+    static double getLuminance(int r, int g, int b) {
+        return rLuminance[r] + gLuminance[g] + bLuminance[b];
     }
 
     /**
@@ -72,18 +81,18 @@ public class ImageContrastEvaluation {
      * @param stopIndex the index where the method must stop
      * @return the sum of all the pixels luminance differences found in bytes[] array from startIndex to stopIndex
      */
-    private static double getPixelLineContrastsSum(byte[] bytes, int startIndex, int indexIncrement, int stopIndex) {
+    static double getPixelLineContrastsSum(byte[] bytes, int startIndex, int indexIncrement, int stopIndex) {
         // Following code is a bit ugly to keep everything as fastest and lightest possible
         int index = startIndex;
         // Take the luminance of the first pixel
-        double prevLuminance = luminance[bytes[index + 2] & 0xFF][bytes[index + 1] & 0xFF][bytes[index] & 0xFF];
+        double prevLuminance = rLuminance[bytes[index + 2] & 0xFF] + gLuminance[bytes[index + 1] & 0xFF] + bLuminance[bytes[index] & 0xFF];
         double sum = 0;
         // Jump to the next pixel
         index += indexIncrement;
 
         // For all other pixels, compute the luminance difference with the previous and add it to the final sum
         for (; index <= stopIndex; index += indexIncrement) {
-            final double curLuminance = luminance[bytes[index + 2] & 0xFF][bytes[index + 1] & 0xFF][bytes[index] & 0xFF];
+            final double curLuminance = rLuminance[bytes[index + 2] & 0xFF] + gLuminance[bytes[index + 1] & 0xFF] + bLuminance[bytes[index] & 0xFF];
             sum += FastMath.abs(curLuminance - prevLuminance);
             prevLuminance = curLuminance;
         }
@@ -103,62 +112,408 @@ public class ImageContrastEvaluation {
      *                       reduce proportionally the number of rows/columns involved, distributing them uniformly
      *                       to cover all the image area
      * @return a number between 0 and 1 that expresses the contrast score
-     * @throws UnsupportedImageTypeException if bufferedImage type is not 3-byte BGR
+     * @throws UnsupportedImageTypeException if the pixels of bufferedImage can't be converted to RGB
      */
     public static double getImageContrastScore(BufferedImage bufferedImage, float sampleCoverage) throws UnsupportedImageTypeException {
-        // Thanks to: http://stackoverflow.com/a/9470843
-        final byte[] bytes = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
-        if (bufferedImage.getType() != BufferedImage.TYPE_3BYTE_BGR) {
-            // Maybe in future other image types will be supported
-            throw new UnsupportedImageTypeException();
-        }
-        final int bytesPerPixel = 3;
-        final int width = bufferedImage.getWidth();
-        final int height = bufferedImage.getHeight();
-
-        // The image will be divided in stripes, according to the sample coverage
-        int horizontalStripesCount = (int)(height * sampleCoverage);
-        // If image is too small make 100 stripes by default; if the image is even smaller, make a stripe for each pixel
-        if (horizontalStripesCount == 0) horizontalStripesCount = FastMath.min(height, 100);
-        final int horizontalStripesSize = height / horizontalStripesCount;
-
-        int verticalStripesCount = (int)(width * sampleCoverage);
-        if (verticalStripesCount == 0) verticalStripesCount = FastMath.min(width, 100);
-        final int verticalStripesSize = width / verticalStripesCount;
+        return getImageContrastScore(SampledImage.fromFullImage(bufferedImage, sampleCoverage));
+    }
+
+    /**
+     * Computes the contrast score for the provided sampled image.
+     *
+     * <p>The score is exactly the same that {@link #getImageContrastScore(BufferedImage, float)} would compute on the
+     * full image with the same grid.
+     *
+     * @return a number between 0 and 1 that expresses the contrast score
+     * @throws UnsupportedImageTypeException if the pixels of the sampled images can't be converted to RGB
+     */
+    public static double getImageContrastScore(SampledImage sampledImage) throws UnsupportedImageTypeException {
+        return getImageContrastScore(sampledImage, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #getImageContrastScore(SampledImage)}, but if the image has more than parallelThresholdPixels pixels
+     * its rows and columns are split among the threads of the common fork-join pool, so a single huge image can keep
+     * all the cores busy.
+     *
+     * <p>The sum of each row and column is stored in its own slot and the slots are added in order at the end, like
+     * the sequential scan does, so the score is exactly the same whatever the number of threads.
+     */
+    public static double getImageContrastScore(SampledImage sampledImage, long parallelThresholdPixels) throws UnsupportedImageTypeException {
+        final StripeGrid grid = sampledImage.grid;
+        final LineContrastKernel rowsKernel = LineContrastKernel.forImage(sampledImage.rowsImage);
+        final LineContrastKernel columnsKernel = sampledImage.columnsImage == sampledImage.rowsImage
+                ? rowsKernel : LineContrastKernel.forImage(sampledImage.columnsImage);
+
+        final double[] rowsSums = new double[grid.horizontalStripesCount];
+        final double[] columnsSums = new double[grid.verticalStripesCount];
+        final LinesTask rowsTask = new RowsTask(sampledImage, rowsKernel, rowsSums, 0, rowsSums.length);
+        final LinesTask columnsTask = new ColumnsTask(sampledImage, columnsKernel, columnsSums, 0, columnsSums.length);
+        if ((long) grid.width * grid.height > parallelThresholdPixels) {
+            final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+            rowsTask.minLines = Math.max(1, rowsSums.length / (4 * parallelism));
+            columnsTask.minLines = Math.max(1, columnsSums.length / (4 * parallelism));
+            ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(rowsTask, columnsTask);
+                }
+            });
+        } else {
+            rowsTask.compute();
+            columnsTask.compute();
+        }
 
         // Store the sum of all the pixels luminance differences
         double sum = 0;
+        for (final double rowSum : rowsSums) {
+            sum += rowSum;
+        }
+        for (final double columnSum : columnsSums) {
+            sum += columnSum;
+        }
 
-        // For each horizontal stripe, take the center row of pixels and process it
-        for (int i = 0; i < horizontalStripesCount; i++) {
-            // The Y coord of the center row of pixels in this stripe
-            final int centerPixelsRowY = (horizontalStripesSize * i) + (horizontalStripesSize / 2);
-            // Starting index for the first pixel
-            final int startIndex = centerPixelsRowY * width * bytesPerPixel;
-            // What is needed to jump to the next pixel in the row
-            final int indexIncrement = bytesPerPixel;
-            // Stop when all pixels in this row are done
-            final int stopIndex = startIndex + (width-1) * indexIncrement;
-            sum += getPixelLineContrastsSum(bytes, startIndex, indexIncrement, stopIndex);
-        }
-
-        // For each vertical stripe, take the center column of pixels and process it
-        for (int i = 0; i < verticalStripesCount; i++) {
-            // The X coord of the center column of pixels in this stripe
-            final int centerPixelsColX = (verticalStripesSize * i) + (verticalStripesSize / 2);
-            // Starting index for the first pixel
-            final int startIndex = centerPixelsColX * bytesPerPixel;
-            // What is needed to jump to the next pixel in the column
-            final int indexIncrement = width * bytesPerPixel;
-            // Stop when all pixels in this column are done
-            final int stopIndex = startIndex + (height-1) * indexIncrement;
-            sum += getPixelLineContrastsSum(bytes, startIndex, indexIncrement, stopIndex);
-        }
-
-        // The number of samples is equal to the number of pixel processed except the first of each row and column
-        final double count = horizontalStripesCount * (width-1) + verticalStripesCount * (height-1);
         // Return the average difference between pixels luminance
-        return (sum / count);
+        return (sum / grid.getSamplesCount());
+    }
+
+    /**
+     * Computes the scores of several metrics in a single scan of the sampled rows and columns: the luminances of each
+     * line are extracted once and passed to the evaluators of all the metrics.
+     *
+     * <p>Rows are passed before columns, each in order, so the score of {@link SharpnessMetric#CONTRAST} is exactly
+     * the one of {@link #getImageContrastScore(SampledImage)}.
+     *
+     * @return the score of each metric, in the same order
+     * @throws UnsupportedImageTypeException if the pixels of the sampled images can't be converted to RGB
+     */
+    public static double[] getMetricScores(SampledImage sampledImage, List<SharpnessMetric> metrics) throws UnsupportedImageTypeException {
+        final StripeGrid grid = sampledImage.grid;
+        final LineContrastKernel rowsKernel = LineContrastKernel.forImage(sampledImage.rowsImage);
+        final LineContrastKernel columnsKernel = sampledImage.columnsImage == sampledImage.rowsImage
+                ? rowsKernel : LineContrastKernel.forImage(sampledImage.columnsImage);
+        final SharpnessEvaluator[] evaluators = new SharpnessEvaluator[metrics.size()];
+        for (int i = 0; i < evaluators.length; i++) {
+            evaluators[i] = metrics.get(i).newEvaluator();
+        }
+
+        final double[] luminances = new double[Math.max(grid.width, grid.height)];
+        for (int i = 0; i < grid.horizontalStripesCount; i++) {
+            rowsKernel.getLineLuminances(0, sampledImage.firstRowY + sampledImage.rowsStep * i, 1, 0, grid.width, luminances);
+            for (final SharpnessEvaluator evaluator : evaluators) {
+                evaluator.addLine(luminances, grid.width);
+            }
+        }
+        for (int i = 0; i < grid.verticalStripesCount; i++) {
+            columnsKernel.getLineLuminances(sampledImage.firstColumnX + sampledImage.columnsStep * i, 0, 0, 1, grid.height, luminances);
+            for (final SharpnessEvaluator evaluator : evaluators) {
+                evaluator.addLine(luminances, grid.height);
+            }
+        }
+
+        final double[] scores = new double[evaluators.length];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = evaluators[i].getScore();
+        }
+        return scores;
+    }
+
+    /**
+     * Computes the contrast score of each tile of a grid over the sampled image, in a single scan of the sampled rows
+     * and columns like {@link #getImageContrastScore(SampledImage)}.
+     *
+     * <p>Each luminance difference goes to the tile of the second of its two pixels: rows and columns are scanned in
+     * segments, one for each tile they cross, starting from the last pixel of the previous tile, so the pixels scanned
+     * are the same of the whole lines plus one at each tile border.
+     *
+     * @param tilesX number of tiles in each row of tiles
+     * @param tilesY number of tiles in each column of tiles
+     * @throws UnsupportedImageTypeException if the pixels of the sampled images can't be converted to RGB
+     */
+    public static TiledScore getTiledContrastScore(SampledImage sampledImage, int tilesX, int tilesY) throws UnsupportedImageTypeException {
+        final StripeGrid grid = sampledImage.grid;
+        final LineContrastKernel rowsKernel = LineContrastKernel.forImage(sampledImage.rowsImage);
+        final LineContrastKernel columnsKernel = sampledImage.columnsImage == sampledImage.rowsImage
+                ? rowsKernel : LineContrastKernel.forImage(sampledImage.columnsImage);
+        final double[] sums = new double[tilesX * tilesY];
+        final long[] counts = new long[tilesX * tilesY];
+
+        // Rows: each sampled row is split at the borders of the columns of tiles
+        for (int i = 0; i < grid.horizontalStripesCount; i++) {
+            final int tileY = (int) ((long) grid.getRowY(i) * tilesY / grid.height);
+            final int y = sampledImage.firstRowY + sampledImage.rowsStep * i;
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                // Differences of the pixels from firstX to lastX (excluded) with their previous
+                final int firstX = Math.max(1, (int) ((long) grid.width * tileX / tilesX));
+                final int lastX = (int) ((long) grid.width * (tileX + 1) / tilesX);
+                if (lastX > firstX) {
+                    sums[tileY * tilesX + tileX] += rowsKernel.getLineContrastsSum(firstX - 1, y, 1, 0, lastX - firstX + 1);
+                    counts[tileY * tilesX + tileX] += lastX - firstX;
+                }
+            }
+        }
+
+        // Columns: all the sampled columns are scanned together, a row of tiles at a time
+        final double[] columnsSums = new double[grid.verticalStripesCount];
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            final int firstY = Math.max(1, (int) ((long) grid.height * tileY / tilesY));
+            final int lastY = (int) ((long) grid.height * (tileY + 1) / tilesY);
+            if (lastY <= firstY) {
+                continue;
+            }
+            Arrays.fill(columnsSums, 0);
+            columnsKernel.addColumnsContrastsSums(sampledImage.firstColumnX, sampledImage.columnsStep, columnsSums.length,
+                    firstY - 1, lastY - firstY + 1, columnsSums);
+            for (int i = 0; i < columnsSums.length; i++) {
+                final int tileX = (int) ((long) grid.getColumnX(i) * tilesX / grid.width);
+                sums[tileY * tilesX + tileX] += columnsSums[i];
+                counts[tileY * tilesX + tileX] += lastY - firstY;
+            }
+        }
+
+        final double[] scores = new double[tilesX * tilesY];
+        double sum = 0;
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = counts[i] == 0 ? Double.NaN : sums[i] / counts[i];
+            sum += sums[i];
+        }
+        return new TiledScore(tilesX, tilesY, scores, sum / grid.getSamplesCount());
+    }
+
+    /**
+     * Tells whether the score of the sampled image is at least the given threshold, reading only as many of its rows
+     * and columns as needed to be confident of the answer.
+     *
+     * <p>Lines are read coarse to fine: first the first one, then the one in the middle, then the ones at 1/4 and 3/4
+     * and so on, each level doubling the lines read and filling the gaps between them, so at any time the lines read
+     * are spread over the whole image. Rows and columns take turns, the kind with the lower fraction read going next,
+     * and the columns of a level are read all together a row at a time.
+     *
+     * <p>After each level the score is estimated from the lines read, rows and columns weighted by their share of all
+     * the luminance differences, with its standard error estimated from how much the scores of the single lines differ
+     * (and going to 0 as the lines read approach all of them). The reading stops as soon as the estimate is more than
+     * confidence standard errors away from the threshold. If all the lines get read, the score is exactly the one of
+     * {@link #getImageContrastScore(SampledImage)}.
+     *
+     * @param threshold images with a score at least this are sharp, the others are blurry
+     * @param confidence how many standard errors the estimate must be away from the threshold to stop reading, e.g. 3
+     *                   for about 99.7% of confidence
+     * @throws UnsupportedImageTypeException if the pixels of the sampled images can't be converted to RGB
+     */
+    public static ContrastClassification classifyContrast(SampledImage sampledImage, double threshold, double confidence) throws UnsupportedImageTypeException {
+        final StripeGrid grid = sampledImage.grid;
+        final LineContrastKernel rowsKernel = LineContrastKernel.forImage(sampledImage.rowsImage);
+        final LineContrastKernel columnsKernel = sampledImage.columnsImage == sampledImage.rowsImage
+                ? rowsKernel : LineContrastKernel.forImage(sampledImage.columnsImage);
+        final LinesSample rows = new LinesSample(grid.horizontalStripesCount, grid.width);
+        final LinesSample columns = new LinesSample(grid.verticalStripesCount, grid.height);
+        final long totalPixels = (long) rows.sums.length * grid.width + (long) columns.sums.length * grid.height;
+        final double rowsWeight = grid.getSamplesCount() == 0 ? 0 : rows.sums.length * (grid.width - 1) / grid.getSamplesCount();
+        final double columnsWeight = 1 - rowsWeight;
+        final double[] columnsSums = new double[columns.sums.length];
+
+        while (true) {
+            if (!rows.isComplete() && (columns.isComplete() || rows.getReadFraction() <= columns.getReadFraction())) {
+                for (int i = rows.levelStart; i < rows.sums.length; i += rows.levelStep) {
+                    final int y = sampledImage.firstRowY + sampledImage.rowsStep * i;
+                    rows.add(i, rowsKernel.getLineContrastsSum(0, y, 1, 0, grid.width));
+                }
+                rows.nextLevel();
+            } else {
+                final int levelColumns = columns.getLevelLines();
+                Arrays.fill(columnsSums, 0, levelColumns, 0);
+                columnsKernel.addColumnsContrastsSums(sampledImage.firstColumnX + sampledImage.columnsStep * columns.levelStart,
+                        sampledImage.columnsStep * columns.levelStep, levelColumns, grid.height, columnsSums);
+                for (int j = 0; j < levelColumns; j++) {
+                    columns.add(columns.levelStart + columns.levelStep * j, columnsSums[j]);
+                }
+                columns.nextLevel();
+            }
+
+            if (rows.isComplete() && columns.isComplete()) {
+                // Sum in the same order of the full scan, to get exactly the same score
+                double sum = 0;
+                for (final double rowSum : rows.sums) {
+                    sum += rowSum;
+                }
+                for (final double columnSum : columns.sums) {
+                    sum += columnSum;
+                }
+                final double score = sum / grid.getSamplesCount();
+                return new ContrastClassification(getLabel(score, threshold), score, totalPixels, totalPixels);
+            }
+            if (rows.linesRead + columns.linesRead >= MIN_CLASSIFICATION_LINES) {
+                final double estimate = rowsWeight * rows.getMean() + columnsWeight * columns.getMean();
+                final double standardError = FastMath.sqrt(rowsWeight * rowsWeight * rows.getMeanVariance()
+                        + columnsWeight * columnsWeight * columns.getMeanVariance());
+                if (FastMath.abs(estimate - threshold) > confidence * standardError) {
+                    final long pixelsRead = (long) rows.linesRead * grid.width + (long) columns.linesRead * grid.height;
+                    return new ContrastClassification(getLabel(estimate, threshold), estimate, pixelsRead, totalPixels);
+                }
+            }
+        }
+    }
+
+    private static ContrastClassification.Label getLabel(double score, double threshold) {
+        return score >= threshold ? ContrastClassification.Label.SHARP : ContrastClassification.Label.BLURRY;
+    }
+
+    /**
+     * The rows, or the columns, of a sampled image read so far by {@link #classifyContrast}, in coarse to fine levels.
+     */
+    private static class LinesSample {
+        // The sum of each line, in the slot of its index
+        final double[] sums;
+        final int differencesPerLine;
+        // The lines of the current level: from levelStart, every levelStep lines
+        int levelStart = 0;
+        int levelStep;
+        int linesRead = 0;
+        // Of the scores of the single lines read
+        double scoresSum = 0;
+        double squaredScoresSum = 0;
+
+        LinesSample(int lines, int lineLength) {
+            sums = new double[lines];
+            differencesPerLine = lineLength - 1;
+            // The first level is just the first line, each next level is in the middle of the lines already read
+            levelStep = Integer.highestOneBit(Math.max(1, lines - 1)) * 2;
+        }
+
+        void add(int index, double sum) {
+            sums[index] = sum;
+            linesRead++;
+            final double score = differencesPerLine == 0 ? 0 : sum / differencesPerLine;
+            scoresSum += score;
+            squaredScoresSum += score * score;
+        }
+
+        void nextLevel() {
+            if (levelStart == 0) {
+                levelStart = levelStep / 2;
+            } else {
+                levelStep = levelStart;
+                levelStart /= 2;
+            }
+        }
+
+        int getLevelLines() {
+            return levelStart >= sums.length ? 0 : (sums.length - 1 - levelStart) / levelStep + 1;
+        }
+
+        boolean isComplete() {
+            return linesRead == sums.length;
+        }
+
+        double getReadFraction() {
+            return (double) linesRead / sums.length;
+        }
+
+        double getMean() {
+            return linesRead == 0 ? 0 : scoresSum / linesRead;
+        }
+
+        /**
+         * Returns the variance of the mean of the scores of the lines read, as an estimate of the mean of all the
+         * lines.
+         */
+        double getMeanVariance() {
+            if (isComplete()) {
+                return 0;
+            }
+            if (linesRead < 2) {
+                return Double.POSITIVE_INFINITY;
+            }
+            final double variance = FastMath.max(0, (squaredScoresSum - scoresSum * scoresSum / linesRead) / (linesRead - 1));
+            // Lines are read without replacement from a finite set
+            return variance / linesRead * (1 - (double) linesRead / sums.length);
+        }
+    }
+
+    /**
+     * Computes the sums of the lines from "from" to "to" (excluded), splitting them in halves while they are more than
+     * minLines. By default they are never split.
+     */
+    private static abstract class LinesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final SampledImage sampledImage;
+        final LineContrastKernel kernel;
+        final double[] sums;
+        final int from;
+        final int to;
+        int minLines = Integer.MAX_VALUE;
+
+        LinesTask(SampledImage sampledImage, LineContrastKernel kernel, double[] sums, int from, int to) {
+            this.sampledImage = sampledImage;
+            this.kernel = kernel;
+            this.sums = sums;
+            this.from = from;
+            this.to = to;
+        }
+
+        abstract LinesTask newSubtask(int from, int to);
+
+        abstract void computeLines();
+
+        @Override
+        protected void compute() {
+            if (to - from <= minLines) {
+                computeLines();
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            final LinesTask first = newSubtask(from, middle);
+            final LinesTask second = newSubtask(middle, to);
+            first.minLines = second.minLines = minLines;
+            invokeAll(first, second);
+        }
+    }
+
+    private static class RowsTask extends LinesTask {
+        private static final long serialVersionUID = 1L;
+
+        RowsTask(SampledImage sampledImage, LineContrastKernel kernel, double[] sums, int from, int to) {
+            super(sampledImage, kernel, sums, from, to);
+        }
+
+        @Override
+        LinesTask newSubtask(int from, int to) {
+            return new RowsTask(sampledImage, kernel, sums, from, to);
+        }
+
+        @Override
+        void computeLines() {
+            // For each horizontal stripe, take the center row of pixels and process it
+            for (int i = from; i < to; i++) {
+                // The Y coord of the center row of pixels in this stripe
+                final int centerPixelsRowY = sampledImage.firstRowY + sampledImage.rowsStep * i;
+                sums[i] = kernel.getLineContrastsSum(0, centerPixelsRowY, 1, 0, sampledImage.grid.width);
+            }
+        }
+    }
+
+    private static class ColumnsTask extends LinesTask {
+        private static final long serialVersionUID = 1L;
+
+        ColumnsTask(SampledImage sampledImage, LineContrastKernel kernel, double[] sums, int from, int to) {
+            super(sampledImage, kernel, sums, from, to);
+        }
+
+        @Override
+        LinesTask newSubtask(int from, int to) {
+            return new ColumnsTask(sampledImage, kernel, sums, from, to);
+        }
+
+        @Override
+        void computeLines() {
+            // For each vertical stripe, take the center column of pixels and process it. Columns are scanned all
+            // together, a row at a time, to read memory sequentially
+            final double[] columnsSums = new double[to - from];
+            final int firstColumnX = sampledImage.firstColumnX + sampledImage.columnsStep * from;
+            kernel.addColumnsContrastsSums(firstColumnX, sampledImage.columnsStep, to - from, sampledImage.grid.height, columnsSums);
+            System.arraycopy(columnsSums, 0, sums, from, columnsSums.length);
+        }
     }
 
 }
@@ -0,0 +1,206 @@
+package com.giusilvano.blurry;
+
+import org.apache.commons.io.FilenameUtils;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Finds the image files in a list of paths, passing each of them to a consumer as soon as it's found.
+ *
+ * <p>Directories are walked depth first, optionally recursing in subdirectories up to a maximum depth. The entries of
+ * each directory are listed before passing its files to the consumer, so files renamed by the consumer while the walk
+ * is still going on are never found twice.
+ *
+ * <p>Files are recognized as images by their extension. Optionally, files with an unknown extension can be recognized
+ * by the first bytes of their content.
+ */
+public class ImageFilesFinder {
+
+    /**
+     * Receives the image files found.
+     */
+    public interface Consumer {
+        void accept(File file) throws InterruptedException;
+    }
+
+    /**
+     * Chooses the directories whose images are passed to the consumer.
+     */
+    public interface DirectoryFilter {
+        /**
+         * @return false if the images in the directory must be skipped; its subdirectories are walked anyway
+         */
+        boolean accept(File directory);
+    }
+
+    // Lowercase extensions of all the formats that ImageIO can read, cached once
+    private static final Set<String> IMAGE_EXTENSIONS;
+
+    // Bytes at the beginning of the formats readable by ImageIO
+    private static final byte[][] MAGIC_NUMBERS = {
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},                // JPEG
+            {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'},     // PNG
+            {'G', 'I', 'F', '8'},                                   // GIF
+            {'B', 'M'},                                             // BMP
+            {'I', 'I', '*', 0},                                     // TIFF, little endian
+            {'M', 'M', 0, '*'},                                     // TIFF, big endian
+    };
+    private static final int MAGIC_NUMBERS_MAX_LENGTH = 8;
+
+    static {
+        final Set<String> extensions = new HashSet<>(Arrays.asList("jpg", "jpeg", "jpe", "png", "gif", "bmp", "tif", "tiff"));
+        for (final String suffix : ImageIO.getReaderFileSuffixes()) {
+            extensions.add(suffix.toLowerCase(Locale.ROOT));
+        }
+        IMAGE_EXTENSIONS = Collections.unmodifiableSet(extensions);
+    }
+
+    private final int maxDepth;
+    private final boolean sniffMagicNumbers;
+
+    /**
+     * @param maxDepth how many levels of directories to walk: 1 means only the files directly inside the given
+     *                 directories, Integer.MAX_VALUE means all the subdirectories
+     * @param sniffMagicNumbers if true, files with an unknown extension are recognized by their first bytes
+     */
+    public ImageFilesFinder(int maxDepth, boolean sniffMagicNumbers) {
+        this.maxDepth = maxDepth;
+        this.sniffMagicNumbers = sniffMagicNumbers;
+    }
+
+    /**
+     * Passes to the consumer all the images found in the given paths, that can be directories or files.
+     */
+    public void find(List<String> paths, Consumer consumer) throws InterruptedException {
+        find(paths, consumer, directory -> true);
+    }
+
+    /**
+     * Like {@link #find(List, Consumer)}, skipping the images in the directories not accepted by the filter. The
+     * entries of a skipped directory are not even listed, unless its subdirectories must be walked.
+     */
+    public void find(List<String> paths, Consumer consumer, DirectoryFilter filter) throws InterruptedException {
+        for (final String path : paths) {
+            final Path start = Paths.get(path);
+            if (Files.isDirectory(start)) {
+                walkDirectory(start, 1, consumer, filter);
+            } else if (Files.isRegularFile(start) && isImage(start)) {
+                consumer.accept(start.toFile());
+            }
+        }
+    }
+
+    /**
+     * Returns all the images found in the given paths.
+     */
+    public List<File> findAll(List<String> paths) {
+        final List<File> images = new ArrayList<>();
+        try {
+            find(paths, images::add);
+        } catch (InterruptedException e) {
+            // Never thrown by this consumer
+        }
+        return images;
+    }
+
+    private void walkDirectory(Path directory, int depth, Consumer consumer, DirectoryFilter filter) throws InterruptedException {
+        final boolean acceptFiles = filter.accept(directory.toFile());
+        if (!acceptFiles && depth >= maxDepth) {
+            return;
+        }
+        final List<Path> files = new ArrayList<>();
+        final List<Path> subdirectories = new ArrayList<>();
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (final Path entry : entries) {
+                final BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    // Don't follow links to directories, they could make the walk loop forever
+                    if (!Files.isSymbolicLink(entry)) {
+                        subdirectories.add(entry);
+                    }
+                } else if (attributes.isRegularFile() && acceptFiles) {
+                    files.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            // Unreadable directory, go on with the others
+            return;
+        }
+
+        for (final Path file : files) {
+            if (isImage(file)) {
+                consumer.accept(file.toFile());
+            }
+        }
+        if (depth < maxDepth) {
+            for (final Path subdirectory : subdirectories) {
+                walkDirectory(subdirectory, depth + 1, consumer, filter);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the given file is an image.
+     */
+    boolean isImage(Path file) {
+        final String extension = FilenameUtils.getExtension(file.getFileName().toString()).toLowerCase(Locale.ROOT);
+        if (IMAGE_EXTENSIONS.contains(extension)) {
+            return true;
+        }
+        return sniffMagicNumbers && hasImageMagicNumber(file);
+    }
+
+    /**
+     * Returns true if the file starts with the bytes of one of the known image formats.
+     */
+    private static boolean hasImageMagicNumber(Path file) {
+        final byte[] header = new byte[MAGIC_NUMBERS_MAX_LENGTH];
+        int headerLength = 0;
+        try (final InputStream in = Files.newInputStream(file)) {
+            int read;
+            while (headerLength < header.length && (read = in.read(header, headerLength, header.length - headerLength)) > 0) {
+                headerLength += read;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        for (final byte[] magicNumber : MAGIC_NUMBERS) {
+            if (startsWith(header, headerLength, magicNumber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] header, int headerLength, byte[] prefix) {
+        if (headerLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (header[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
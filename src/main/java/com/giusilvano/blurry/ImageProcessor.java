@@ -1,41 +1,672 @@
 package com.giusilvano.blurry;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Processes a single image: decodes it, computes its score and renames the file.
+ *
+ * <p>The steps can be run all together with {@link #run()}, or one at a time by the stages of a
+ * {@link ProcessingPipeline}, in which case the state of the image is kept here between a step and the next.
+ */
 public class ImageProcessor implements Runnable {
 
+    // Files bigger than this can't be read in an array
+    private static final long MAX_CONTENT_BYTES = Integer.MAX_VALUE - 8;
+
+    /**
+     * The result of the processing of an image.
+     */
+    public enum Outcome {
+        SUCCEEDED,
+        SUCCEEDED_BUT_CANT_RENAME,
+        SCORE_REUSED,
+        // Classified as sharp or blurry against a threshold, with an estimated score: the file is not renamed
+        CLASSIFIED,
+        SKIPPED,
+        NOT_SUPPORTED,
+        FAILED
+    }
+
     private final File file;
-    private final float sampleCoverage;
+    private final ProcessingSettings settings;
     private final PathsProcessor.processingProgress progress;
+    private final ScoreCache cache;
+
+    private ScoreCache.Key cacheKey;
+    // The content of the file, when read in memory before decoding, with the budget where its bytes are reserved
+    private byte[] content;
+    private RasterMemoryBudget readAheadBudget;
+    // True if the image has been given in memory, and there's no file
+    private boolean contentOnly = false;
+    private SampledImage sampledImage;
+    private long reservedRasterBytes = 0;
+    private double score;
+    private int width = 0;
+    private int height = 0;
+    // The fraction of rows and columns scanned, 0 if the image hasn't been decoded
+    private double sampleCoverage = 0;
+    private long readNanos = 0;
+    private long decodeNanos = 0;
+    private long scoreNanos = 0;
+    private long renameNanos = 0;
+    private long fileBytes = 0;
+    private Throwable failure;
+    private boolean hasPerceptualHash = false;
+    private long perceptualHash;
+    private long captureTime;
+    private TiledScore tiledScore;
+    // The score of each metric of the settings, when more metrics or a metric other than the contrast are computed
+    private double[] metricScores;
+    private ContrastClassification classification;
+    private boolean scoredOnPreview = false;
+    private File resultFile;
+    private String newFilename;
+    // Why the file has not been renamed, if its rename couldn't be journaled
+    private IOException journalFailure;
+    private Outcome outcome;
 
     public ImageProcessor(File file, float sampleCoverage, PathsProcessor.processingProgress progress) {
+        this(file, sampleCoverage, progress, null);
+    }
+
+    /**
+     * @param cache if not null, the score is looked up here before decoding the image, and stored here after scoring
+     */
+    public ImageProcessor(File file, float sampleCoverage, PathsProcessor.processingProgress progress, ScoreCache cache) {
+        this(file, new ProcessingSettings().setSampleCoverage(sampleCoverage), progress, cache);
+    }
+
+    /**
+     * @param settings where sample coverage and the other parameters of the scoring are taken from
+     * @param cache if not null, the score is looked up here before decoding the image, and stored here after scoring
+     */
+    public ImageProcessor(File file, ProcessingSettings settings, PathsProcessor.processingProgress progress, ScoreCache cache) {
         this.file = file;
-        this.sampleCoverage = sampleCoverage;
+        this.settings = settings;
         this.progress = progress;
+        this.cache = cache;
+    }
+
+    /**
+     * Returns a processor for an image given in memory rather than as a file, e.g. uploaded to a service: it can be
+     * decoded and scored, but it's never renamed, its preview is never looked for and its score is never cached.
+     *
+     * @param name how the image is reported, as its file
+     */
+    static ImageProcessor forContent(String name, byte[] content, ProcessingSettings settings) {
+        final ImageProcessor image = new ImageProcessor(new File(name), settings, null, null);
+        image.content = content;
+        image.contentOnly = true;
+        return image;
     }
 
     @Override
     public void run() {
         try {
-            final BufferedImage bufferedImage = ImageIO.read(file);
-            if (bufferedImage == null) {
-                progress.fileSkipped(file);
-            } else {
-                final double score = ImageContrastEvaluation.getImageContrastScore(bufferedImage, sampleCoverage);
-                // Ok, we have the score, so now rename the file putting the score in the filename
-                try {
-                    FileRenamer.renameAddingScore(file, score);
-                    progress.fileProcessSucceeded(file, score);
-                } catch (FileRenamer.CantRenameException e) {
-                    progress.fileProcessSucceededButCantRename(file, score, e.newFilename);
+            final RasterMemoryBudget budget = RasterMemoryBudget.unlimited();
+            final RasterPool pool = RasterPool.disabled();
+            if (decode(budget, pool) && score(budget, pool)) {
+                rename();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+            outcome = Outcome.FAILED;
+        }
+        reportProgress();
+    }
+
+    /**
+     * Decodes the rows and columns of the image that will be scanned, reserving their bytes in the budget.
+     *
+     * <p>If the image is unchanged since it was scored in a previous run, the score is reused and nothing is decoded.
+     * If previews are enabled and the file embeds a big enough one, the preview is decoded instead of the image. If
+     * the file has been {@link #read} in memory, it's decoded from there, and its content is dropped.
+     *
+     * @return true if the image is ready to be scored, false if the processing of this image is over
+     */
+    public boolean decode(RasterMemoryBudget budget, RasterPool pool) throws InterruptedException {
+        try {
+            if (reuseCachedScore()) {
+                return false;
+            }
+            final long startTime = System.nanoTime();
+            if (settings.getPreviewMinSize() > 0 && !contentOnly) {
+                sampledImage = readPreview(budget);
+            }
+            if (sampledImage == null) {
+                // Decode only the rows and columns that will be scanned, not the full image
+                if (content != null) {
+                    sampledImage = SampledImageReader.read(content, settings.getGridSizing(), budget, pool);
+                    fileBytes = content.length;
+                } else {
+                    sampledImage = SampledImageReader.read(file, settings.getGridSizing(), budget, pool);
+                    fileBytes = file.length();
+                }
+            }
+            decodeNanos = System.nanoTime() - startTime;
+            if (sampledImage == null) {
+                outcome = Outcome.SKIPPED;
+                return false;
+            }
+            width = sampledImage.grid.width;
+            height = sampledImage.grid.height;
+            sampleCoverage = sampledImage.grid.getCoverage();
+            if (settings.isGroupingEnabled()) {
+                captureTime = content != null ? ExifReader.readCaptureTime(content) : ExifReader.readCaptureTime(file);
+                if (captureTime < 0) {
+                    captureTime = file.lastModified();
                 }
             }
+            reservedRasterBytes = sampledImage.getRasterBytes();
+            return true;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            failure = e;
+            outcome = Outcome.FAILED;
+            return false;
+        } finally {
+            releaseContent();
+        }
+    }
+
+    /**
+     * Reads the whole file in memory, reserving its bytes in the read-ahead budget, so that decoding it doesn't wait
+     * for the storage. The score is looked up in the cache first, since that may read the file too.
+     *
+     * <p>Files whose preview is going to be scored are not read here: only a few kilobytes of them are needed. Files too
+     * big for an array are left to be read while decoding.
+     *
+     * @return true if the image is ready to be decoded, false if the processing of this image is over
+     */
+    public boolean read(RasterMemoryBudget readAheadBudget) throws InterruptedException {
+        try {
+            if (reuseCachedScore()) {
+                return false;
+            }
+            final long length = file.length();
+            if (settings.getPreviewMinSize() > 0 || length > MAX_CONTENT_BYTES) {
+                return true;
+            }
+            final long startTime = System.nanoTime();
+            readAheadBudget.acquire(length);
+            try {
+                content = Files.readAllBytes(file.toPath());
+            } catch (IOException | RuntimeException | Error e) {
+                readAheadBudget.release(length);
+                throw e;
+            }
+            // The file may have changed in the meantime
+            readAheadBudget.adjust(length, content.length);
+            this.readAheadBudget = readAheadBudget;
+            readNanos = System.nanoTime() - startTime;
+            return true;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            failure = e;
+            outcome = Outcome.FAILED;
+            return false;
+        }
+    }
+
+    /**
+     * Drops the content of the file read in memory, if any, giving back its bytes to the read-ahead budget.
+     */
+    private void releaseContent() {
+        if (content != null && readAheadBudget != null) {
+            readAheadBudget.release(content.length);
+        }
+        content = null;
+    }
+
+    /**
+     * Looks up the score of the image in the cache, if enabled and not already done.
+     *
+     * @return true if the score has been found, and the processing of this image is over
+     */
+    private boolean reuseCachedScore() throws IOException {
+        if (cache == null || cacheKey != null) {
+            return false;
+        }
+        cacheKey = cache.getKey(file, settings.getSampleCoverage(), settings.getAlgorithm());
+        // The cache has no perceptual hashes, so with grouping the image must be decoded anyway
+        final Double cachedScore = settings.isGroupingEnabled() ? null : cache.get(file, cacheKey);
+        if (cachedScore == null) {
+            return false;
+        }
+        score = cachedScore;
+        if (settings.isClassifying()) {
+            final ContrastClassification.Label label = score >= settings.getClassifyThreshold()
+                    ? ContrastClassification.Label.SHARP : ContrastClassification.Label.BLURRY;
+            classification = new ContrastClassification(label, score, 0, 0);
+        }
+        outcome = Outcome.SCORE_REUSED;
+        return true;
+    }
+
+    /**
+     * Decodes the biggest preview embedded in the file, if big enough, and reserves its bytes in the budget once
+     * decoded: previews are small. Returns null if there's no such preview.
+     */
+    private SampledImage readPreview(RasterMemoryBudget budget) throws IOException, InterruptedException {
+        final EmbeddedPreviewReader.Preview preview = EmbeddedPreviewReader.read(file, settings.getPreviewMinSize());
+        if (preview == null) {
+            return null;
+        }
+        // A preview has few pixels: scan all its rows and columns
+        final SampledImage previewImage = SampledImage.fromFullImage(preview.image, 1);
+        budget.acquire(previewImage.getRasterBytes());
+        fileBytes = preview.bytesRead;
+        scoredOnPreview = true;
+        return previewImage;
+    }
+
+    /**
+     * Computes the score of the decoded image, or only classifies it if a threshold is set, then releases its raster.
+     *
+     * @return true if the file is ready to be renamed, false if the processing of this image is over
+     */
+    public boolean score(RasterMemoryBudget budget, RasterPool pool) {
+        try {
+            final long startTime = System.nanoTime();
+            if (settings.isClassifying()) {
+                classification = ImageContrastEvaluation.classifyContrast(sampledImage, settings.getClassifyThreshold(), settings.getClassifyConfidence());
+                score = classification.getScore();
+            } else if (settings.isTiled()) {
+                tiledScore = ImageContrastEvaluation.getTiledContrastScore(sampledImage, settings.getTilesX(), settings.getTilesY());
+                score = tiledScore.getAggregate(settings.getTileAggregate(), settings.getTilePercentile());
+            } else if (settings.isContrastOnly()) {
+                score = ImageContrastEvaluation.getImageContrastScore(sampledImage, settings.getParallelScoreThresholdPixels());
+            } else {
+                metricScores = ImageContrastEvaluation.getMetricScores(sampledImage, settings.getMetrics());
+                score = metricScores[0];
+            }
+            if (settings.isGroupingEnabled()) {
+                perceptualHash = PerceptualHash.compute(sampledImage);
+                hasPerceptualHash = true;
+            }
+            scoreNanos = System.nanoTime() - startTime;
+            if (classification != null) {
+                // The score is only an estimate: don't put it in the filename nor in the cache
+                outcome = Outcome.CLASSIFIED;
+                return false;
+            }
+            return true;
         } catch (ImageContrastEvaluation.UnsupportedImageTypeException e) {
-            progress.fileProcessFailedBecauseImageNotSupported(file);
+            outcome = Outcome.NOT_SUPPORTED;
+            return false;
         } catch (Exception e) {
-            progress.fileProcessFailed(file);
+            failure = e;
+            outcome = Outcome.FAILED;
+            return false;
+        } finally {
+            pool.release(sampledImage);
+            sampledImage = null;
+            budget.release(reservedRasterBytes);
+            reservedRasterBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the rename that {@link #rename} is going to do, or null if renaming is disabled in the settings.
+     */
+    public RenameJournal.Rename getRename() {
+        return settings.isRenameFiles() && !contentOnly ? new RenameJournal.Rename(file, FileRenamer.getScoredFile(file, score)) : null;
+    }
+
+    /**
+     * Renames the file putting the score in the filename, unless renaming is disabled in the settings, and stores the
+     * score in the cache.
+     */
+    public void rename() {
+        File scoredFile = file;
+        final long startTime = System.nanoTime();
+        try {
+            if (settings.isRenameFiles() && !contentOnly) {
+                scoredFile = FileRenamer.renameAddingScore(file, score);
+                resultFile = scoredFile;
+                renameNanos = System.nanoTime() - startTime;
+            }
+            outcome = Outcome.SUCCEEDED;
+        } catch (FileRenamer.CantRenameException e) {
+            newFilename = e.newFilename;
+            outcome = Outcome.SUCCEEDED_BUT_CANT_RENAME;
+        } catch (Exception e) {
+            failure = e;
+            outcome = Outcome.FAILED;
+            return;
+        }
+        cacheScore(scoredFile);
+    }
+
+    /**
+     * Renames the images, journaling the renames first so they can be undone even if the process dies in the middle.
+     * If the journal can't be written the images are not renamed, keeping their scores only in the results.
+     * The journal of each directory is written once for all the images.
+     */
+    static void renameAll(List<ImageProcessor> images) {
+        final RenameJournal.Rename[] imageRenames = new RenameJournal.Rename[images.size()];
+        final List<RenameJournal.Rename> renames = new ArrayList<>(images.size());
+        for (int i = 0; i < imageRenames.length; i++) {
+            imageRenames[i] = images.get(i).getRename();
+            if (imageRenames[i] != null) {
+                renames.add(imageRenames[i]);
+            }
+        }
+        IOException journalFailure = null;
+        if (!renames.isEmpty()) {
+            try {
+                RenameJournal.append(renames);
+            } catch (IOException e) {
+                journalFailure = e;
+                try {
+                    // The journals of other directories may have been written
+                    RenameJournal.cancel(renames);
+                } catch (IOException cancelFailure) {
+                    // Replaying the journal will skip them, as the scored files won't exist
+                }
+            }
+        }
+        final List<RenameJournal.Rename> failedRenames = new ArrayList<>();
+        for (int i = 0; i < imageRenames.length; i++) {
+            final ImageProcessor image = images.get(i);
+            if (imageRenames[i] != null && journalFailure != null) {
+                image.skipRename(journalFailure);
+                continue;
+            }
+            image.rename();
+            if (imageRenames[i] != null && image.getResultFile() == image.getFile()) {
+                failedRenames.add(imageRenames[i]);
+            }
         }
+        if (!failedRenames.isEmpty()) {
+            try {
+                RenameJournal.cancel(failedRenames);
+            } catch (IOException e) {
+                // Replaying the journal will skip them anyway, unless another file took their names
+            }
+        }
+    }
+
+    /**
+     * Ends the processing without renaming the file, because its rename couldn't be journaled and so it couldn't be
+     * undone, and stores the score in the cache.
+     */
+    void skipRename(IOException journalFailure) {
+        this.journalFailure = journalFailure;
+        outcome = Outcome.SUCCEEDED_BUT_CANT_RENAME;
+        cacheScore(file);
+    }
+
+    private void cacheScore(File scoredFile) {
+        if (cache != null && cacheKey != null) {
+            try {
+                // Renaming keeps size and last modified time, so the key computed before scoring is still valid
+                cache.put(scoredFile, cacheKey, score);
+            } catch (IOException e) {
+                // The score will be computed again in the next run
+            }
+        }
+    }
+
+    /**
+     * Writes the result of the decode and score steps, so the processing of the image can be finished by another
+     * process with {@link #readResult}.
+     */
+    void writeResult(DataOutputStream out) throws IOException {
+        out.writeUTF(outcome != null ? outcome.name() : "");
+        out.writeDouble(score);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeDouble(sampleCoverage);
+        out.writeLong(decodeNanos);
+        out.writeLong(scoreNanos);
+        out.writeLong(fileBytes);
+        out.writeBoolean(scoredOnPreview);
+        out.writeBoolean(failure != null);
+        if (failure != null) {
+            out.writeUTF(failure instanceof RemoteWorker.RemoteFailureException
+                    ? ((RemoteWorker.RemoteFailureException) failure).causeName : failure.getClass().getSimpleName());
+            out.writeUTF(String.valueOf(failure.getMessage()));
+        }
+        out.writeBoolean(hasPerceptualHash);
+        out.writeLong(perceptualHash);
+        out.writeLong(captureTime);
+        out.writeInt(metricScores != null ? metricScores.length : -1);
+        for (int i = 0; metricScores != null && i < metricScores.length; i++) {
+            out.writeDouble(metricScores[i]);
+        }
+        out.writeBoolean(classification != null);
+        if (classification != null) {
+            out.writeUTF(classification.getLabel().name());
+            out.writeDouble(classification.getScore());
+            out.writeLong(classification.getPixelsRead());
+            out.writeLong(classification.getTotalPixels());
+        }
+        out.writeBoolean(cacheKey != null);
+        if (cacheKey != null) {
+            out.writeLong(cacheKey.size);
+            out.writeLong(cacheKey.lastModified);
+            out.writeFloat(cacheKey.sampleCoverage);
+            out.writeUTF(cacheKey.algorithm);
+            out.writeUTF(cacheKey.contentHash);
+        }
+    }
+
+    /**
+     * Reads the result written by {@link #writeResult}: afterwards the image is ready to be renamed, if its outcome
+     * is still null, like after {@link #score}.
+     */
+    void readResult(DataInputStream in) throws IOException {
+        final String outcomeName = in.readUTF();
+        try {
+            outcome = outcomeName.isEmpty() ? null : Outcome.valueOf(outcomeName);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown outcome " + outcomeName);
+        }
+        score = in.readDouble();
+        width = in.readInt();
+        height = in.readInt();
+        sampleCoverage = in.readDouble();
+        decodeNanos = in.readLong();
+        scoreNanos = in.readLong();
+        fileBytes = in.readLong();
+        scoredOnPreview = in.readBoolean();
+        if (in.readBoolean()) {
+            failure = new RemoteWorker.RemoteFailureException(in.readUTF(), in.readUTF());
+        }
+        hasPerceptualHash = in.readBoolean();
+        perceptualHash = in.readLong();
+        captureTime = in.readLong();
+        final int metricsCount = in.readInt();
+        if (metricsCount >= 0) {
+            metricScores = new double[metricsCount];
+            for (int i = 0; i < metricsCount; i++) {
+                metricScores[i] = in.readDouble();
+            }
+        }
+        if (in.readBoolean()) {
+            final String label = in.readUTF();
+            try {
+                classification = new ContrastClassification(ContrastClassification.Label.valueOf(label), in.readDouble(), in.readLong(), in.readLong());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Unknown label " + label);
+            }
+        }
+        if (in.readBoolean()) {
+            cacheKey = new ScoreCache.Key(in.readLong(), in.readLong(), in.readFloat(), in.readUTF(), in.readUTF());
+        }
+    }
+
+    /**
+     * Ends the processing of the image with a failure that happened elsewhere, or that escaped its steps (e.g. an
+     * OutOfMemoryError while decoding).
+     */
+    void fail(Throwable cause) {
+        failure = cause;
+        outcome = Outcome.FAILED;
+    }
+
+    /**
+     * Drops what the image holds in memory between a step and the next, giving back its bytes to the budgets, when
+     * its processing is cancelled.
+     */
+    void discard(RasterMemoryBudget budget, RasterPool pool) {
+        releaseContent();
+        if (sampledImage != null) {
+            pool.release(sampledImage);
+            sampledImage = null;
+        }
+        budget.release(reservedRasterBytes);
+        reservedRasterBytes = 0;
+    }
+
+    /**
+     * Tells the progress how the processing of this image ended.
+     */
+    public void reportProgress() {
+        if (readNanos > 0) {
+            progress.stageCompleted(PathsProcessor.processingProgress.Stage.READ, readNanos);
+        }
+        if (fileBytes > 0) {
+            progress.stageCompleted(PathsProcessor.processingProgress.Stage.DECODE, decodeNanos);
+            progress.fileRead(fileBytes);
+        }
+        if (scoreNanos > 0) {
+            progress.stageCompleted(PathsProcessor.processingProgress.Stage.SCORE, scoreNanos);
+        }
+        if (renameNanos > 0) {
+            progress.stageCompleted(PathsProcessor.processingProgress.Stage.RENAME, renameNanos);
+        }
+        switch (outcome) {
+            case SUCCEEDED:
+                progress.fileProcessSucceeded(file, score);
+                break;
+            case SUCCEEDED_BUT_CANT_RENAME:
+                if (journalFailure != null) {
+                    progress.fileProcessSucceededButRenameNotJournaled(file, score, journalFailure);
+                } else {
+                    progress.fileProcessSucceededButCantRename(file, score, newFilename);
+                }
+                break;
+            case SCORE_REUSED:
+                progress.fileScoreReused(file, score);
+                break;
+            case CLASSIFIED:
+                progress.fileClassified(file, classification);
+                break;
+            case SKIPPED:
+                progress.fileSkipped(file);
+                break;
+            case NOT_SUPPORTED:
+                progress.fileProcessFailedBecauseImageNotSupported(file);
+                break;
+            default:
+                progress.fileProcessFailed(file, failure);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the file as it is after the processing, renamed if the renaming succeeded.
+     */
+    public File getResultFile() {
+        return resultFile != null ? resultFile : file;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     * Returns the width of the image, or of its preview if scored on it, or 0 if it hasn't been decoded.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image, or of its preview if scored on it, or 0 if it hasn't been decoded.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the fraction of the rows and columns of the image, or of its preview, that have been scanned, or 0 if
+     * it hasn't been decoded.
+     */
+    public double getSampleCoverage() {
+        return sampleCoverage;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public long getScoreNanos() {
+        return scoreNanos;
+    }
+
+    /**
+     * Returns true if the perceptual hash has been computed, that happens only if grouping is enabled.
+     */
+    public boolean hasPerceptualHash() {
+        return hasPerceptualHash;
+    }
+
+    public long getPerceptualHash() {
+        return perceptualHash;
+    }
+
+    /**
+     * Returns when the image has been taken, according to its EXIF data or else its last modified time.
+     */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    /**
+     * Returns true if the image has been scored on the preview embedded in the file, instead of on the image itself.
+     */
+    public boolean isScoredOnPreview() {
+        return scoredOnPreview;
+    }
+
+    /**
+     * Returns whether the image is sharp or blurry, or null if it hasn't been classified.
+     */
+    public ContrastClassification getClassification() {
+        return classification;
+    }
+
+    /**
+     * Returns the score of each metric of the settings, in the same order, or null if they have not been computed
+     * because the image has been scored only with the contrast or hasn't been scored.
+     */
+    public double[] getMetricScores() {
+        return metricScores;
+    }
+
+    /**
+     * Returns the scores of the tiles of the image, or null if the image hasn't been scored by tiles.
+     */
+    public TiledScore getTiledScore() {
+        return tiledScore;
     }
 }
@@ -0,0 +1,68 @@
+package com.giusilvano.blurry;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in buckets whose bounds double from a bucket to the next, starting from 1 microsecond.
+ *
+ * <p>Recording never locks nor allocates, so it can be done by many threads at the same time. Percentiles are
+ * approximated with the upper bound of their bucket, which is precise enough to tell where the time goes.
+ */
+class LatencyHistogram {
+
+    // Bucket i counts the durations from 2^(i-1) (included) to 2^i (excluded) microseconds; bucket 0 the ones below 1
+    private static final int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        final long micros = nanos / 1000;
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    double getMeanMillis() {
+        final long count = getCount();
+        return count == 0 ? 0 : totalNanos.sum() / 1e6 / count;
+    }
+
+    double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * Returns the upper bound in milliseconds of the bucket containing the given percentile (from 0 to 100).
+     */
+    double getPercentileMillis(double percentile) {
+        final long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        final long threshold = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= threshold) {
+                return Math.min((1L << i) / 1000d, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+}
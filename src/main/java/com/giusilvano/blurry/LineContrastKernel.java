@@ -0,0 +1,557 @@
+package com.giusilvano.blurry;
+
+import org.apache.commons.math3.util.FastMath;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Sums the luminance differences between consecutive pixels of a line (a row or a column) of an image.
+ *
+ * <p>There is a specialized kernel for each common raster layout, that reads the pixels directly from the array
+ * backing the raster's DataBuffer, without copying or allocating anything. Images with other layouts are read through
+ * their ColorModel, which is much slower but works for everything.
+ *
+ * <p>All kernels compute the luminance of a pixel as the sum of its red, green and blue contributions, like
+ * {@link ImageContrastEvaluation#getLuminance}, so the same colors get the same luminance whatever the image type.
+ * Gray values are treated as sRGB-encoded, like a pixel with the same value on all channels. Alpha is ignored.
+ */
+abstract class LineContrastKernel {
+
+    // Linear light value of every 16-bit sample value, built the first time a 16-bit image is evaluated
+    private static class Linear16Holder {
+        static final double[] LINEAR = new double[65536];
+
+        static {
+            for (int i = 0; i <= 65535; i++) {
+                final double value = i / 65535d;
+                LINEAR[i] = value <= 0.03928d ? value / 12.92d : FastMath.pow((value + 0.055d) / 1.055d, 2.4d);
+            }
+        }
+    }
+
+    // Luminance of an 8-bit gray value, computed exactly like the one of an RGB pixel with the same value on all channels
+    private static final double[] grayLuminance = new double[256];
+
+    static {
+        for (int i = 0; i <= 255; i++) {
+            grayLuminance[i] = ImageContrastEvaluation.getLuminance(i, i, i);
+        }
+    }
+
+    // Index of the pixel at coords (0, 0) in the data array, and what is needed to jump to the next pixel in a row or
+    // in a column
+    protected final int baseIndex;
+    protected final int pixelStride;
+    protected final int scanlineStride;
+
+    protected LineContrastKernel(int baseIndex, int pixelStride, int scanlineStride) {
+        this.baseIndex = baseIndex;
+        this.pixelStride = pixelStride;
+        this.scanlineStride = scanlineStride;
+    }
+
+    /**
+     * Computes the luminance differences of a line of pixels and returns the sum of them.
+     *
+     * @param x X coord of the first pixel of the line
+     * @param y Y coord of the first pixel of the line
+     * @param dx 1 for a row, 0 for a column
+     * @param dy 0 for a row, 1 for a column
+     * @param pixels number of pixels in the line
+     */
+    double getLineContrastsSum(int x, int y, int dx, int dy, int pixels) {
+        final int startIndex = baseIndex + y * scanlineStride + x * pixelStride;
+        final int indexIncrement = dx * pixelStride + dy * scanlineStride;
+        final int stopIndex = startIndex + (pixels - 1) * indexIncrement;
+        return getLineContrastsSum(startIndex, indexIncrement, stopIndex);
+    }
+
+    /**
+     * Like {@link #getLineContrastsSum(int, int, int, int, int)}, but with indexes of the data array: it sums the
+     * differences of the pixels from startIndex to stopIndex, jumping indexIncrement elements from a pixel to the next.
+     */
+    protected abstract double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex);
+
+    /**
+     * Computes the luminance of each pixel of a line and stores them in the luminances array.
+     *
+     * @param x X coord of the first pixel of the line
+     * @param y Y coord of the first pixel of the line
+     * @param dx 1 for a row, 0 for a column
+     * @param dy 0 for a row, 1 for a column
+     * @param pixels number of pixels in the line
+     */
+    void getLineLuminances(int x, int y, int dx, int dy, int pixels, double[] luminances) {
+        final int startIndex = baseIndex + y * scanlineStride + x * pixelStride;
+        getLuminances(startIndex, dx * pixelStride + dy * scanlineStride, pixels, luminances);
+    }
+
+    /**
+     * Computes the luminance of count pixels, starting from startIndex and jumping indexIncrement elements from a
+     * pixel to the next, and stores them in the luminances array.
+     */
+    protected abstract void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances);
+
+    /**
+     * Computes the luminance differences along a set of equally spaced columns, and adds the sum of each column to
+     * the sums array.
+     *
+     * <p>Instead of scanning a column after the other, jumping a whole row of the image from a pixel to the next, the
+     * columns are scanned all together a row at a time, keeping the previous luminance of each column in a small
+     * array: memory is read sequentially, from the first row to the last. The sum of each column is accumulated in the
+     * same order of a column by column scan, so results are exactly the same.
+     *
+     * @param firstX X coord of the first column
+     * @param xStep distance between a column and the next
+     * @param columns number of columns
+     * @param height number of pixels in each column
+     * @param sums array where the sum of the i-th column is added to the i-th element
+     */
+    void addColumnsContrastsSums(int firstX, int xStep, int columns, int height, double[] sums) {
+        addColumnsContrastsSums(firstX, xStep, columns, 0, height, sums);
+    }
+
+    /**
+     * Like {@link #addColumnsContrastsSums(int, int, int, int, double[])}, but scanning only a part of the columns,
+     * from the row at firstY.
+     */
+    void addColumnsContrastsSums(int firstX, int xStep, int columns, int firstY, int height, double[] sums) {
+        double[] prevLuminances = new double[columns];
+        double[] curLuminances = new double[columns];
+        final int indexIncrement = xStep * pixelStride;
+        int rowStartIndex = baseIndex + firstY * scanlineStride + firstX * pixelStride;
+        getLuminances(rowStartIndex, indexIncrement, columns, prevLuminances);
+        for (int y = 1; y < height; y++) {
+            rowStartIndex += scanlineStride;
+            getLuminances(rowStartIndex, indexIncrement, columns, curLuminances);
+            for (int i = 0; i < columns; i++) {
+                sums[i] += FastMath.abs(curLuminances[i] - prevLuminances[i]);
+            }
+            final double[] swap = prevLuminances;
+            prevLuminances = curLuminances;
+            curLuminances = swap;
+        }
+    }
+
+    /**
+     * Returns the fastest kernel that can read the pixels of the given image.
+     *
+     * @throws ImageContrastEvaluation.UnsupportedImageTypeException if the pixels of the image can't be converted
+     *                                                               to RGB
+     */
+    static LineContrastKernel forImage(BufferedImage bufferedImage) throws ImageContrastEvaluation.UnsupportedImageTypeException {
+        final Raster raster = bufferedImage.getRaster();
+        final SampleModel sampleModel = raster.getSampleModel();
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        final ColorModel colorModel = bufferedImage.getColorModel();
+        final int colorSpaceType = colorModel.getColorSpace().getType();
+        final boolean isRgb = colorModel.getColorSpace().isCS_sRGB();
+
+        if (bufferedImage.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+            final ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+            return new ThreeByteBgrKernel(((DataBufferByte) dataBuffer).getData(), getBaseIndex(raster, csm.getPixelStride(), csm.getScanlineStride(), 0),
+                    csm.getPixelStride(), csm.getScanlineStride());
+        }
+
+        if (sampleModel instanceof ComponentSampleModel && dataBuffer.getNumBanks() == 1 && !(colorModel instanceof IndexColorModel)) {
+            final ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+            final int[] bandOffsets = csm.getBandOffsets();
+            final int pixelStride = csm.getPixelStride();
+            final int scanlineStride = csm.getScanlineStride();
+            if (dataBuffer instanceof DataBufferByte && allSampleSizesAre(sampleModel, 8)) {
+                final byte[] data = ((DataBufferByte) dataBuffer).getData();
+                if (isRgb && csm.getNumBands() >= 3) {
+                    return new ByteRgbKernel(data, getBaseIndex(raster, pixelStride, scanlineStride, 0), pixelStride, scanlineStride,
+                            bandOffsets[0], bandOffsets[1], bandOffsets[2]);
+                }
+                if (colorSpaceType == ColorSpace.TYPE_GRAY) {
+                    return new ByteGrayKernel(data, getBaseIndex(raster, pixelStride, scanlineStride, bandOffsets[0]), pixelStride, scanlineStride);
+                }
+            }
+            if (dataBuffer instanceof DataBufferUShort && allSampleSizesAre(sampleModel, 16)) {
+                final short[] data = ((DataBufferUShort) dataBuffer).getData();
+                if (isRgb && csm.getNumBands() >= 3) {
+                    return new UShortRgbKernel(data, getBaseIndex(raster, pixelStride, scanlineStride, 0), pixelStride, scanlineStride,
+                            bandOffsets[0], bandOffsets[1], bandOffsets[2]);
+                }
+                if (colorSpaceType == ColorSpace.TYPE_GRAY) {
+                    return new UShortGrayKernel(data, getBaseIndex(raster, pixelStride, scanlineStride, bandOffsets[0]), pixelStride, scanlineStride);
+                }
+            }
+        }
+
+        if (sampleModel instanceof SinglePixelPackedSampleModel && dataBuffer instanceof DataBufferInt && isRgb
+                && sampleModel.getNumBands() >= 3 && allSampleSizesAre(sampleModel, 8)) {
+            final SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sampleModel;
+            final int[] bitOffsets = sppsm.getBitOffsets();
+            final int scanlineStride = sppsm.getScanlineStride();
+            return new IntRgbKernel(((DataBufferInt) dataBuffer).getData(), getBaseIndex(raster, 1, scanlineStride, 0), scanlineStride,
+                    bitOffsets[0], bitOffsets[1], bitOffsets[2]);
+        }
+
+        if (colorModel instanceof IndexColorModel && sampleModel instanceof ComponentSampleModel
+                && dataBuffer instanceof DataBufferByte && dataBuffer.getNumBanks() == 1) {
+            final ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+            return new ByteIndexedKernel(((DataBufferByte) dataBuffer).getData(),
+                    getBaseIndex(raster, csm.getPixelStride(), csm.getScanlineStride(), csm.getBandOffsets()[0]),
+                    csm.getPixelStride(), csm.getScanlineStride(), (IndexColorModel) colorModel);
+        }
+
+        // Any other layout: go through the ColorModel
+        try {
+            colorModel.getRGB(raster.getDataElements(raster.getMinX(), raster.getMinY(), null));
+        } catch (RuntimeException e) {
+            throw new ImageContrastEvaluation.UnsupportedImageTypeException();
+        }
+        return new ColorModelKernel(raster, colorModel);
+    }
+
+    /**
+     * Returns the index in the data array of the first sample of the pixel at coords (0, 0).
+     */
+    private static int getBaseIndex(Raster raster, int pixelStride, int scanlineStride, int bandOffset) {
+        return raster.getDataBuffer().getOffset()
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * scanlineStride
+                + (raster.getMinX() - raster.getSampleModelTranslateX()) * pixelStride
+                + bandOffset;
+    }
+
+    private static boolean allSampleSizesAre(SampleModel sampleModel, int bits) {
+        for (final int sampleSize : sampleModel.getSampleSize()) {
+            if (sampleSize != bits) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The original kernel, for 3-byte BGR images: the most common type, produced by the JPEG decoder.
+     */
+    private static class ThreeByteBgrKernel extends LineContrastKernel {
+        private final byte[] data;
+
+        ThreeByteBgrKernel(byte[] data, int baseIndex, int pixelStride, int scanlineStride) {
+            super(baseIndex, pixelStride, scanlineStride);
+            this.data = data;
+        }
+
+        @Override
+        protected void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances) {
+            final double[] rLuminance = ImageContrastEvaluation.rLuminance;
+            final double[] gLuminance = ImageContrastEvaluation.gLuminance;
+            final double[] bLuminance = ImageContrastEvaluation.bLuminance;
+            for (int i = 0, index = startIndex; i < count; i++, index += indexIncrement) {
+                luminances[i] = rLuminance[data[index + 2] & 0xFF] + gLuminance[data[index + 1] & 0xFF] + bLuminance[data[index] & 0xFF];
+            }
+        }
+
+        @Override
+        protected double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex) {
+            return ImageContrastEvaluation.getPixelLineContrastsSum(data, startIndex, indexIncrement, stopIndex);
+        }
+    }
+
+    /**
+     * Kernel for byte interleaved RGB images with any band order and optionally alpha, e.g. 4-byte ABGR.
+     */
+    private static class ByteRgbKernel extends LineContrastKernel {
+        private final byte[] data;
+        private final int rOffset;
+        private final int gOffset;
+        private final int bOffset;
+
+        ByteRgbKernel(byte[] data, int baseIndex, int pixelStride, int scanlineStride, int rOffset, int gOffset, int bOffset) {
+            super(baseIndex, pixelStride, scanlineStride);
+            this.data = data;
+            this.rOffset = rOffset;
+            this.gOffset = gOffset;
+            this.bOffset = bOffset;
+        }
+
+        @Override
+        protected void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances) {
+            final double[] rLuminance = ImageContrastEvaluation.rLuminance;
+            final double[] gLuminance = ImageContrastEvaluation.gLuminance;
+            final double[] bLuminance = ImageContrastEvaluation.bLuminance;
+            for (int i = 0, index = startIndex; i < count; i++, index += indexIncrement) {
+                luminances[i] = rLuminance[data[index + rOffset] & 0xFF] + gLuminance[data[index + gOffset] & 0xFF] + bLuminance[data[index + bOffset] & 0xFF];
+            }
+        }
+
+        @Override
+        protected double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex) {
+            final double[] rLuminance = ImageContrastEvaluation.rLuminance;
+            final double[] gLuminance = ImageContrastEvaluation.gLuminance;
+            final double[] bLuminance = ImageContrastEvaluation.bLuminance;
+            int index = startIndex;
+            double prevLuminance = rLuminance[data[index + rOffset] & 0xFF] + gLuminance[data[index + gOffset] & 0xFF] + bLuminance[data[index + bOffset] & 0xFF];
+            double sum = 0;
+            index += indexIncrement;
+            for (; index <= stopIndex; index += indexIncrement) {
+                final double curLuminance = rLuminance[data[index + rOffset] & 0xFF] + gLuminance[data[index + gOffset] & 0xFF] + bLuminance[data[index + bOffset] & 0xFF];
+                sum += FastMath.abs(curLuminance - prevLuminance);
+                prevLuminance = curLuminance;
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Kernel for images with a pixel packed in each int, e.g. INT RGB, INT ARGB and INT BGR.
+     */
+    private static class IntRgbKernel extends LineContrastKernel {
+        private final int[] data;
+        private final int rShift;
+        private final int gShift;
+        private final int bShift;
+
+        IntRgbKernel(int[] data, int baseIndex, int scanlineStride, int rShift, int gShift, int bShift) {
+            super(baseIndex, 1, scanlineStride);
+            this.data = data;
+            this.rShift = rShift;
+            this.gShift = gShift;
+            this.bShift = bShift;
+        }
+
+        @Override
+        protected void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances) {
+            final double[] rLuminance = ImageContrastEvaluation.rLuminance;
+            final double[] gLuminance = ImageContrastEvaluation.gLuminance;
+            final double[] bLuminance = ImageContrastEvaluation.bLuminance;
+            for (int i = 0, index = startIndex; i < count; i++, index += indexIncrement) {
+                final int pixel = data[index];
+                luminances[i] = rLuminance[(pixel >>> rShift) & 0xFF] + gLuminance[(pixel >>> gShift) & 0xFF] + bLuminance[(pixel >>> bShift) & 0xFF];
+            }
+        }
+
+        @Override
+        protected double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex) {
+            final double[] rLuminance = ImageContrastEvaluation.rLuminance;
+            final double[] gLuminance = ImageContrastEvaluation.gLuminance;
+            final double[] bLuminance = ImageContrastEvaluation.bLuminance;
+            int index = startIndex;
+            int pixel = data[index];
+            double prevLuminance = rLuminance[(pixel >>> rShift) & 0xFF] + gLuminance[(pixel >>> gShift) & 0xFF] + bLuminance[(pixel >>> bShift) & 0xFF];
+            double sum = 0;
+            index += indexIncrement;
+            for (; index <= stopIndex; index += indexIncrement) {
+                pixel = data[index];
+                final double curLuminance = rLuminance[(pixel >>> rShift) & 0xFF] + gLuminance[(pixel >>> gShift) & 0xFF] + bLuminance[(pixel >>> bShift) & 0xFF];
+                sum += FastMath.abs(curLuminance - prevLuminance);
+                prevLuminance = curLuminance;
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Kernel for 8-bit gray images.
+     */
+    private static class ByteGrayKernel extends LineContrastKernel {
+        private final byte[] data;
+
+        ByteGrayKernel(byte[] data, int baseIndex, int pixelStride, int scanlineStride) {
+            super(baseIndex, pixelStride, scanlineStride);
+            this.data = data;
+        }
+
+        @Override
+        protected void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances) {
+            for (int i = 0, index = startIndex; i < count; i++, index += indexIncrement) {
+                luminances[i] = grayLuminance[data[index] & 0xFF];
+            }
+        }
+
+        @Override
+        protected double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex) {
+            int index = startIndex;
+            double prevLuminance = grayLuminance[data[index] & 0xFF];
+            double sum = 0;
+            index += indexIncrement;
+            for (; index <= stopIndex; index += indexIncrement) {
+                final double curLuminance = grayLuminance[data[index] & 0xFF];
+                sum += FastMath.abs(curLuminance - prevLuminance);
+                prevLuminance = curLuminance;
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Kernel for 8-bit indexed color images, with the luminance of each palette entry computed once per image.
+     */
+    private static class ByteIndexedKernel extends LineContrastKernel {
+        private final byte[] data;
+        private final double[] paletteLuminance = new double[256];
+
+        ByteIndexedKernel(byte[] data, int baseIndex, int pixelStride, int scanlineStride, IndexColorModel colorModel) {
+            super(baseIndex, pixelStride, scanlineStride);
+            this.data = data;
+            for (int i = 0; i < colorModel.getMapSize(); i++) {
+                paletteLuminance[i] = ImageContrastEvaluation.getLuminance(colorModel.getRed(i), colorModel.getGreen(i), colorModel.getBlue(i));
+            }
+        }
+
+        @Override
+        protected void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances) {
+            for (int i = 0, index = startIndex; i < count; i++, index += indexIncrement) {
+                luminances[i] = paletteLuminance[data[index] & 0xFF];
+            }
+        }
+
+        @Override
+        protected double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex) {
+            int index = startIndex;
+            double prevLuminance = paletteLuminance[data[index] & 0xFF];
+            double sum = 0;
+            index += indexIncrement;
+            for (; index <= stopIndex; index += indexIncrement) {
+                final double curLuminance = paletteLuminance[data[index] & 0xFF];
+                sum += FastMath.abs(curLuminance - prevLuminance);
+                prevLuminance = curLuminance;
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Kernel for 16-bit gray images.
+     */
+    private static class UShortGrayKernel extends LineContrastKernel {
+        private final short[] data;
+
+        UShortGrayKernel(short[] data, int baseIndex, int pixelStride, int scanlineStride) {
+            super(baseIndex, pixelStride, scanlineStride);
+            this.data = data;
+        }
+
+        private static double getLuminance(double linear) {
+            return linear * 0.2126d + linear * 0.7152d + linear * 0.0722d;
+        }
+
+        @Override
+        protected void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances) {
+            final double[] linear = Linear16Holder.LINEAR;
+            for (int i = 0, index = startIndex; i < count; i++, index += indexIncrement) {
+                luminances[i] = getLuminance(linear[data[index] & 0xFFFF]);
+            }
+        }
+
+        @Override
+        protected double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex) {
+            final double[] linear = Linear16Holder.LINEAR;
+            int index = startIndex;
+            double prevLuminance = getLuminance(linear[data[index] & 0xFFFF]);
+            double sum = 0;
+            index += indexIncrement;
+            for (; index <= stopIndex; index += indexIncrement) {
+                final double curLuminance = getLuminance(linear[data[index] & 0xFFFF]);
+                sum += FastMath.abs(curLuminance - prevLuminance);
+                prevLuminance = curLuminance;
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Kernel for 16-bit interleaved RGB images (with or without alpha), e.g. 48-bit PNGs.
+     */
+    private static class UShortRgbKernel extends LineContrastKernel {
+        private final short[] data;
+        private final int rOffset;
+        private final int gOffset;
+        private final int bOffset;
+
+        UShortRgbKernel(short[] data, int baseIndex, int pixelStride, int scanlineStride, int rOffset, int gOffset, int bOffset) {
+            super(baseIndex, pixelStride, scanlineStride);
+            this.data = data;
+            this.rOffset = rOffset;
+            this.gOffset = gOffset;
+            this.bOffset = bOffset;
+        }
+
+        @Override
+        protected void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances) {
+            final double[] linear = Linear16Holder.LINEAR;
+            for (int i = 0, index = startIndex; i < count; i++, index += indexIncrement) {
+                luminances[i] = linear[data[index + rOffset] & 0xFFFF] * 0.2126d + linear[data[index + gOffset] & 0xFFFF] * 0.7152d + linear[data[index + bOffset] & 0xFFFF] * 0.0722d;
+            }
+        }
+
+        @Override
+        protected double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex) {
+            final double[] linear = Linear16Holder.LINEAR;
+            int index = startIndex;
+            double prevLuminance = linear[data[index + rOffset] & 0xFFFF] * 0.2126d + linear[data[index + gOffset] & 0xFFFF] * 0.7152d + linear[data[index + bOffset] & 0xFFFF] * 0.0722d;
+            double sum = 0;
+            index += indexIncrement;
+            for (; index <= stopIndex; index += indexIncrement) {
+                final double curLuminance = linear[data[index + rOffset] & 0xFFFF] * 0.2126d + linear[data[index + gOffset] & 0xFFFF] * 0.7152d + linear[data[index + bOffset] & 0xFFFF] * 0.0722d;
+                sum += FastMath.abs(curLuminance - prevLuminance);
+                prevLuminance = curLuminance;
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Fallback kernel for any other image, that converts each pixel to RGB through the ColorModel.
+     *
+     * <p>The same kernel scans lines in parallel, so the buffer of the pixel is local to each line.
+     */
+    private static class ColorModelKernel extends LineContrastKernel {
+        private final Raster raster;
+        private final ColorModel colorModel;
+
+        ColorModelKernel(Raster raster, ColorModel colorModel) {
+            super(0, 1, raster.getWidth());
+            this.raster = raster;
+            this.colorModel = colorModel;
+        }
+
+        private Object newPixelBuffer() {
+            return raster.getDataElements(raster.getMinX(), raster.getMinY(), null);
+        }
+
+        private double getLuminance(int index, Object pixelBuffer) {
+            // Indexes are computed with pixelStride = 1 and scanlineStride = width, so they can be turned back to coords
+            final int x = raster.getMinX() + index % raster.getWidth();
+            final int y = raster.getMinY() + index / raster.getWidth();
+            final int rgb = colorModel.getRGB(raster.getDataElements(x, y, pixelBuffer));
+            return ImageContrastEvaluation.getLuminance((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+        }
+
+        @Override
+        protected void getLuminances(int startIndex, int indexIncrement, int count, double[] luminances) {
+            final Object pixelBuffer = newPixelBuffer();
+            for (int i = 0, index = startIndex; i < count; i++, index += indexIncrement) {
+                luminances[i] = getLuminance(index, pixelBuffer);
+            }
+        }
+
+        @Override
+        protected double getLineContrastsSum(int startIndex, int indexIncrement, int stopIndex) {
+            final Object pixelBuffer = newPixelBuffer();
+            int index = startIndex;
+            double prevLuminance = getLuminance(index, pixelBuffer);
+            double sum = 0;
+            index += indexIncrement;
+            for (; index <= stopIndex; index += indexIncrement) {
+                final double curLuminance = getLuminance(index, pixelBuffer);
+                sum += FastMath.abs(curLuminance - prevLuminance);
+                prevLuminance = curLuminance;
+            }
+            return sum;
+        }
+    }
+}
@@ -2,14 +2,58 @@ package com.giusilvano.blurry;
 
 import org.apache.commons.cli.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class Main {
 
-  // For images of 5 or more megapixels, analyzing the 1% of the pixels is enough
-  private static final float DEFAULT_SAMPLE_COVERAGE = 0.01f;
+  /**
+   * Parses a positive integer option. Prints an error and returns null if the value is not valid.
+   */
+  private static Integer parsePositiveIntOption(CommandLine cmd, String option) {
+    final String valueStr = cmd.getOptionValue(option);
+    try {
+      final int value = Integer.parseInt(valueStr);
+      if (value <= 0) {
+        System.out.printf("Error in %s parameter: value \"%d\" is not >0.", option, value);
+        return null;
+      }
+      return value;
+    } catch (NumberFormatException e) {
+      System.out.printf("Error in %s parameter: string \"%s\" is not a parsable integer number.", option, valueStr);
+      return null;
+    }
+  }
+
+  /**
+   * Parses a size in bytes, optionally followed by a K, M or G suffix. Prints an error and returns null if the value
+   * is not valid.
+   */
+  private static Long parseBytesOption(CommandLine cmd, String option) {
+    final String valueStr = cmd.getOptionValue(option);
+    final String upperValueStr = valueStr.trim().toUpperCase();
+    long multiplier = 1;
+    String numberStr = upperValueStr;
+    if (upperValueStr.endsWith("K")) multiplier = 1L << 10;
+    if (upperValueStr.endsWith("M")) multiplier = 1L << 20;
+    if (upperValueStr.endsWith("G")) multiplier = 1L << 30;
+    if (multiplier > 1) numberStr = upperValueStr.substring(0, upperValueStr.length() - 1);
+    try {
+      final long value = Long.parseLong(numberStr) * multiplier;
+      if (value <= 0) {
+        System.out.printf("Error in %s parameter: value \"%s\" is not >0.", option, valueStr);
+        return null;
+      }
+      return value;
+    } catch (NumberFormatException e) {
+      System.out.printf("Error in %s parameter: string \"%s\" is not a parsable size (e.g. 512M).", option, valueStr);
+      return null;
+    }
+  }
 
   /**
    * Prints in the standard out an explanation of how to use this app.
@@ -36,15 +80,156 @@ public class Main {
     final Options options = new Options();
     options.addOption("c", "cur-dir", false, "process the images in the current directory");
     options.addOption("r", "restore", false, "remove from filenames the suffixes previously added by Blurry");
+    options.addOption("R", "recursive", false, "process also the images in subdirectories");
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("int")
+            .withDescription("process the images in subdirectories up to this depth (1 = only the given directories)")
+            .withLongOpt("max-depth")
+            .create());
+    options.addOption("w", "watch", false, "keep running, and process each new image as soon as it appears in the directories");
+    options.addOption("g", "group", false, "group similar images, like the shots of a burst, and tell the sharpest of each group");
+    options.addOption(null, "no-rename", false, "don't add the scores to the filenames");
+    options.addOption(null, "sniff", false, "recognize images with an unknown extension by their content");
+    options.addOption(null, "cache", false, "remember the scores in each directory, and don't process again unchanged images");
+    options.addOption(null, "cache-hash", false, "like --cache, but recognize unchanged images also by a hash of their content");
     options.addOption(OptionBuilder
             .hasArg()
             .withArgName("float")
             .withDescription("set the sample coverage parameter; must be >0 and <=1 (default = 0.01)")
             .withLongOpt("sample-coverage")
             .create("s"));
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("int")
+            .withDescription("scan about this many pixels in each image, choosing the sample coverage from its size;"
+                    + " can't be used with --sample-coverage")
+            .withLongOpt("sample-pixels")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("int")
+            .withDescription("read files in memory ahead of decoding them with this many threads, e.g. on network storage"
+                    + " (default = read by the decode threads)")
+            .withLongOpt("read-threads")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("bytes")
+            .withDescription("set the maximum bytes of files read ahead in memory at the same time, e.g. 256M (default = an eighth of the heap)")
+            .withLongOpt("read-ahead")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("int")
+            .withDescription("set how many images can be decoded at the same time (default = number of cores)")
+            .withLongOpt("decode-threads")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("int")
+            .withDescription("set how many images can be scored at the same time (default = number of cores)")
+            .withLongOpt("score-threads")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("int")
+            .withDescription("set how many images can wait between a processing stage and the next (default = 4 x number of cores)")
+            .withLongOpt("queue-capacity")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("bytes")
+            .withDescription("set the maximum bytes of decoded images in memory at the same time, e.g. 512M (default = half of the heap)")
+            .withLongOpt("memory-budget")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("bytes")
+            .withDescription("set the maximum bytes of decoded images kept to decode the next ones into them, e.g. 256M (default = an eighth of the heap)")
+            .withLongOpt("raster-pool")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("file")
+            .withDescription("write path, score, dimensions, times and status of each image in a .csv, .jsonl or .ndjson file")
+            .withLongOpt("output")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("millis")
+            .withDescription("with --watch, process a new file once it's unchanged for this long (default = 200)")
+            .withLongOpt("debounce")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("cols x rows")
+            .withDescription("score each tile of a grid, e.g. 4x4, and aggregate the tiles scores in the image score")
+            .withLongOpt("tiles")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("aggregate")
+            .withDescription("with --tiles, score the image with the max, the center-weighted average or a percentile (e.g. p90) of the tiles (default = p90)")
+            .withLongOpt("tile-score")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("bits")
+            .withDescription("with --group, how many of the 64 bits of their hashes similar images can differ by (default = 10)")
+            .withLongOpt("group-distance")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("seconds")
+            .withDescription("with --group, how many seconds can pass between the shots of similar images (default = 10)")
+            .withLongOpt("group-time-gap")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("pixels")
+            .withDescription("score the preview embedded in JPEG files instead of the image, if its longer side is at least this; much faster, less accurate")
+            .withLongOpt("preview")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("score")
+            .withDescription("only tell whether each image is sharp or blurry against this score, reading just as much of it as needed; files are not renamed")
+            .withLongOpt("threshold")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("float")
+            .withDescription("with --threshold, how many standard errors the estimated score must be away from the threshold to stop reading an image (default = 3)")
+            .withLongOpt("threshold-confidence")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("megapixels")
+            .withDescription("score the images bigger than this using all the cores for each of them (default = 40)")
+            .withLongOpt("parallel-threshold")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("names")
+            .withDescription("score with contrast, laplacian, tenengrad or normalized-contrast; more comma separated metrics are computed together and written in the output, the first gives the score (default = contrast)")
+            .withLongOpt("metric")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("port")
+            .withDescription("hand out the images to the workers connecting to this port, that decode and score them; files are renamed here")
+            .withLongOpt("coordinator")
+            .create());
+    options.addOption(OptionBuilder
+            .hasArg()
+            .withArgName("host:port")
+            .withDescription("work for the coordinator at this address, decoding and scoring the images it hands out; they must be readable here at the same paths")
+            .withLongOpt("worker")
+            .create());
 
     final List<String> paths;
-    final float sampleCoverage;
+    final ProcessingSettings settings = new ProcessingSettings();
 
     try {
         final CommandLine cmd = parser.parse(options, args);
@@ -53,7 +238,7 @@ public class Main {
             paths = Arrays.asList(System.getProperty("user.dir"));
         } else {
             paths = cmd.getArgList();
-            if (paths.isEmpty()) {
+            if (paths.isEmpty() && !cmd.hasOption("worker")) {
                 printUsageInfo(options);
                 return;
             }
@@ -62,23 +247,260 @@ public class Main {
         if (cmd.hasOption("sample-coverage")) {
             final String sampleCoverageStr = cmd.getOptionValue("sample-coverage");
             try {
-                sampleCoverage = Float.parseFloat(sampleCoverageStr);
+                final float sampleCoverage = Float.parseFloat(sampleCoverageStr);
                 if (sampleCoverage <= 0 || sampleCoverage > 1) {
                     System.out.printf("Error in sample coverage parameter: value \"%f\" is not >0 or not <=1.", sampleCoverage);
                     return;
                 }
+                settings.setSampleCoverage(sampleCoverage);
             } catch (NumberFormatException e) {
                 System.out.printf("Error in sample coverage parameter: string \"%s\" is not a parsable float number.", sampleCoverageStr);
                 return;
             }
-        } else {
-            sampleCoverage = DEFAULT_SAMPLE_COVERAGE;
         }
 
-        if (cmd.hasOption("restore")) {
-            PathsProcessor.restoreFilenames(paths);
+        if (cmd.hasOption("sample-pixels")) {
+            if (cmd.hasOption("sample-coverage")) {
+                System.out.print("Error: --sample-pixels can't be used with --sample-coverage.");
+                return;
+            }
+            final Integer sampledPixels = parsePositiveIntOption(cmd, "sample-pixels");
+            if (sampledPixels == null) return;
+            settings.setSampledPixels(sampledPixels);
+        }
+
+        if (cmd.hasOption("read-threads")) {
+            final Integer readThreads = parsePositiveIntOption(cmd, "read-threads");
+            if (readThreads == null) return;
+            settings.setReadThreads(readThreads);
+        }
+
+        if (cmd.hasOption("read-ahead")) {
+            final Long readAhead = parseBytesOption(cmd, "read-ahead");
+            if (readAhead == null) return;
+            settings.setReadAheadBytes(readAhead);
+        }
+
+        if (cmd.hasOption("decode-threads")) {
+            final Integer decodeThreads = parsePositiveIntOption(cmd, "decode-threads");
+            if (decodeThreads == null) return;
+            settings.setDecodeThreads(decodeThreads);
+        }
+
+        if (cmd.hasOption("score-threads")) {
+            final Integer scoreThreads = parsePositiveIntOption(cmd, "score-threads");
+            if (scoreThreads == null) return;
+            settings.setScoreThreads(scoreThreads);
+        }
+
+        if (cmd.hasOption("queue-capacity")) {
+            final Integer queueCapacity = parsePositiveIntOption(cmd, "queue-capacity");
+            if (queueCapacity == null) return;
+            settings.setQueueCapacity(queueCapacity);
+        }
+
+        if (cmd.hasOption("memory-budget")) {
+            final Long memoryBudget = parseBytesOption(cmd, "memory-budget");
+            if (memoryBudget == null) return;
+            settings.setMemoryBudgetBytes(memoryBudget);
+        }
+
+        if (cmd.hasOption("raster-pool")) {
+            final Long rasterPool = parseBytesOption(cmd, "raster-pool");
+            if (rasterPool == null) return;
+            settings.setRasterPoolBytes(rasterPool);
+        }
+
+        if (cmd.hasOption("parallel-threshold")) {
+            final Integer parallelThreshold = parsePositiveIntOption(cmd, "parallel-threshold");
+            if (parallelThreshold == null) return;
+            settings.setParallelScoreThresholdPixels(parallelThreshold * 1_000_000L);
+        }
+
+        if (cmd.hasOption("recursive")) {
+            settings.setMaxDepth(Integer.MAX_VALUE);
+        }
+
+        if (cmd.hasOption("max-depth")) {
+            final Integer maxDepth = parsePositiveIntOption(cmd, "max-depth");
+            if (maxDepth == null) return;
+            settings.setMaxDepth(maxDepth);
+        }
+
+        if (cmd.hasOption("output")) {
+            final File outputFile = new File(cmd.getOptionValue("output"));
+            final ResultsWriter.Format outputFormat = ResultsWriter.Format.forFile(outputFile);
+            if (outputFormat == null) {
+                System.out.printf("Error in output parameter: file \"%s\" doesn't end with .csv, .jsonl or .ndjson.", outputFile);
+                return;
+            }
+            settings.setOutput(outputFile, outputFormat);
+        }
+
+        if (cmd.hasOption("debounce")) {
+            final Integer debounce = parsePositiveIntOption(cmd, "debounce");
+            if (debounce == null) return;
+            settings.setWatchDebounceMillis(debounce);
+        }
+
+        if (cmd.hasOption("metric")) {
+            final String metricsStr = cmd.getOptionValue("metric");
+            final List<SharpnessMetric> metrics = new ArrayList<>();
+            for (final String metricName : metricsStr.split(",")) {
+                final SharpnessMetric metric = SharpnessMetric.forName(metricName);
+                if (metric == null) {
+                    System.out.printf("Error in metric parameter: \"%s\" is not contrast, laplacian, tenengrad or normalized-contrast.", metricName.trim());
+                    return;
+                }
+                if (!metrics.contains(metric)) {
+                    metrics.add(metric);
+                }
+            }
+            settings.setMetrics(metrics);
+        }
+
+        if (cmd.hasOption("tiles")) {
+            if (!settings.isContrastOnly()) {
+                System.out.print("Error: --tiles can be used only with the contrast metric.");
+                return;
+            }
+            final String tilesStr = cmd.getOptionValue("tiles");
+            final String[] tiles = tilesStr.toLowerCase().split("x");
+            try {
+                final int tilesX = Integer.parseInt(tiles[0].trim());
+                final int tilesY = tiles.length == 2 ? Integer.parseInt(tiles[1].trim()) : -1;
+                if (tilesX <= 0 || tilesY <= 0) {
+                    System.out.printf("Error in tiles parameter: \"%s\" is not a grid of at least 1x1 tiles.", tilesStr);
+                    return;
+                }
+                settings.setTiles(tilesX, tilesY);
+            } catch (NumberFormatException e) {
+                System.out.printf("Error in tiles parameter: string \"%s\" is not a grid like 4x4.", tilesStr);
+                return;
+            }
+        }
+
+        if (cmd.hasOption("tile-score")) {
+            final String tileScoreStr = cmd.getOptionValue("tile-score").trim().toLowerCase();
+            if (tileScoreStr.equals("max")) {
+                settings.setTileAggregate(TiledScore.Aggregate.MAX, settings.getTilePercentile());
+            } else if (tileScoreStr.equals("center")) {
+                settings.setTileAggregate(TiledScore.Aggregate.CENTER_WEIGHTED, settings.getTilePercentile());
+            } else {
+                try {
+                    final double percentile = tileScoreStr.startsWith("p") ? Double.parseDouble(tileScoreStr.substring(1)) : -1;
+                    if (percentile < 0 || percentile > 100) {
+                        System.out.printf("Error in tile score parameter: \"%s\" is not max, center or a percentile like p90.", tileScoreStr);
+                        return;
+                    }
+                    settings.setTileAggregate(TiledScore.Aggregate.PERCENTILE, percentile);
+                } catch (NumberFormatException e) {
+                    System.out.printf("Error in tile score parameter: \"%s\" is not max, center or a percentile like p90.", tileScoreStr);
+                    return;
+                }
+            }
+        }
+
+        if (cmd.hasOption("group-distance")) {
+            final Integer groupDistance = parsePositiveIntOption(cmd, "group-distance");
+            if (groupDistance == null) return;
+            settings.setGroupMaxHashDistance(groupDistance);
+        }
+
+        if (cmd.hasOption("group-time-gap")) {
+            final Integer groupTimeGap = parsePositiveIntOption(cmd, "group-time-gap");
+            if (groupTimeGap == null) return;
+            settings.setGroupMaxTimeGapMillis(groupTimeGap * 1000L);
+        }
+
+        if (cmd.hasOption("preview")) {
+            final Integer previewMinSize = parsePositiveIntOption(cmd, "preview");
+            if (previewMinSize == null) return;
+            settings.setPreviewMinSize(previewMinSize);
+        }
+
+        if (cmd.hasOption("threshold")) {
+            if (settings.isTiled()) {
+                System.out.print("Error: --threshold can't be used with --tiles.");
+                return;
+            }
+            if (!settings.isContrastOnly()) {
+                System.out.print("Error: --threshold can be used only with the contrast metric.");
+                return;
+            }
+            final String thresholdStr = cmd.getOptionValue("threshold");
+            try {
+                final double threshold = Double.parseDouble(thresholdStr);
+                if (!(threshold >= 0 && threshold <= 1)) {
+                    System.out.printf("Error in threshold parameter: value \"%s\" is not >=0 and <=1.", thresholdStr);
+                    return;
+                }
+                settings.setClassifyThreshold(threshold);
+            } catch (NumberFormatException e) {
+                System.out.printf("Error in threshold parameter: string \"%s\" is not a parsable number.", thresholdStr);
+                return;
+            }
+        }
+
+        if (cmd.hasOption("threshold-confidence")) {
+            final String confidenceStr = cmd.getOptionValue("threshold-confidence");
+            try {
+                final double confidence = Double.parseDouble(confidenceStr);
+                if (!(confidence > 0)) {
+                    System.out.printf("Error in threshold confidence parameter: value \"%s\" is not >0.", confidenceStr);
+                    return;
+                }
+                settings.setClassifyConfidence(confidence);
+            } catch (NumberFormatException e) {
+                System.out.printf("Error in threshold confidence parameter: string \"%s\" is not a parsable number.", confidenceStr);
+                return;
+            }
+        }
+
+        settings.setGroupingEnabled(cmd.hasOption("group"));
+        settings.setRenameFiles(!cmd.hasOption("no-rename"));
+        settings.setSniffMagicNumbers(cmd.hasOption("sniff"));
+        settings.setScoreCacheEnabled(cmd.hasOption("cache") || cmd.hasOption("cache-hash"));
+        settings.setScoreCacheHashContent(cmd.hasOption("cache-hash"));
+
+        if (cmd.hasOption("worker")) {
+            final String address = cmd.getOptionValue("worker");
+            final int separator = address.lastIndexOf(':');
+            try {
+                final int port = Integer.parseInt(address.substring(separator + 1).trim());
+                if (separator <= 0 || port <= 0 || port > 65535) {
+                    System.out.printf("Error in worker parameter: \"%s\" is not an address like host:port.", address);
+                    return;
+                }
+                PathsProcessor.work(address.substring(0, separator).trim(), port, settings);
+            } catch (NumberFormatException e) {
+                System.out.printf("Error in worker parameter: \"%s\" is not an address like host:port.", address);
+            }
+        } else if (cmd.hasOption("coordinator")) {
+            if (cmd.hasOption("restore") || cmd.hasOption("watch")) {
+                System.out.print("Error: --coordinator can't be used with --restore nor with --watch.");
+                return;
+            }
+            final Integer port = parsePositiveIntOption(cmd, "coordinator");
+            if (port == null) return;
+            if (port > 65535) {
+                System.out.printf("Error in coordinator parameter: value \"%d\" is not a port number.", port);
+                return;
+            }
+            final ServerSocket serverSocket;
+            try {
+                serverSocket = new ServerSocket(port);
+            } catch (IOException e) {
+                System.out.printf("Cannot listen on port %d: %s", port, e.getMessage());
+                return;
+            }
+            PathsProcessor.coordinate(paths, settings, serverSocket);
+        } else if (cmd.hasOption("restore")) {
+            PathsProcessor.restoreFilenames(paths, settings);
+        } else if (cmd.hasOption("watch")) {
+            PathsProcessor.watch(paths, settings);
         } else {
-            PathsProcessor.process(paths, sampleCoverage);
+            PathsProcessor.process(paths, settings);
         }
 
     } catch (UnrecognizedOptionException e) {
@@ -1,144 +1,423 @@
 package com.giusilvano.blurry;
 
-import javax.activation.MimetypesFileTypeMap;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PathsProcessor {
 
+    private static ImageFilesFinder newImageFilesFinder(ProcessingSettings settings) {
+        return new ImageFilesFinder(settings.getMaxDepth(), settings.isSniffMagicNumbers());
+    }
+
+    private static ResultsWriter newResultsWriter(ProcessingSettings settings) throws IOException {
+        return settings.getOutputFile() == null ? null : new ResultsWriter(settings.getOutputFile(), settings.getOutputFormat(), settings.getMetrics());
+    }
+
+    public static void process(List<String> paths, ProcessingSettings settings) {
+        System.out.println("Looking for cool pictures... images will be processed as soon as they are found.");
+        ProcessingPipeline pipeline = null;
+        try (final processingProgress progress = new processingProgress(settings.getProgressIntervalMillis());
+             final ResultsWriter resultsWriter = newResultsWriter(settings)) {
+            pipeline = new ProcessingPipeline(settings, resultsWriter);
+            pipeline.process(newImageFilesFinder(settings), paths, progress);
+        } catch (IOException e) {
+            System.out.printf("Cannot write the results in %s: %s\n", settings.getOutputFile(), e.getMessage());
+        } catch (InterruptedException e) {
+        }
+        printGroups(pipeline);
+    }
+
     /**
-     * Returns true if the given file is an image.
+     * Processes the images in the given paths like {@link #process}, but with their decoding and scoring distributed
+     * among the {@link RemoteWorker}s that connect to the server socket.
      */
-    private static boolean isImage(File file) {
-        final String mimeType = new MimetypesFileTypeMap().getContentType(file);
-        if (mimeType.substring(0, 5).equalsIgnoreCase("image")) {
-            return true;
-        } else {
-            return false;
+    public static void coordinate(List<String> paths, ProcessingSettings settings, ServerSocket serverSocket) {
+        System.out.printf("Looking for cool pictures... images will be handed out to the workers connecting to port %d.\n", serverSocket.getLocalPort());
+        ProcessingPipeline pipeline = null;
+        try (final processingProgress progress = new processingProgress(settings.getProgressIntervalMillis());
+             final ResultsWriter resultsWriter = newResultsWriter(settings)) {
+            pipeline = new ProcessingPipeline(settings, resultsWriter);
+            new RemoteCoordinator(serverSocket, pipeline).process(newImageFilesFinder(settings), paths, settings, progress);
+        } catch (IOException e) {
+            System.out.printf("Cannot write the results in %s: %s\n", settings.getOutputFile(), e.getMessage());
+        } catch (InterruptedException e) {
         }
+        printGroups(pipeline);
     }
 
     /**
-     * Returns all the files of a directory that are images.
+     * Decodes and scores the images handed out by the coordinator, until it has no more.
      */
-    private static List<File> getImagesFiles(List<String> paths) {
-        final List<File> images = new ArrayList<>();
-        for (String path : paths) {
-            final File file = new File(path);
-            if (file.isDirectory()) {
-                for (final File childFile : file.listFiles()) {
-                    if (isImage(childFile)) {
-                        images.add(childFile);
-                    }
-                }
-            } else {
-                if (file.exists() && isImage(file)) {
-                    images.add(file);
-                }
-            }
+    public static void work(String host, int port, ProcessingSettings settings) {
+        System.out.printf("Working for the coordinator at %s:%d...\n", host, port);
+        try {
+            final int processedImages = new RemoteWorker(settings).run(host, port);
+            System.out.printf("No more work: %d images processed.\n", processedImages);
+        } catch (IOException e) {
+            System.out.printf("Cannot work for the coordinator at %s:%d: %s\n", host, port, e.getMessage());
+        } catch (InterruptedException e) {
         }
-        return images;
     }
 
-    public static void process(List<String> paths, float sampleCoverage) {
-        System.out.println("Looking for cool pictures...");
-        final List<File> images = getImagesFiles(paths);
-        if (images.isEmpty()) {
-            System.out.println("Sorry, no images found.");
-        } else {
-            System.out.printf("Great! Blurry found %d images! Starting processing...\n", images.size());
-            final ExecutorService executor = Executors.newWorkStealingPool();
-            final processingProgress progress = new processingProgress(images.size());
-            for (final File image : images) {
-                executor.execute(new ImageProcessor(image, sampleCoverage, progress));
+    /**
+     * Processes the images in the given paths, and then each new image as soon as it appears, until the JVM is
+     * stopped. The images already submitted are completed before exiting.
+     */
+    public static void watch(List<String> paths, ProcessingSettings settings) {
+        System.out.println("Watching for cool pictures... press Ctrl+C to stop.");
+        final Thread watchingThread = Thread.currentThread();
+        final Thread shutdownHook = new Thread(() -> {
+            watchingThread.interrupt();
+            try {
+                watchingThread.join();
+            } catch (InterruptedException e) {
             }
-            executor.shutdown();
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        ProcessingPipeline pipeline = null;
+        try (final processingProgress progress = new processingProgress(settings.getProgressIntervalMillis());
+             final ResultsWriter resultsWriter = newResultsWriter(settings);
+             final DirectoryWatcher watcher = new DirectoryWatcher(newImageFilesFinder(settings), settings.getMaxDepth(), settings.getWatchDebounceMillis())) {
+            // The threads of the pipeline stay alive, warm, for the whole run
+            pipeline = new ProcessingPipeline(settings, resultsWriter);
+            pipeline.start(progress);
+            final ProcessingPipeline startedPipeline = pipeline;
             try {
-                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                watcher.watch(paths, file -> {
+                    progress.fileFound();
+                    startedPipeline.submit(file);
+                });
             } catch (InterruptedException e) {
+                // Stopped
             }
+            pipeline.finish();
+        } catch (IOException e) {
+            System.out.printf("Cannot watch the directories: %s\n", e.getMessage());
+        } catch (InterruptedException e) {
         }
+        printGroups(pipeline);
     }
 
-    public static void restoreFilenames(List<String> paths) {
+    /**
+     * Prints the sharpest image of each group of near-duplicates, if grouping was enabled.
+     */
+    private static void printGroups(ProcessingPipeline pipeline) {
+        if (pipeline == null || pipeline.getBurstGrouper() == null) {
+            return;
+        }
+        final List<BurstGrouper.Group> groups = pipeline.getBurstGrouper().getGroups();
+        if (groups.isEmpty()) {
+            System.out.println("No similar images found.");
+            return;
+        }
+        System.out.printf("Found %d groups of similar images:\n", groups.size());
+        for (final BurstGrouper.Group group : groups) {
+            System.out.printf("  %s is the sharpest of %d similar images (%.4f)\n", group.best.file.getName(), group.members.size(), group.best.score);
+        }
+    }
+
+    /**
+     * Gives back to the images their original names: the renames journaled in a directory are undone replaying its
+     * journal first, then the directory is listed looking for scores in the filenames, to restore the images renamed
+     * by older versions or by runs that failed to journal them.
+     */
+    public static void restoreFilenames(List<String> paths, ProcessingSettings settings) {
         System.out.println("Looking for cool pictures...");
-        final List<File> images = getImagesFiles(paths);
-        int restoredImages = 0;
-        for (final File file : images) {
-            try {
-                if (FileRenamer.renameRemovingScore(file)) {
-                    restoredImages++;
+        final int[] restoredImages = {0};
+        // The files the journal failed to restore, not to be tried and reported twice
+        final Set<File> failedRestores = new HashSet<>();
+        try {
+            newImageFilesFinder(settings).find(paths, file -> {
+                if (failedRestores.contains(file)) {
+                    return;
                 }
-            } catch (FileRenamer.CantRenameException e) {
-                System.out.printf("Cannot rename file %s: %s already exists.\n", file.getName(), e.newFilename);
-            }
+                try {
+                    if (FileRenamer.renameRemovingScore(file)) {
+                        restoredImages[0]++;
+                    }
+                } catch (FileRenamer.CantRenameException e) {
+                    System.out.printf("Cannot rename file %s: %s already exists.\n", file.getName(), e.newFilename);
+                } catch (IOException e) {
+                    System.out.printf("Cannot rename file %s: %s\n", file.getName(), e.getMessage());
+                }
+            }, directory -> {
+                try {
+                    final int restored = RenameJournal.replay(directory, (scoredFile, cause) -> {
+                        failedRestores.add(scoredFile);
+                        printRestoreFailure(scoredFile, cause);
+                    });
+                    if (restored > 0) {
+                        restoredImages[0] += restored;
+                    }
+                } catch (IOException e) {
+                    System.out.printf("Cannot replay the renames journaled in %s: %s\n", directory, e.getMessage());
+                }
+                return true;
+            });
+        } catch (InterruptedException e) {
         }
-        if (restoredImages == 0) {
+        if (restoredImages[0] == 0) {
             System.out.println("No image matched the Blurry filename pattern, nothing to restore.");
         } else {
-            System.out.printf("%d images successfully restored to their original names!\n", restoredImages);
+            System.out.printf("%d images successfully restored to their original names!\n", restoredImages[0]);
         }
     }
 
+    private static void printRestoreFailure(File scoredFile, Exception cause) {
+        if (cause instanceof FileRenamer.CantRenameException) {
+            System.out.printf("Cannot rename file %s: %s already exists.\n", scoredFile.getName(), ((FileRenamer.CantRenameException) cause).newFilename);
+        } else {
+            System.out.printf("Cannot rename file %s: %s\n", scoredFile.getName(), cause.getMessage());
+        }
+    }
 
-    public static class processingProgress {
+    /**
+     * Tracks the progress of a processing run and prints it.
+     *
+     * <p>The processing threads only update atomic counters and queue their messages, without ever locking nor
+     * waiting for the console: a single reporter thread prints the queued messages and a status line at a fixed
+     * interval, and a summary with throughput, stage latencies and errors at the end.
+     */
+    public static class processingProgress implements AutoCloseable {
+
+        /**
+         * The steps of the processing of an image whose latency is tracked.
+         */
+        public enum Stage {
+            DISCOVER,
+            READ,
+            DECODE,
+            SCORE,
+            RENAME
+        }
 
         private final long startTime;
-        private final int toProcess;
-        private int processed = 0;
+        private final AtomicInteger toProcess = new AtomicInteger();
+        private final AtomicInteger processed = new AtomicInteger();
+        private volatile boolean discoveryCompleted = false;
+        private final AtomicBoolean completionReported = new AtomicBoolean(false);
 
-        private processingProgress(int imagesToProcess) {
+        private final LongAdder scoredImages = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LatencyHistogram[] stageLatencies = new LatencyHistogram[Stage.values().length];
+        private final ConcurrentHashMap<String, LongAdder> errorsByCause = new ConcurrentHashMap<>();
+
+        private final ConcurrentLinkedQueue<String> messages = new ConcurrentLinkedQueue<>();
+        private final Thread reporter;
+        private final long reportIntervalMillis;
+        private volatile boolean closed = false;
+        private int lastReportedProcessed = 0;
+
+        processingProgress(long reportIntervalMillis) {
             this.startTime = System.currentTimeMillis();
-            this.toProcess = imagesToProcess;
+            this.reportIntervalMillis = reportIntervalMillis;
+            for (int i = 0; i < stageLatencies.length; i++) {
+                stageLatencies[i] = new LatencyHistogram();
+            }
+            reporter = new Thread(this::report, "blurry-progress");
+            reporter.setDaemon(true);
+            reporter.start();
         }
 
-        public synchronized void fileSkipped(File file) {
-            processed++;
-            System.out.printf("%s skipped, not an image\n", getProgressAndFilenameString(file));
-            checkIfAllFilesProcessed();
+        public void fileFound() {
+            toProcess.incrementAndGet();
         }
 
-        public synchronized void fileProcessSucceeded(File file, double score) {
-            processed++;
-            System.out.printf("%s %.4f\n", getProgressAndFilenameString(file), score);
-            checkIfAllFilesProcessed();
+        public void discoveryCompleted() {
+            discoveryCompleted = true;
+            final int found = toProcess.get();
+            if (found == 0) {
+                messages.add("Sorry, no images found.");
+            } else {
+                messages.add(String.format("Great! Blurry found %d images!", found));
+                checkIfAllFilesProcessed();
+            }
         }
 
-        public synchronized void fileProcessSucceededButCantRename(File file, double score, String newFilename) {
-            processed++;
-            System.out.printf("%s %.4f\n", getProgressAndFilenameString(file), score);
-            System.out.printf("Cannot rename file %s: %s already exists\n", file.getName(), newFilename);
-            checkIfAllFilesProcessed();
+        /**
+         * Records how long a stage took for an image.
+         */
+        public void stageCompleted(Stage stage, long nanos) {
+            stageLatencies[stage.ordinal()].record(nanos);
         }
 
-        public synchronized void fileProcessFailed(File file) {
-            processed++;
-            System.out.printf("%s sorry, processing stopped because of an error\n", getProgressAndFilenameString(file));
-            checkIfAllFilesProcessed();
+        /**
+         * Records the bytes of an image file that has been read.
+         */
+        public void fileRead(long bytes) {
+            bytesRead.add(bytes);
         }
 
-        public synchronized void fileProcessFailedBecauseImageNotSupported(File file) {
-            processed++;
-            System.out.printf("%s skipped, image type not supported\n", getProgressAndFilenameString(file));
+        public void fileSkipped(File file) {
+            countError("not an image");
+            fileProcessed(file, "skipped, not an image");
+        }
+
+        public void fileProcessSucceeded(File file, double score) {
+            scoredImages.increment();
+            fileProcessed(file, String.format("%.4f", score));
+        }
+
+        public void fileClassified(File file, ContrastClassification classification) {
+            scoredImages.increment();
+            fileProcessed(file, String.format("%s (score about %.4f, %.0f%% of the pixels read)",
+                    classification.getLabel().name().toLowerCase(), classification.getScore(),
+                    100d * classification.getPixelsRead() / classification.getTotalPixels()));
+        }
+
+        public void fileScoreReused(File file, double score) {
+            fileProcessed(file, String.format("%.4f (unchanged since last run)", score));
+        }
+
+        public void fileProcessSucceededButCantRename(File file, double score, String newFilename) {
+            scoredImages.increment();
+            countError("name already taken");
+            fileProcessed(file, String.format("%.4f\nCannot rename file %s: %s already exists", score, file.getName(), newFilename));
+        }
+
+        public void fileProcessSucceededButRenameNotJournaled(File file, double score, IOException cause) {
+            scoredImages.increment();
+            countError("rename not journaled");
+            fileProcessed(file, String.format("%.4f\nNot renaming file %s, the rename couldn't be journaled: %s", score, file.getName(), cause.getMessage()));
+        }
+
+        public void fileProcessFailed(File file, Throwable cause) {
+            if (cause instanceof RemoteWorker.RemoteFailureException) {
+                countError(((RemoteWorker.RemoteFailureException) cause).causeName);
+            } else {
+                countError(cause != null ? cause.getClass().getSimpleName() : "unknown error");
+            }
+            fileProcessed(file, "sorry, processing stopped because of an error");
+        }
+
+        public void fileProcessFailedBecauseImageNotSupported(File file) {
+            countError("image type not supported");
+            fileProcessed(file, "skipped, image type not supported");
+        }
+
+        public void workerConnected(String worker, int threads) {
+            messages.add(String.format("Worker %s connected, scoring with %d threads.", worker, threads));
+        }
+
+        public void workerLost(String worker, int unfinishedFiles) {
+            countError("worker lost");
+            messages.add(String.format("Worker %s lost, its %d unfinished images will be handed out again.", worker, unfinishedFiles));
+        }
+
+        /**
+         * Stops the reporter thread, after it has printed all the queued messages and the summary.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            reporter.interrupt();
+            try {
+                reporter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void countError(String cause) {
+            errorsByCause.computeIfAbsent(cause, c -> new LongAdder()).increment();
+        }
+
+        private void fileProcessed(File file, String result) {
+            final int processedNow = processed.incrementAndGet();
+            messages.add(String.format("%s  %s --> %s", getProgressString(processedNow, toProcess.get(), discoveryCompleted), file.getName(), result));
             checkIfAllFilesProcessed();
         }
 
-        private String getProgressString() {
+        private static String getProgressString(int processed, int toProcess, boolean discoveryCompleted) {
+            if (!discoveryCompleted) {
+                // The total is not known yet
+                return String.format("%d/%d+", processed, toProcess);
+            }
             return String.format("%d%%", Math.round(((double) processed / toProcess) * 100));
         }
 
-        private String getProgressAndFilenameString(File file) {
-            return String.format("%s  %s -->", getProgressString(), file.getName());
+        private void checkIfAllFilesProcessed() {
+            final int processedNow = processed.get();
+            if (discoveryCompleted && processedNow == toProcess.get() && completionReported.compareAndSet(false, true)) {
+                messages.add(String.format("Yeah! %d images successfully processed in %d  milliseconds!", processedNow, System.currentTimeMillis() - startTime));
+            }
         }
 
-        private void checkIfAllFilesProcessed() {
-            if (processed == toProcess) {
-                System.out.printf("Yeah! %d images successfully processed in %d  milliseconds!\n", processed, System.currentTimeMillis() - startTime);
+        /**
+         * The loop of the reporter thread.
+         */
+        private void report() {
+            while (!closed) {
+                try {
+                    Thread.sleep(reportIntervalMillis);
+                } catch (InterruptedException e) {
+                    // Closed
+                }
+                printMessages();
+                if (!closed) {
+                    printStatus();
+                }
+            }
+            printSummary();
+        }
+
+        private void printMessages() {
+            final StringBuilder sb = new StringBuilder();
+            String message;
+            while ((message = messages.poll()) != null) {
+                sb.append(message).append('\n');
+            }
+            System.out.print(sb);
+        }
+
+        private void printStatus() {
+            final int processedNow = processed.get();
+            if (processedNow == lastReportedProcessed || completionReported.get()) {
+                return;
+            }
+            lastReportedProcessed = processedNow;
+            System.out.printf("[%s processed, %s]\n", getProgressString(processedNow, toProcess.get(), discoveryCompleted), getThroughputString());
+        }
+
+        private String getThroughputString() {
+            final double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000d;
+            return String.format("%.1f images/s, %.1f MB/s", scoredImages.sum() / seconds, bytesRead.sum() / seconds / (1 << 20));
+        }
+
+        private void printSummary() {
+            if (processed.get() == 0) {
+                return;
+            }
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Throughput: %s\n", getThroughputString()));
+            sb.append("Stage latencies (ms):   count     mean      p50      p90      p99      max\n");
+            for (final Stage stage : Stage.values()) {
+                final LatencyHistogram histogram = stageLatencies[stage.ordinal()];
+                if (histogram.getCount() > 0) {
+                    sb.append(String.format("  %-20s %7d %8.2f %8.2f %8.2f %8.2f %8.2f\n", stage.name().toLowerCase(), histogram.getCount(),
+                            histogram.getMeanMillis(), histogram.getPercentileMillis(50), histogram.getPercentileMillis(90),
+                            histogram.getPercentileMillis(99), histogram.getMaxMillis()));
+                }
+            }
+            if (!errorsByCause.isEmpty()) {
+                sb.append("Errors:\n");
+                for (final Map.Entry<String, LongAdder> entry : new TreeMap<>(errorsByCause).entrySet()) {
+                    sb.append(String.format("  %-20s %7d\n", entry.getKey(), entry.getValue().sum()));
+                }
             }
+            System.out.print(sb);
         }
     }
 
@@ -0,0 +1,59 @@
+package com.giusilvano.blurry;
+
+/**
+ * Computes a 64 bit perceptual hash of an image, from the rows already decoded to score it.
+ *
+ * <p>It's a difference hash: 8 of the sampled rows, evenly distributed from the top to the bottom of the image, are
+ * split in 9 segments, and each bit tells whether the average luminance of a segment is greater than the one of the
+ * next segment. Similar pictures, like the shots of a burst, get hashes that differ in few bits, whatever their size,
+ * exposure or sharpness; the number of different bits is the distance between two pictures.
+ */
+public class PerceptualHash {
+
+    private static final int HASH_ROWS = 8;
+    private static final int SEGMENTS = 9;
+
+    /**
+     * Returns the hash of the sampled image.
+     *
+     * @throws ImageContrastEvaluation.UnsupportedImageTypeException if the pixels of the image can't be converted to RGB
+     */
+    public static long compute(SampledImage sampledImage) throws ImageContrastEvaluation.UnsupportedImageTypeException {
+        final StripeGrid grid = sampledImage.grid;
+        final LineContrastKernel kernel = LineContrastKernel.forImage(sampledImage.rowsImage);
+        final double[] luminances = new double[grid.width];
+        final double[] segments = new double[SEGMENTS];
+        long hash = 0;
+        for (int row = 0; row < HASH_ROWS; row++) {
+            // Images with less than 8 sampled rows use some of them more than once
+            final int stripe = (int) ((row + 0.5d) * grid.horizontalStripesCount / HASH_ROWS);
+            final int y = sampledImage.firstRowY + sampledImage.rowsStep * stripe;
+            kernel.getLineLuminances(0, y, 1, 0, grid.width, luminances);
+            getSegmentsAverages(luminances, segments);
+            for (int i = 0; i < SEGMENTS - 1; i++) {
+                hash = (hash << 1) | (segments[i] > segments[i + 1] ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the number of different bits between two hashes.
+     */
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    private static void getSegmentsAverages(double[] luminances, double[] segments) {
+        for (int i = 0; i < segments.length; i++) {
+            final int from = (int) ((long) luminances.length * i / segments.length);
+            // Images narrower than 9 pixels have some segments of a single pixel
+            final int to = Math.max(from + 1, (int) ((long) luminances.length * (i + 1) / segments.length));
+            double sum = 0;
+            for (int x = from; x < to; x++) {
+                sum += luminances[Math.min(x, luminances.length - 1)];
+            }
+            segments[i] = sum / (to - from);
+        }
+    }
+}
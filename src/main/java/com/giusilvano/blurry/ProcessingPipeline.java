@@ -0,0 +1,386 @@
+package com.giusilvano.blurry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes images in a pipeline of stages: discovery, read, decode, score and rename.
+ *
+ * <p>Each stage has its own threads and passes the images to the next one through a bounded queue, so a slow stage
+ * makes the previous ones wait instead of piling up images in memory. On top of that, the decode stage reserves the
+ * raster bytes of each image in a {@link RasterMemoryBudget} that is released only after scoring, so the memory used
+ * by the decoded images is bounded whatever the number of threads.
+ *
+ * <p>The read stage is optional: its threads read whole files in memory ahead of the decode stage, so on slow storage
+ * the decode and score threads, as many as the cores, don't sit idle waiting for the disk. The bytes read and not yet
+ * decoded are bounded by a budget of their own.
+ *
+ * <p>The rename stage takes the images in batches and journals their renames in a {@link RenameJournal} before
+ * renaming them, so they can be undone after a crash.
+ */
+public class ProcessingPipeline {
+
+    /**
+     * The work done by a stage on a single image.
+     */
+    private interface StageStep {
+        /**
+         * @return true if the image must be passed to the next stage
+         */
+        boolean process(ImageProcessor image) throws InterruptedException;
+    }
+
+    /**
+     * The work done by a stage on the images taken together from its queue.
+     */
+    private interface BatchStep {
+        void process(List<ImageProcessor> images) throws InterruptedException;
+    }
+
+    // The most images renamed together, journaling their renames with a single write for each directory
+    private static final int MAX_RENAME_BATCH = 64;
+
+    // Marks the end of the images in a queue
+    private static final ImageProcessor END = new ImageProcessor(null, 0, null);
+
+    private final ProcessingSettings settings;
+    private final RasterMemoryBudget budget;
+    private final RasterPool pool;
+    private final ScoreCache cache;
+    private final ResultsWriter resultsWriter;
+    private final BurstGrouper burstGrouper;
+    private final RasterMemoryBudget readAheadBudget;
+    // Null when the files are read by the decode stage
+    private final BlockingQueue<ImageProcessor> toRead;
+    private final BlockingQueue<ImageProcessor> toDecode;
+    private final BlockingQueue<ImageProcessor> toScore;
+    private final BlockingQueue<ImageProcessor> toRename;
+    private final List<Thread> threads = new ArrayList<>();
+    // Threads of all the stages still running: the last one to exit after a cancel drops the images left in the queues
+    private final AtomicInteger liveThreads = new AtomicInteger();
+    private volatile boolean cancelled = false;
+    private PathsProcessor.processingProgress progress;
+
+    public ProcessingPipeline(ProcessingSettings settings) {
+        this(settings, null);
+    }
+
+    /**
+     * @param resultsWriter if not null, the result of each image is written here when its processing is over
+     */
+    public ProcessingPipeline(ProcessingSettings settings, ResultsWriter resultsWriter) {
+        this.settings = settings;
+        this.resultsWriter = resultsWriter;
+        this.burstGrouper = settings.isGroupingEnabled()
+                ? new BurstGrouper(settings.getGroupMaxHashDistance(), settings.getGroupMaxTimeGapMillis()) : null;
+        this.budget = new RasterMemoryBudget(settings.getMemoryBudgetBytes());
+        this.pool = new RasterPool(settings.getRasterPoolBytes());
+        this.cache = settings.isScoreCacheEnabled() ? new ScoreCache(settings.isScoreCacheHashContent()) : null;
+        this.readAheadBudget = new RasterMemoryBudget(settings.getReadAheadBytes());
+        this.toRead = settings.getReadThreads() > 0 ? new ArrayBlockingQueue<>(settings.getQueueCapacity()) : null;
+        this.toDecode = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+        this.toScore = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+        this.toRename = new ArrayBlockingQueue<>(settings.getQueueCapacity());
+    }
+
+    /**
+     * Starts the threads of all the stages, that will wait for the files to {@link #submit}.
+     */
+    public void start(PathsProcessor.processingProgress progress) {
+        this.progress = progress;
+        if (toRead != null) {
+            threads.addAll(startStage("read", settings.getReadThreads(), toRead, toDecode, image -> {
+                if (image.read(readAheadBudget)) {
+                    return true;
+                }
+                done(image);
+                return false;
+            }));
+        }
+        threads.addAll(startStage("decode", settings.getDecodeThreads(), toDecode, toScore, image -> {
+            if (image.decode(budget, pool)) {
+                return true;
+            }
+            done(image);
+            return false;
+        }));
+        threads.addAll(startStage("score", settings.getScoreThreads(), toScore, toRename, image -> {
+            if (image.score(budget, pool)) {
+                return true;
+            }
+            done(image);
+            return false;
+        }));
+        threads.add(startBatchStage("rename", toRename, MAX_RENAME_BATCH, this::renameAll));
+    }
+
+    private void renameAll(List<ImageProcessor> images) throws InterruptedException {
+        ImageProcessor.renameAll(images);
+        for (final ImageProcessor image : images) {
+            done(image);
+        }
+    }
+
+    /**
+     * Ends with a failure the processing of an image whose step threw, e.g. an OutOfMemoryError while decoding, so
+     * the stage can go on with the next images.
+     */
+    private void failed(ImageProcessor image, Throwable cause) throws InterruptedException {
+        if (image.getOutcome() != null) {
+            // The processing was over, and reporting it failed: there's nothing left to report
+            return;
+        }
+        image.fail(cause);
+        image.discard(budget, pool);
+        try {
+            done(image);
+        } catch (RuntimeException | Error e) {
+            // Reporting fails for any image
+        }
+    }
+
+    /**
+     * Drops the images left in the queues by a cancel, giving back the memory they hold.
+     */
+    private void discardQueued() {
+        final List<ImageProcessor> images = new ArrayList<>();
+        for (final BlockingQueue<ImageProcessor> queue : Arrays.asList(toRead, toDecode, toScore, toRename)) {
+            if (queue != null) {
+                queue.drainTo(images);
+            }
+        }
+        for (final ImageProcessor image : images) {
+            if (image != END) {
+                image.discard(budget, pool);
+            }
+        }
+    }
+
+    /**
+     * Returns the budget of the decoded rasters in flight.
+     */
+    RasterMemoryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the budget of the file contents read ahead and not yet decoded.
+     */
+    RasterMemoryBudget getReadAheadBudget() {
+        return readAheadBudget;
+    }
+
+    /**
+     * Reports the end of the processing of an image.
+     */
+    private void done(ImageProcessor image) throws InterruptedException {
+        image.reportProgress();
+        if (burstGrouper != null && image.hasPerceptualHash() && image.getOutcome() != ImageProcessor.Outcome.FAILED) {
+            burstGrouper.add(image.getResultFile(), image.getScore(), image.getPerceptualHash(), image.getCaptureTime());
+        }
+        if (resultsWriter != null) {
+            resultsWriter.write(image);
+        }
+    }
+
+    /**
+     * Returns the groups of near-duplicate images, or null if grouping is not enabled.
+     */
+    public BurstGrouper getBurstGrouper() {
+        return burstGrouper;
+    }
+
+    /**
+     * Passes a file to the first stage, waiting if the stage is full.
+     */
+    public void submit(File file) throws InterruptedException {
+        getFirstQueue().put(newImageProcessor(file));
+    }
+
+    private BlockingQueue<ImageProcessor> getFirstQueue() {
+        return toRead != null ? toRead : toDecode;
+    }
+
+    /**
+     * Returns a processor for an image that is going to be decoded and scored elsewhere, e.g. by a
+     * {@link RemoteWorker}, and then passed to {@link #submitScored}.
+     */
+    ImageProcessor newImageProcessor(File file) {
+        return new ImageProcessor(file, settings, progress, cache);
+    }
+
+    /**
+     * Passes an image scored elsewhere to the rename stage, waiting if the stage is full, or reports it as done if
+     * its processing is already over. Must be called before {@link #finish}.
+     */
+    void submitScored(ImageProcessor image) throws InterruptedException {
+        if (image.getOutcome() == null) {
+            toRename.put(image);
+        } else {
+            done(image);
+        }
+    }
+
+    /**
+     * Tells the stages that no more files will be submitted, and waits until all the submitted ones are done.
+     */
+    public void finish() throws InterruptedException {
+        try {
+            getFirstQueue().put(END);
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops all the stages, leaving unprocessed the files still in the pipeline. The memory they hold is given back
+     * as soon as all the threads of the stages have exited.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (final Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Processes all the files found by the finder in the given paths, returning when all of them are done.
+     *
+     * <p>The discovery runs on the calling thread, and waits when the first stage is full.
+     */
+    public void process(ImageFilesFinder finder, List<String> paths, PathsProcessor.processingProgress progress) throws InterruptedException {
+        start(progress);
+        try {
+            // The discovery latency of a file is the time spent by the finder to find it after the previous one
+            final long[] lastFoundTime = {System.nanoTime()};
+            finder.find(paths, file -> {
+                progress.stageCompleted(PathsProcessor.processingProgress.Stage.DISCOVER, System.nanoTime() - lastFoundTime[0]);
+                progress.fileFound();
+                submit(file);
+                lastFoundTime[0] = System.nanoTime();
+            });
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        } finally {
+            progress.discoveryCompleted();
+        }
+        finish();
+    }
+
+    /**
+     * Starts the single thread of a stage that takes from the input queue all the images waiting there, up to
+     * maxBatchSize, and processes them together. It's the last stage.
+     */
+    private Thread startBatchStage(String name, BlockingQueue<ImageProcessor> input, int maxBatchSize, BatchStep step) {
+        liveThreads.incrementAndGet();
+        final Thread thread = new Thread(() -> {
+            final List<ImageProcessor> batch = new ArrayList<>(maxBatchSize);
+            try {
+                boolean ended = false;
+                while (!ended) {
+                    batch.add(input.take());
+                    input.drainTo(batch, maxBatchSize - 1);
+                    final int endIndex = batch.indexOf(END);
+                    if (endIndex >= 0) {
+                        batch.subList(endIndex, batch.size()).clear();
+                        ended = true;
+                    }
+                    if (!batch.isEmpty()) {
+                        try {
+                            step.process(batch);
+                        } catch (RuntimeException | Error e) {
+                            for (final ImageProcessor image : batch) {
+                                failed(image, e);
+                            }
+                        }
+                        batch.clear();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The processing has been cancelled
+                for (final ImageProcessor image : batch) {
+                    image.discard(budget, pool);
+                }
+            } finally {
+                threadExited();
+            }
+        }, String.format("blurry-%s-0", name));
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Starts the threads of a stage, that take images from the input queue and put them in the output queue.
+     *
+     * <p>When a thread finds the END mark it puts it back for the other threads of the stage, and the last thread to
+     * finish passes it to the next stage. An image whose step throws ends with a failure, and the thread goes on.
+     */
+    private List<Thread> startStage(String name, int threadsCount, BlockingQueue<ImageProcessor> input,
+                                    BlockingQueue<ImageProcessor> output, StageStep step) {
+        final AtomicInteger runningThreads = new AtomicInteger(threadsCount);
+        final List<Thread> threads = new ArrayList<>(threadsCount);
+        liveThreads.addAndGet(threadsCount);
+        for (int i = 0; i < threadsCount; i++) {
+            final Thread thread = new Thread(() -> {
+                boolean interrupted = false;
+                ImageProcessor image = null;
+                try {
+                    while (true) {
+                        image = input.take();
+                        if (image == END) {
+                            input.put(END);
+                            break;
+                        }
+                        boolean passOn;
+                        try {
+                            passOn = step.process(image);
+                        } catch (RuntimeException | Error e) {
+                            failed(image, e);
+                            passOn = false;
+                        }
+                        if (passOn && output != null) {
+                            output.put(image);
+                        }
+                        image = null;
+                    }
+                } catch (InterruptedException e) {
+                    // The processing has been cancelled
+                    interrupted = true;
+                    if (image != null && image != END) {
+                        image.discard(budget, pool);
+                    }
+                } finally {
+                    if (runningThreads.decrementAndGet() == 0 && output != null && !interrupted) {
+                        try {
+                            output.put(END);
+                        } catch (InterruptedException e) {
+                            // The processing has been cancelled
+                        }
+                    }
+                    threadExited();
+                }
+            }, String.format("blurry-%s-%d", name, i));
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private void threadExited() {
+        if (liveThreads.decrementAndGet() == 0 && cancelled) {
+            discardQueued();
+        }
+    }
+}
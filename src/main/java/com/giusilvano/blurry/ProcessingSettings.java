@@ -0,0 +1,535 @@
+package com.giusilvano.blurry;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parameters of a processing run. Every setter returns this object, so settings can be chained.
+ */
+public class ProcessingSettings {
+
+    // For images of 5 or more megapixels, analyzing the 1% of the pixels is enough
+    public static final float DEFAULT_SAMPLE_COVERAGE = 0.01f;
+    // Images bigger than 40 megapixels are scored by all the cores together
+    public static final long DEFAULT_PARALLEL_SCORE_THRESHOLD_PIXELS = 40_000_000L;
+
+    private float sampleCoverage = DEFAULT_SAMPLE_COVERAGE;
+    // 0 when the sample coverage is the same for all the images
+    private long sampledPixels = 0;
+    // 0 when the files are read by the decode threads
+    private int readThreads = 0;
+    // By default let the files read ahead use up to an eighth of the heap
+    private long readAheadBytes = Runtime.getRuntime().maxMemory() / 8;
+    private int decodeThreads = Runtime.getRuntime().availableProcessors();
+    private int scoreThreads = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 4 * Runtime.getRuntime().availableProcessors();
+    // By default let the rasters in flight use up to half of the heap
+    private long memoryBudgetBytes = Runtime.getRuntime().maxMemory() / 2;
+    private long parallelScoreThresholdPixels = DEFAULT_PARALLEL_SCORE_THRESHOLD_PIXELS;
+    // By default keep for reuse up to an eighth of the heap of decoded images, enough for the rasters in flight
+    private long rasterPoolBytes = Runtime.getRuntime().maxMemory() / 8;
+    private int maxDepth = 1;
+    private boolean sniffMagicNumbers = false;
+    private boolean scoreCacheEnabled = false;
+    private boolean scoreCacheHashContent = false;
+    private boolean renameFiles = true;
+    private long progressIntervalMillis = 500;
+    private long watchDebounceMillis = 200;
+    private long workerResultTimeoutMillis = 5 * 60 * 1000;
+    private int tilesX = 0;
+    private int tilesY = 0;
+    private TiledScore.Aggregate tileAggregate = TiledScore.Aggregate.PERCENTILE;
+    private double tilePercentile = 90;
+    private boolean groupingEnabled = false;
+    // 0 when images are always decoded at full resolution
+    private int previewMinSize = 0;
+    // NaN when images are scored, not classified
+    private double classifyThreshold = Double.NaN;
+    private double classifyConfidence = 3;
+    private int groupMaxHashDistance = 10;
+    private long groupMaxTimeGapMillis = 10000;
+    private List<SharpnessMetric> metrics = Collections.singletonList(SharpnessMetric.CONTRAST);
+    private File outputFile = null;
+    private ResultsWriter.Format outputFormat = ResultsWriter.Format.CSV;
+
+    public float getSampleCoverage() {
+        return sampleCoverage;
+    }
+
+    public ProcessingSettings setSampleCoverage(float sampleCoverage) {
+        this.sampleCoverage = sampleCoverage;
+        return this;
+    }
+
+    public long getSampledPixels() {
+        return sampledPixels;
+    }
+
+    /**
+     * Sets how many pixels to scan in each image, choosing its sample coverage from its size, so images of any
+     * resolution take about the same time to score; 0 to use the same sample coverage for all the images.
+     */
+    public ProcessingSettings setSampledPixels(long sampledPixels) {
+        this.sampledPixels = sampledPixels;
+        return this;
+    }
+
+    /**
+     * Returns how the grid of rows and columns to scan is chosen for each image.
+     */
+    public StripeGrid.Sizing getGridSizing() {
+        return sampledPixels > 0 ? StripeGrid.sampledPixels(sampledPixels) : StripeGrid.coverage(sampleCoverage);
+    }
+
+    public int getReadThreads() {
+        return readThreads;
+    }
+
+    /**
+     * Sets how many files can be read ahead at the same time, in memory, while the decode threads are busy with the
+     * files already read; 0 to let each decode thread read the file it decodes. The reads are blocking, so on storage
+     * with a high latency these can be many more than the cores.
+     */
+    public ProcessingSettings setReadThreads(int readThreads) {
+        this.readThreads = readThreads;
+        return this;
+    }
+
+    public long getReadAheadBytes() {
+        return readAheadBytes;
+    }
+
+    /**
+     * Sets the maximum bytes of the files read ahead that can be in memory at the same time, waiting to be decoded.
+     */
+    public ProcessingSettings setReadAheadBytes(long readAheadBytes) {
+        this.readAheadBytes = readAheadBytes;
+        return this;
+    }
+
+    public int getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    /**
+     * Sets how many images can be decoded at the same time.
+     */
+    public ProcessingSettings setDecodeThreads(int decodeThreads) {
+        this.decodeThreads = decodeThreads;
+        return this;
+    }
+
+    public int getScoreThreads() {
+        return scoreThreads;
+    }
+
+    /**
+     * Sets how many images can be scored at the same time.
+     */
+    public ProcessingSettings setScoreThreads(int scoreThreads) {
+        this.scoreThreads = scoreThreads;
+        return this;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets how many images can wait between a processing stage and the next.
+     */
+    public ProcessingSettings setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    /**
+     * Sets the maximum bytes of decoded raster that can be in memory at the same time.
+     */
+    public ProcessingSettings setMemoryBudgetBytes(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        return this;
+    }
+
+    public long getRasterPoolBytes() {
+        return rasterPoolBytes;
+    }
+
+    /**
+     * Sets the maximum bytes of the decoded images kept, once scored, to decode the next images into them instead of
+     * allocating new ones; 0 disables the reuse.
+     */
+    public ProcessingSettings setRasterPoolBytes(long rasterPoolBytes) {
+        this.rasterPoolBytes = rasterPoolBytes;
+        return this;
+    }
+
+    public long getParallelScoreThresholdPixels() {
+        return parallelScoreThresholdPixels;
+    }
+
+    /**
+     * Sets how many pixels an image must exceed to have its rows and columns scored in parallel by all the cores,
+     * instead of by a single thread.
+     */
+    public ProcessingSettings setParallelScoreThresholdPixels(long parallelScoreThresholdPixels) {
+        this.parallelScoreThresholdPixels = parallelScoreThresholdPixels;
+        return this;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets how many levels of directories to walk: 1 means only the files directly inside the given directories,
+     * Integer.MAX_VALUE means all the subdirectories.
+     */
+    public ProcessingSettings setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    public boolean isSniffMagicNumbers() {
+        return sniffMagicNumbers;
+    }
+
+    /**
+     * Sets whether files with an unknown extension must be recognized as images by their first bytes.
+     */
+    public ProcessingSettings setSniffMagicNumbers(boolean sniffMagicNumbers) {
+        this.sniffMagicNumbers = sniffMagicNumbers;
+        return this;
+    }
+
+    public boolean isScoreCacheEnabled() {
+        return scoreCacheEnabled;
+    }
+
+    /**
+     * Sets whether scores must be stored on disk and reused for the images that are unchanged in the next runs.
+     */
+    public ProcessingSettings setScoreCacheEnabled(boolean scoreCacheEnabled) {
+        this.scoreCacheEnabled = scoreCacheEnabled;
+        return this;
+    }
+
+    public boolean isScoreCacheHashContent() {
+        return scoreCacheHashContent;
+    }
+
+    /**
+     * Sets whether the score cache must check also the content of the files, besides size and last modified time.
+     */
+    public ProcessingSettings setScoreCacheHashContent(boolean scoreCacheHashContent) {
+        this.scoreCacheHashContent = scoreCacheHashContent;
+        return this;
+    }
+
+    public boolean isRenameFiles() {
+        return renameFiles;
+    }
+
+    /**
+     * Sets whether the score must be added to the filename of each image.
+     */
+    public ProcessingSettings setRenameFiles(boolean renameFiles) {
+        this.renameFiles = renameFiles;
+        return this;
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    public ResultsWriter.Format getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * Sets the file where the result of each image must be written, in the given format, or null to not write them.
+     */
+    public ProcessingSettings setOutput(File outputFile, ResultsWriter.Format outputFormat) {
+        this.outputFile = outputFile;
+        this.outputFormat = outputFormat;
+        return this;
+    }
+
+    public long getProgressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    /**
+     * Sets how often the progress must be printed.
+     */
+    public ProcessingSettings setProgressIntervalMillis(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    public long getWatchDebounceMillis() {
+        return watchDebounceMillis;
+    }
+
+    /**
+     * Sets how long a new file must be unchanged, when watching directories, before being considered completely
+     * written and processed.
+     */
+    public ProcessingSettings setWatchDebounceMillis(long watchDebounceMillis) {
+        this.watchDebounceMillis = watchDebounceMillis;
+        return this;
+    }
+
+    public long getWorkerResultTimeoutMillis() {
+        return workerResultTimeoutMillis;
+    }
+
+    /**
+     * Sets how long a coordinator waits for the next result of a worker that still has images of its batch, before
+     * considering the worker lost and handing out its images again.
+     */
+    public ProcessingSettings setWorkerResultTimeoutMillis(long workerResultTimeoutMillis) {
+        this.workerResultTimeoutMillis = workerResultTimeoutMillis;
+        return this;
+    }
+
+    public boolean isGroupingEnabled() {
+        return groupingEnabled;
+    }
+
+    /**
+     * Sets whether near-duplicate images must be grouped, to find the sharpest of each group.
+     */
+    public ProcessingSettings setGroupingEnabled(boolean groupingEnabled) {
+        this.groupingEnabled = groupingEnabled;
+        return this;
+    }
+
+    public int getGroupMaxHashDistance() {
+        return groupMaxHashDistance;
+    }
+
+    /**
+     * Sets how many of the 64 bits of their perceptual hashes two images can differ by to be near-duplicates.
+     */
+    public ProcessingSettings setGroupMaxHashDistance(int groupMaxHashDistance) {
+        this.groupMaxHashDistance = groupMaxHashDistance;
+        return this;
+    }
+
+    public long getGroupMaxTimeGapMillis() {
+        return groupMaxTimeGapMillis;
+    }
+
+    /**
+     * Sets how much time can pass between the captures of two images to be near-duplicates.
+     */
+    public ProcessingSettings setGroupMaxTimeGapMillis(long groupMaxTimeGapMillis) {
+        this.groupMaxTimeGapMillis = groupMaxTimeGapMillis;
+        return this;
+    }
+
+    public boolean isTiled() {
+        return tilesX > 0 && tilesY > 0;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /**
+     * Sets the grid of tiles whose scores are aggregated in the score of each image, or 0 x 0 to score the images as
+     * a whole.
+     */
+    public ProcessingSettings setTiles(int tilesX, int tilesY) {
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        return this;
+    }
+
+    public TiledScore.Aggregate getTileAggregate() {
+        return tileAggregate;
+    }
+
+    public double getTilePercentile() {
+        return tilePercentile;
+    }
+
+    /**
+     * Sets how the scores of the tiles are aggregated in the score of the image.
+     *
+     * @param tilePercentile the percentile used by {@link TiledScore.Aggregate#PERCENTILE}, from 0 to 100
+     */
+    public ProcessingSettings setTileAggregate(TiledScore.Aggregate tileAggregate, double tilePercentile) {
+        this.tileAggregate = tileAggregate;
+        this.tilePercentile = tilePercentile;
+        return this;
+    }
+
+    public int getPreviewMinSize() {
+        return previewMinSize;
+    }
+
+    /**
+     * Sets the minimum size, in pixels of the longer side, of the previews embedded in the JPEG files that can be
+     * scored instead of decoding the image; 0 to always decode the image.
+     */
+    public ProcessingSettings setPreviewMinSize(int previewMinSize) {
+        this.previewMinSize = previewMinSize;
+        return this;
+    }
+
+    /**
+     * Returns true if images are only classified as sharp or blurry against a threshold, instead of being scored.
+     */
+    public boolean isClassifying() {
+        return !Double.isNaN(classifyThreshold);
+    }
+
+    public double getClassifyThreshold() {
+        return classifyThreshold;
+    }
+
+    /**
+     * Sets the threshold to classify images as sharp or blurry, reading only as much of them as needed to tell; NaN
+     * to score them.
+     */
+    public ProcessingSettings setClassifyThreshold(double classifyThreshold) {
+        this.classifyThreshold = classifyThreshold;
+        return this;
+    }
+
+    public double getClassifyConfidence() {
+        return classifyConfidence;
+    }
+
+    /**
+     * Sets how many standard errors the estimated score must be away from the threshold to stop reading an image.
+     */
+    public ProcessingSettings setClassifyConfidence(double classifyConfidence) {
+        this.classifyConfidence = classifyConfidence;
+        return this;
+    }
+
+    /**
+     * Returns the metrics that are computed for each image.
+     */
+    public List<SharpnessMetric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the metric of the score of the images, the first one.
+     */
+    public SharpnessMetric getMetric() {
+        return metrics.get(0);
+    }
+
+    /**
+     * Sets the metrics computed for each image, all together in a single scan of the image: the first one gives the
+     * score, that goes in the filename and in the cache, while the others are only written in the results.
+     */
+    public ProcessingSettings setMetrics(List<SharpnessMetric> metrics) {
+        this.metrics = Collections.unmodifiableList(new ArrayList<>(metrics));
+        return this;
+    }
+
+    /**
+     * Returns true if the images are scored only with the contrast, that is computed by the fastest scan.
+     */
+    public boolean isContrastOnly() {
+        return metrics.size() == 1 && metrics.get(0) == SharpnessMetric.CONTRAST;
+    }
+
+    /**
+     * Returns the identifier of the scoring algorithm with these settings: scores computed with different
+     * identifiers are not comparable.
+     */
+    public String getAlgorithm() {
+        String algorithm = getMetric().getAlgorithm();
+        if (isTiled()) {
+            final String aggregate = tileAggregate == TiledScore.Aggregate.PERCENTILE
+                    ? "p" + tilePercentile : tileAggregate.name().toLowerCase();
+            algorithm += String.format("/tiles-%dx%d-%s", tilesX, tilesY, aggregate);
+        }
+        if (sampledPixels > 0) {
+            // The sample coverage in the cache key is not used, the grid depends on the size of each image
+            algorithm += "/pixels-" + sampledPixels;
+        }
+        if (previewMinSize > 0) {
+            algorithm += "/preview-" + previewMinSize;
+        }
+        return algorithm;
+    }
+
+    /**
+     * Writes the settings that change how the images are decoded and scored, to be read by a {@link RemoteWorker}.
+     */
+    void writeScoringSettings(DataOutputStream out) throws IOException {
+        out.writeFloat(sampleCoverage);
+        out.writeLong(sampledPixels);
+        out.writeInt(metrics.size());
+        for (final SharpnessMetric metric : metrics) {
+            out.writeUTF(metric.getMetricName());
+        }
+        out.writeInt(previewMinSize);
+        out.writeDouble(classifyThreshold);
+        out.writeDouble(classifyConfidence);
+        out.writeInt(tilesX);
+        out.writeInt(tilesY);
+        out.writeUTF(tileAggregate.name());
+        out.writeDouble(tilePercentile);
+        out.writeBoolean(groupingEnabled);
+        out.writeBoolean(scoreCacheEnabled);
+        out.writeBoolean(scoreCacheHashContent);
+    }
+
+    /**
+     * Reads the settings written by {@link #writeScoringSettings}.
+     */
+    void readScoringSettings(DataInputStream in) throws IOException {
+        sampleCoverage = in.readFloat();
+        sampledPixels = in.readLong();
+        final List<SharpnessMetric> metrics = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            final String metricName = in.readUTF();
+            final SharpnessMetric metric = SharpnessMetric.forName(metricName);
+            if (metric == null) {
+                throw new IOException("Unknown metric " + metricName);
+            }
+            metrics.add(metric);
+        }
+        if (metrics.isEmpty()) {
+            throw new IOException("No metric");
+        }
+        setMetrics(metrics);
+        previewMinSize = in.readInt();
+        classifyThreshold = in.readDouble();
+        classifyConfidence = in.readDouble();
+        tilesX = in.readInt();
+        tilesY = in.readInt();
+        final String aggregate = in.readUTF();
+        try {
+            tileAggregate = TiledScore.Aggregate.valueOf(aggregate);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown tile aggregate " + aggregate);
+        }
+        tilePercentile = in.readDouble();
+        groupingEnabled = in.readBoolean();
+        scoreCacheEnabled = in.readBoolean();
+        scoreCacheHashContent = in.readBoolean();
+    }
+}
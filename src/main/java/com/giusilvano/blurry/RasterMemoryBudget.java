@@ -0,0 +1,71 @@
+package com.giusilvano.blurry;
+
+/**
+ * Limits the total bytes of decoded raster held in memory at the same time by all the processing threads.
+ *
+ * <p>Before decoding an image a thread reserves the raster bytes it's going to need, waiting if the budget is
+ * exhausted, and releases them once the image has been scored. A single image larger than the whole budget is let
+ * through when nothing else is in flight, otherwise it would wait forever.
+ */
+public class RasterMemoryBudget {
+
+    private final long budgetBytes;
+    private long inFlightBytes = 0;
+    private long maxInFlightBytes = 0;
+
+    public RasterMemoryBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns a budget that never makes anyone wait.
+     */
+    public static RasterMemoryBudget unlimited() {
+        return new RasterMemoryBudget(Long.MAX_VALUE);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    /**
+     * Returns the most bytes that have been reserved at the same time.
+     */
+    public synchronized long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    /**
+     * Reserves the given bytes, waiting until there is enough room in the budget.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (inFlightBytes > 0 && inFlightBytes + bytes > budgetBytes) {
+            wait();
+        }
+        inFlightBytes += bytes;
+        maxInFlightBytes = Math.max(maxInFlightBytes, inFlightBytes);
+    }
+
+    /**
+     * Changes a previous reservation to the actual bytes used, without waiting: the raster is already in memory.
+     */
+    public synchronized void adjust(long reservedBytes, long actualBytes) {
+        inFlightBytes += actualBytes - reservedBytes;
+        maxInFlightBytes = Math.max(maxInFlightBytes, inFlightBytes);
+        if (actualBytes < reservedBytes) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Gives back bytes previously reserved.
+     */
+    public synchronized void release(long bytes) {
+        inFlightBytes -= bytes;
+        notifyAll();
+    }
+}
@@ -0,0 +1,164 @@
+package com.giusilvano.blurry;
+
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps the images decoded and scored, to decode the next images into them instead of allocating new ones.
+ *
+ * <p>Images are reused only for images with the same type and dimensions, that is always the case for the photos of
+ * the same camera. The idle images are bounded in bytes: when the bound is exceeded, the images of the least recently
+ * used dimensions are dropped.
+ *
+ * <p>The pool is shared by all the threads: images are taken by the decode threads and given back by the score
+ * threads.
+ */
+public class RasterPool {
+
+    /**
+     * Type and dimensions of the images that can be reused for each other.
+     */
+    private static class Key {
+        final ImageTypeSpecifier imageType;
+        final int width;
+        final int height;
+
+        Key(ImageTypeSpecifier imageType, int width, int height) {
+            this.imageType = imageType;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return width == other.width && height == other.height && imageType.equals(other.imageType);
+        }
+
+        @Override
+        public int hashCode() {
+            return (imageType.hashCode() * 31 + width) * 31 + height;
+        }
+    }
+
+    private final long maxIdleBytes;
+    // In access order, so the first are the least recently used
+    private final Map<Key, ArrayDeque<BufferedImage>> idleImages = new LinkedHashMap<>(16, 0.75f, true);
+    // The key of each image handed out, to give it back to the right bucket; images never given back are forgotten
+    private final Map<BufferedImage, Key> keys = new WeakHashMap<>();
+    private long idleBytes = 0;
+    private long reused = 0;
+    private long created = 0;
+
+    /**
+     * @param maxIdleBytes maximum bytes of raster kept in the pool while not used; 0 disables the pool
+     */
+    public RasterPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * Returns a pool that never keeps anything.
+     */
+    public static RasterPool disabled() {
+        return new RasterPool(0);
+    }
+
+    /**
+     * Returns an image of the given type and dimensions. A reused image still holds the samples of the previous one:
+     * it is not cleared because images are reused only with the same dimensions, and the decoders write all of them.
+     */
+    public BufferedImage acquire(ImageTypeSpecifier imageType, int width, int height) {
+        final Key key = new Key(imageType, width, height);
+        BufferedImage image = null;
+        synchronized (this) {
+            final ArrayDeque<BufferedImage> images = idleImages.get(key);
+            if (images != null && !images.isEmpty()) {
+                image = images.pop();
+                idleBytes -= getBytes(image);
+                reused++;
+            } else {
+                created++;
+            }
+        }
+        if (image == null) {
+            image = imageType.createBufferedImage(width, height);
+        }
+        if (maxIdleBytes > 0) {
+            synchronized (this) {
+                keys.put(image, key);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Gives back an image taken from the pool, that must not be used anymore. Images not taken from the pool are
+     * ignored.
+     */
+    public synchronized void release(BufferedImage image) {
+        final Key key = keys.remove(image);
+        if (key == null) {
+            return;
+        }
+        final long bytes = getBytes(image);
+        if (bytes > maxIdleBytes) {
+            return;
+        }
+        // Make room dropping the images of the least recently used dimensions
+        final Iterator<ArrayDeque<BufferedImage>> iterator = idleImages.values().iterator();
+        while (idleBytes + bytes > maxIdleBytes && iterator.hasNext()) {
+            final ArrayDeque<BufferedImage> images = iterator.next();
+            while (idleBytes + bytes > maxIdleBytes && !images.isEmpty()) {
+                idleBytes -= getBytes(images.removeLast());
+            }
+            if (images.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        idleImages.computeIfAbsent(key, k -> new ArrayDeque<>()).push(image);
+        idleBytes += bytes;
+    }
+
+    /**
+     * Gives back the images of a sampled image, that must not be used anymore.
+     */
+    public void release(SampledImage sampledImage) {
+        release(sampledImage.rowsImage);
+        if (sampledImage.columnsImage != sampledImage.rowsImage) {
+            release(sampledImage.columnsImage);
+        }
+    }
+
+    /**
+     * Returns how many images have been reused instead of created.
+     */
+    public synchronized long getReusedCount() {
+        return reused;
+    }
+
+    /**
+     * Returns how many images have been created because there were no idle ones to reuse.
+     */
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    private static long getBytes(BufferedImage image) {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+}
@@ -0,0 +1,275 @@
+package com.giusilvano.blurry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Processes images distributing their decoding and scoring among {@link RemoteWorker}s, processes possibly running
+ * on other machines, that connect to this one.
+ *
+ * <p>The coordinator walks the paths and hands out the files in batches to the workers, that read them from the
+ * storage they share with the coordinator and send back the result of each image. Renaming, the journal, the cache,
+ * the results and the progress stay here, in the rename stage of a local {@link ProcessingPipeline}. Workers can
+ * connect and leave at any time: when a worker is lost, the images of its batch whose results haven't been received
+ * are handed out again to the others, up to {@link #MAX_ATTEMPTS} times. A worker that sends no result for
+ * {@link ProcessingSettings#getWorkerResultTimeoutMillis} is lost too, as it may be hung or unreachable without its
+ * connection being closed.
+ *
+ * <p>The protocol runs over TCP, encoded with DataOutputStream. The worker sends {@link #MAGIC}, {@link #VERSION} and
+ * its number of threads, and the coordinator replies with its scoring settings. Then the coordinator sends a batch, as
+ * the number of files followed by the index in the batch and the path of each file, the worker sends a result for
+ * each file, in any order, as its index followed by {@link ImageProcessor#writeResult}, and so on. Results are matched
+ * by index, as the same path can be found twice. A batch of 0 files tells the worker that there's no more work.
+ */
+public class RemoteCoordinator {
+
+    static final int MAGIC = 0x426C7572;
+    static final int VERSION = 3;
+
+    // Times an image is handed out before giving up, if the workers processing it are lost
+    private static final int MAX_ATTEMPTS = 3;
+    // Files in a batch for each thread of the worker, so its threads don't wait while the next batch is sent
+    private static final int BATCH_FILES_PER_THREAD = 4;
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    // How long a connection can wait before introducing itself as a worker, so it can't hold the end of the processing
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * A file to process, with the times it has been handed out.
+     */
+    private static class WorkUnit {
+        final File file;
+        int attempts = 0;
+
+        WorkUnit(File file) {
+            this.file = file;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final ProcessingPipeline pipeline;
+    private final BlockingQueue<WorkUnit> pending = new LinkedBlockingQueue<>();
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private PathsProcessor.processingProgress progress;
+    private ProcessingSettings settings;
+    // Files found whose result hasn't been received yet
+    private int unfinished = 0;
+    private boolean discoveryCompleted = false;
+
+    /**
+     * @param serverSocket where the workers connect, already bound; it's closed when the processing is over
+     * @param pipeline the pipeline that renames the images, not started yet
+     */
+    public RemoteCoordinator(ServerSocket serverSocket, ProcessingPipeline pipeline) {
+        this.serverSocket = serverSocket;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Processes all the files found by the finder in the given paths, returning when all of them are done.
+     *
+     * <p>The discovery runs on the calling thread, while the images already found are handed out to the workers.
+     */
+    public void process(ImageFilesFinder finder, List<String> paths, ProcessingSettings settings,
+                        PathsProcessor.processingProgress progress) throws InterruptedException {
+        this.settings = settings;
+        this.progress = progress;
+        pipeline.start(progress);
+        final Thread acceptingThread = new Thread(this::acceptWorkers, "blurry-coordinator");
+        acceptingThread.setDaemon(true);
+        acceptingThread.start();
+        try {
+            try {
+                finder.find(paths, file -> {
+                    progress.fileFound();
+                    synchronized (this) {
+                        unfinished++;
+                    }
+                    pending.put(new WorkUnit(file));
+                });
+            } finally {
+                synchronized (this) {
+                    discoveryCompleted = true;
+                    notifyAll();
+                }
+                progress.discoveryCompleted();
+            }
+            synchronized (this) {
+                while (!isFinished()) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            closeServerSocket();
+            synchronized (workerThreads) {
+                for (final Thread thread : workerThreads) {
+                    thread.interrupt();
+                }
+            }
+            pipeline.cancel();
+            throw e;
+        }
+        closeServerSocket();
+        acceptingThread.join();
+        // All the results have been received: the threads serving the workers are telling them there's no more work
+        synchronized (workerThreads) {
+            for (final Thread thread : workerThreads) {
+                thread.join();
+            }
+        }
+        pipeline.finish();
+    }
+
+    private synchronized boolean isFinished() {
+        return discoveryCompleted && unfinished == 0;
+    }
+
+    private synchronized void finished() {
+        unfinished--;
+        notifyAll();
+    }
+
+    private void closeServerSocket() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * The loop of the thread accepting the workers, that starts a thread to serve each of them.
+     */
+    private void acceptWorkers() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                break;
+            }
+            final Thread thread = new Thread(() -> serveWorker(socket), "blurry-coordinator-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            synchronized (workerThreads) {
+                workerThreads.add(thread);
+            }
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands out batches of files to a worker and passes their results to the pipeline, until all the files are done
+     * or the worker is lost.
+     */
+    private void serveWorker(Socket socket) {
+        final String worker = socket.getRemoteSocketAddress().toString();
+        // The files handed out to the worker, by index in their batch, whose result hasn't been received yet
+        final Map<Integer, WorkUnit> inFlight = new HashMap<>();
+        boolean connected = false;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // Not a worker of this version
+                return;
+            }
+            final int threads = in.readInt();
+            // Only the results are read from now on: the timeout bounds the wait for the next one
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, settings.getWorkerResultTimeoutMillis()));
+            socket.setKeepAlive(true);
+            settings.writeScoringSettings(out);
+            out.flush();
+            connected = true;
+            progress.workerConnected(worker, threads);
+
+            final int maxBatchSize = Math.max(1, threads * BATCH_FILES_PER_THREAD);
+            final List<WorkUnit> batch = new ArrayList<>(maxBatchSize);
+            while (true) {
+                final WorkUnit first = pending.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (isFinished()) {
+                        break;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, maxBatchSize - 1);
+                out.writeInt(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    final WorkUnit unit = batch.get(i);
+                    unit.attempts++;
+                    inFlight.put(i, unit);
+                    out.writeInt(i);
+                    out.writeUTF(unit.file.getPath());
+                }
+                out.flush();
+                batch.clear();
+
+                while (!inFlight.isEmpty()) {
+                    final int index = in.readInt();
+                    final WorkUnit unit = inFlight.get(index);
+                    if (unit == null) {
+                        throw new IOException("Result of a file never handed out, or already received: " + index);
+                    }
+                    final ImageProcessor image = pipeline.newImageProcessor(unit.file);
+                    image.readResult(in);
+                    // Only once the whole result has been read, or the file wouldn't be handed out again if the worker
+                    // is lost while sending it
+                    inFlight.remove(index);
+                    pipeline.submitScored(image);
+                    finished();
+                }
+            }
+            out.writeInt(0);
+            out.flush();
+        } catch (IOException e) {
+            if (connected) {
+                progress.workerLost(worker, inFlight.size());
+            }
+        } catch (InterruptedException e) {
+            // The processing has been cancelled
+            return;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+        try {
+            handOutAgain(inFlight.values());
+        } catch (InterruptedException e) {
+            // The processing has been cancelled
+        }
+    }
+
+    /**
+     * Puts back in the queue the files of a lost worker, or ends their processing with a failure if they have
+     * already been handed out too many times.
+     */
+    private void handOutAgain(Iterable<WorkUnit> units) throws InterruptedException {
+        for (final WorkUnit unit : units) {
+            if (unit.attempts < MAX_ATTEMPTS) {
+                pending.put(unit);
+            } else {
+                final ImageProcessor image = pipeline.newImageProcessor(unit.file);
+                image.fail(new IOException(String.format("All the %d workers processing the image were lost", unit.attempts)));
+                pipeline.submitScored(image);
+                finished();
+            }
+        }
+    }
+}
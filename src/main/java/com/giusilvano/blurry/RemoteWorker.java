@@ -0,0 +1,140 @@
+package com.giusilvano.blurry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes and scores the images handed out by a {@link RemoteCoordinator}, reading them from the storage shared with
+ * it, and sends back the result of each image as soon as it's ready.
+ *
+ * <p>The images of a batch are processed by a pool of threads, with a memory budget and a raster pool like the ones
+ * of a local pipeline. Renaming, the results and the progress are left to the coordinator; the score cache, if
+ * enabled by the coordinator, is only looked up.
+ */
+public class RemoteWorker {
+
+    /**
+     * A failure that happened in a worker, whose cause can only be described.
+     */
+    public static class RemoteFailureException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        // The simple name of the class of the original exception
+        final String causeName;
+
+        RemoteFailureException(String causeName, String message) {
+            super(message);
+            this.causeName = causeName;
+        }
+    }
+
+    private final ProcessingSettings settings;
+
+    /**
+     * @param settings where the number of threads and the memory limits are taken from: the scoring settings are
+     *                 the ones of the coordinator
+     */
+    public RemoteWorker(ProcessingSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Connects to the coordinator and processes the images it hands out, until it has no more.
+     *
+     * @return the number of images processed
+     * @throws IOException if the connection fails, or is closed by the coordinator before the end
+     */
+    public int run(String host, int port) throws IOException, InterruptedException {
+        final int threads = settings.getScoreThreads();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "blurry-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger processedImages = new AtomicInteger();
+        try (final Socket socket = new Socket(host, port)) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(RemoteCoordinator.MAGIC);
+            out.writeInt(RemoteCoordinator.VERSION);
+            out.writeInt(threads);
+            out.flush();
+
+            // Images are scored as asked by the coordinator, in memory as allowed here
+            final ProcessingSettings scoringSettings = new ProcessingSettings()
+                    .setParallelScoreThresholdPixels(settings.getParallelScoreThresholdPixels());
+            scoringSettings.readScoringSettings(in);
+            final RasterMemoryBudget budget = new RasterMemoryBudget(settings.getMemoryBudgetBytes());
+            final RasterPool pool = new RasterPool(settings.getRasterPoolBytes());
+            final ScoreCache cache = scoringSettings.isScoreCacheEnabled() ? new ScoreCache(scoringSettings.isScoreCacheHashContent()) : null;
+
+            while (true) {
+                final int batchSize;
+                try {
+                    batchSize = in.readInt();
+                } catch (EOFException e) {
+                    throw new IOException("Connection closed by the coordinator");
+                }
+                if (batchSize == 0) {
+                    // No more images
+                    break;
+                }
+                for (int i = 0; i < batchSize; i++) {
+                    final int index = in.readInt();
+                    final String path = in.readUTF();
+                    executor.execute(() -> {
+                        final ImageProcessor image = new ImageProcessor(new File(path), scoringSettings, null, cache);
+                        try {
+                            try {
+                                if (image.decode(budget, pool)) {
+                                    image.score(budget, pool);
+                                }
+                            } catch (InterruptedException e) {
+                                // Stopped
+                                return;
+                            } catch (Throwable t) {
+                                // E.g. an OutOfMemoryError: the coordinator must get a result anyway, or it would wait
+                                // for it forever
+                                image.fail(t);
+                                image.discard(budget, pool);
+                            }
+                            synchronized (out) {
+                                out.writeInt(index);
+                                image.writeResult(out);
+                                out.flush();
+                            }
+                            processedImages.incrementAndGet();
+                        } catch (IOException e) {
+                            // The connection is lost: the coordinator will hand out the image again
+                        } catch (Throwable t) {
+                            // The result may have been sent only in part: drop the connection, so the coordinator
+                            // hands out the batch again instead of reading a broken stream
+                            closeQuietly(socket);
+                        }
+                    });
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        return processedImages.get();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.giusilvano.blurry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Journals the renames of the image files, so they can be undone without looking for scores in the filenames.
+ *
+ * <p>Each directory containing renamed images gets an append-only journal file, with a line for each rename:
+ * <pre>originalFilename TAB scoredFilename</pre>
+ * Renames are journaled a batch at a time, with a single write for each directory forced to the storage, before the
+ * files are renamed: if the journal can't be written, the files aren't renamed. A rename that then fails gets a line
+ * with a third field, that cancels it. Tabs, newlines and backslashes in the filenames are escaped.
+ *
+ * <p>After a crash the journal may list renames that never happened: replaying it, they are recognized because the
+ * scored file doesn't exist, and skipped. The journal is replayed backwards, so files renamed in more runs get back
+ * their original names, and it's deleted when all its renames have been undone.
+ */
+public class RenameJournal {
+
+    public static final String JOURNAL_FILENAME = ".blurry-renames";
+
+    private static final String CANCELLED = "x";
+
+    /**
+     * A file and the name it gets, in the same directory.
+     */
+    public static class Rename {
+        final File file;
+        final File renamedFile;
+
+        public Rename(File file, File renamedFile) {
+            this.file = file;
+            this.renamedFile = renamedFile;
+        }
+    }
+
+    /**
+     * Receives the renames that can't be undone.
+     */
+    public interface FailureHandler {
+        void failed(File scoredFile, Exception cause);
+    }
+
+    /**
+     * Appends the renames to the journals of their directories, before they are done.
+     */
+    public static synchronized void append(List<Rename> renames) throws IOException {
+        write(renames, false);
+    }
+
+    /**
+     * Appends to the journals the cancellation of renames previously appended, that failed.
+     */
+    public static synchronized void cancel(List<Rename> renames) throws IOException {
+        write(renames, true);
+    }
+
+    /**
+     * Returns true if the directory has a journal.
+     */
+    public static boolean exists(File directory) {
+        return new File(directory, JOURNAL_FILENAME).isFile();
+    }
+
+    /**
+     * Undoes the renames in the journal of the directory, if there's one.
+     *
+     * @param failureHandler receives the files that can't get back their names, that are kept in the journal
+     * @return the number of files renamed back, or -1 if the directory has no journal
+     */
+    public static synchronized int replay(File directory, FailureHandler failureHandler) throws IOException {
+        final File journalFile = new File(directory, JOURNAL_FILENAME);
+        if (!journalFile.isFile()) {
+            return -1;
+        }
+        final List<String[]> entries = read(journalFile);
+        final List<String[]> failedEntries = new ArrayList<>();
+        // A file renamed in more runs is counted once, when it gets back its original name
+        final Set<String> scoredFilenames = new HashSet<>();
+        for (final String[] entry : entries) {
+            scoredFilenames.add(entry[1]);
+        }
+        int restored = 0;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            final String[] entry = entries.get(i);
+            final File scoredFile = new File(directory, entry[1]);
+            if (!scoredFile.exists()) {
+                // Never renamed because of a crash, or already undone
+                continue;
+            }
+            try {
+                FileRenamer.move(scoredFile, new File(directory, entry[0]));
+                if (!scoredFilenames.contains(entry[0])) {
+                    restored++;
+                }
+            } catch (FileRenamer.CantRenameException | IOException e) {
+                failedEntries.add(0, entry);
+                failureHandler.failed(scoredFile, e);
+            }
+        }
+        if (failedEntries.isEmpty()) {
+            Files.delete(journalFile.toPath());
+        } else {
+            rewrite(journalFile, failedEntries);
+        }
+        return restored;
+    }
+
+    private static void write(List<Rename> renames, boolean cancelled) throws IOException {
+        final Map<File, StringBuilder> linesByDirectory = new LinkedHashMap<>();
+        for (final Rename rename : renames) {
+            final StringBuilder lines = linesByDirectory.computeIfAbsent(rename.file.getAbsoluteFile().getParentFile(), d -> new StringBuilder());
+            lines.append(formatLine(rename.file.getName(), rename.renamedFile.getName(), cancelled));
+        }
+        for (final Map.Entry<File, StringBuilder> entry : linesByDirectory.entrySet()) {
+            // On the storage before the files are moved, or a crash could leave renames that aren't in the journal
+            AppendOnlyFile.append(new File(entry.getKey(), JOURNAL_FILENAME), entry.getValue().toString(), true);
+        }
+    }
+
+    /**
+     * Returns the renames in the journal, without the cancelled ones.
+     */
+    private static List<String[]> read(File journalFile) throws IOException {
+        final List<String[]> entries = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", -1);
+                if (fields.length < 2 || fields[0].isEmpty() || fields[1].isEmpty()) {
+                    // A line truncated by a crash
+                    continue;
+                }
+                final String[] entry = {AppendOnlyFile.unescape(fields[0]), AppendOnlyFile.unescape(fields[1])};
+                if (fields.length > 2 && fields[2].equals(CANCELLED)) {
+                    removeLast(entries, entry);
+                } else if (fields.length == 2) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static void removeLast(List<String[]> entries, String[] entry) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.get(i)[0].equals(entry[0]) && entries.get(i)[1].equals(entry[1])) {
+                entries.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replaces the journal with one listing only the given renames.
+     *
+     * <p>The new journal is on the storage before it replaces the old one, or a crash could leave an empty journal in
+     * its place.
+     */
+    private static void rewrite(File journalFile, List<String[]> entries) throws IOException {
+        final File tmpFile = new File(journalFile.getPath() + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(tmpFile)) {
+            final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            for (final String[] entry : entries) {
+                writer.write(formatLine(entry[0], entry[1], false));
+            }
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        Files.move(tmpFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        AppendOnlyFile.forceDirectory(journalFile.getAbsoluteFile().getParentFile());
+    }
+
+    private static String formatLine(String filename, String scoredFilename, boolean cancelled) {
+        return AppendOnlyFile.escape(filename) + "\t" + AppendOnlyFile.escape(scoredFilename) + (cancelled ? "\t" + CANCELLED : "") + "\n";
+    }
+}
@@ -0,0 +1,221 @@
+package com.giusilvano.blurry;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes the result of each processed image in a file, as a CSV or JSON Lines record.
+ *
+ * <p>Each record has the path of the image, its score and the metric of the score, its dimensions, the fraction of
+ * its rows and columns that have been scanned, the time spent to decode and to score it and how the processing ended,
+ * that is sharp or blurry for the images classified against a threshold. When more metrics are computed, the record
+ * has the scores of the others too. Records are queued by the processing threads and written by a single thread of
+ * this class through a buffer, so the processing never waits for the disk unless the queue is full.
+ */
+public class ResultsWriter implements Closeable {
+
+    public enum Format {
+        CSV,
+        JSONL;
+
+        /**
+         * Returns the format matching the extension of the file, or null if it's none of .csv, .jsonl and .ndjson.
+         */
+        public static Format forFile(File file) {
+            final String name = file.getName().toLowerCase(Locale.ROOT);
+            if (name.endsWith(".csv")) {
+                return CSV;
+            }
+            if (name.endsWith(".jsonl") || name.endsWith(".ndjson")) {
+                return JSONL;
+            }
+            return null;
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final String CSV_HEADER = "path,score,metric,width,height,coverage,decode_ms,score_ms,status";
+    // Marks the end of the records in the queue
+    private static final ImageProcessor END = new ImageProcessor(null, 0, null);
+
+    private final Format format;
+    private final List<SharpnessMetric> metrics;
+    private final Writer writer;
+    private final BlockingQueue<ImageProcessor> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread thread;
+    private volatile IOException writeException;
+
+    /**
+     * Creates the file, overwriting it if it exists, and starts the writing thread.
+     */
+    public ResultsWriter(File file, Format format) throws IOException {
+        this(file, format, Collections.singletonList(SharpnessMetric.CONTRAST));
+    }
+
+    /**
+     * Like {@link #ResultsWriter(File, Format)}, for images scored with the given metrics: the score is the one of
+     * the first metric, and the CSV has a column for each of the others.
+     */
+    public ResultsWriter(File file, Format format, List<SharpnessMetric> metrics) throws IOException {
+        this.format = format;
+        this.metrics = metrics;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 64 * 1024);
+        if (format == Format.CSV) {
+            final StringBuilder header = new StringBuilder(CSV_HEADER);
+            for (int i = 1; i < metrics.size(); i++) {
+                header.append(',').append(metrics.get(i).getMetricName());
+            }
+            writer.write(header.append('\n').toString());
+        }
+        thread = new Thread(this::writeRecords, "blurry-results-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues the record of an image whose processing is over, waiting if the queue is full.
+     */
+    public void write(ImageProcessor image) throws InterruptedException {
+        queue.put(image);
+    }
+
+    /**
+     * Writes all the queued records and closes the file.
+     *
+     * @throws IOException if a record couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+        if (writeException != null) {
+            throw writeException;
+        }
+    }
+
+    private void writeRecords() {
+        try {
+            while (true) {
+                final ImageProcessor image = queue.take();
+                if (image == END) {
+                    break;
+                }
+                if (writeException == null) {
+                    try {
+                        writer.write(format == Format.CSV ? formatCsv(image) : formatJson(image));
+                    } catch (IOException e) {
+                        // Keep emptying the queue, so the processing doesn't get stuck
+                        writeException = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // The processing has been cancelled
+        }
+    }
+
+    private static boolean hasScore(ImageProcessor image) {
+        final ImageProcessor.Outcome outcome = image.getOutcome();
+        return outcome == ImageProcessor.Outcome.SUCCEEDED
+                || outcome == ImageProcessor.Outcome.SUCCEEDED_BUT_CANT_RENAME
+                || outcome == ImageProcessor.Outcome.SCORE_REUSED
+                || outcome == ImageProcessor.Outcome.CLASSIFIED;
+    }
+
+    private static String getStatus(ImageProcessor image) {
+        final ContrastClassification classification = image.getClassification();
+        return (classification != null ? classification.getLabel().name() : image.getOutcome().name()).toLowerCase(Locale.ROOT);
+    }
+
+    String formatCsv(ImageProcessor image) {
+        final String path = image.getResultFile().getPath();
+        final boolean quote = path.indexOf(',') >= 0 || path.indexOf('"') >= 0 || path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0;
+        final StringBuilder sb = new StringBuilder();
+        sb.append(quote ? '"' + path.replace("\"", "\"\"") + '"' : path).append(',')
+                .append(hasScore(image) ? formatScore(image.getScore(), "") : "").append(',')
+                .append(hasScore(image) ? metrics.get(0).getMetricName() : "").append(',')
+                .append(formatDimension(image.getWidth())).append(',')
+                .append(formatDimension(image.getHeight())).append(',')
+                .append(image.getSampleCoverage() > 0 ? formatScore(image.getSampleCoverage(), "") : "").append(',')
+                .append(formatMillis(image.getDecodeNanos())).append(',')
+                .append(formatMillis(image.getScoreNanos())).append(',')
+                .append(getStatus(image));
+        final double[] metricScores = image.getMetricScores();
+        for (int i = 1; i < metrics.size(); i++) {
+            sb.append(',').append(metricScores != null ? formatScore(metricScores[i], "") : "");
+        }
+        return sb.append('\n').toString();
+    }
+
+    String formatJson(ImageProcessor image) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"path\":").append(jsonString(image.getResultFile().getPath()))
+                .append(",\"score\":").append(hasScore(image) ? formatScore(image.getScore(), "null") : "null")
+                .append(",\"metric\":").append(hasScore(image) ? jsonString(metrics.get(0).getMetricName()) : "null")
+                .append(",\"width\":").append(image.getWidth() > 0 ? image.getWidth() : "null")
+                .append(",\"height\":").append(image.getHeight() > 0 ? image.getHeight() : "null")
+                .append(",\"coverage\":").append(image.getSampleCoverage() > 0 ? formatScore(image.getSampleCoverage(), "null") : "null")
+                .append(",\"decode_ms\":").append(formatMillis(image.getDecodeNanos()))
+                .append(",\"score_ms\":").append(formatMillis(image.getScoreNanos()))
+                .append(",\"status\":\"").append(getStatus(image)).append('"');
+        if (metrics.size() > 1) {
+            // The scores of the other metrics
+            final double[] metricScores = image.getMetricScores();
+            sb.append(",\"scores\":{");
+            for (int i = 1; i < metrics.size(); i++) {
+                sb.append(i > 1 ? "," : "").append(jsonString(metrics.get(i).getMetricName())).append(':')
+                        .append(metricScores != null ? formatScore(metricScores[i], "null") : "null");
+            }
+            sb.append('}');
+        }
+        return sb.append("}\n").toString();
+    }
+
+    /**
+     * Formats the score, or returns the given missing value if it's NaN or infinite (e.g. the contrast of an image
+     * without any pair of pixels), that JSON can't represent.
+     */
+    private static String formatScore(double score, String missing) {
+        return Double.isFinite(score) ? String.format(Locale.ROOT, "%.6f", score) : missing;
+    }
+
+    private static String formatDimension(int dimension) {
+        return dimension > 0 ? Integer.toString(dimension) : "";
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String jsonString(String str) {
+        final StringBuilder sb = new StringBuilder(str.length() + 2).append('"');
+        for (int i = 0; i < str.length(); i++) {
+            final char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,73 @@
+package com.giusilvano.blurry;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The rows and columns of pixels of an image that are involved in the contrast evaluation.
+ *
+ * <p>The sampled rows and columns can be stored in two compact images (one with a row for each horizontal stripe of
+ * the grid, the other with a column for each vertical stripe) or can be read directly from the full image.
+ */
+public class SampledImage {
+
+    public final StripeGrid grid;
+
+    final BufferedImage rowsImage;
+    final int firstRowY;
+    final int rowsStep;
+
+    final BufferedImage columnsImage;
+    final int firstColumnX;
+    final int columnsStep;
+
+    SampledImage(StripeGrid grid,
+                 BufferedImage rowsImage, int firstRowY, int rowsStep,
+                 BufferedImage columnsImage, int firstColumnX, int columnsStep) {
+        this.grid = grid;
+        this.rowsImage = rowsImage;
+        this.firstRowY = firstRowY;
+        this.rowsStep = rowsStep;
+        this.columnsImage = columnsImage;
+        this.firstColumnX = firstColumnX;
+        this.columnsStep = columnsStep;
+    }
+
+    /**
+     * Returns a SampledImage reading the rows and columns of the grid directly from the provided full image.
+     */
+    public static SampledImage fromFullImage(BufferedImage bufferedImage, float sampleCoverage) {
+        return fromFullImage(bufferedImage, StripeGrid.coverage(sampleCoverage));
+    }
+
+    /**
+     * Like {@link #fromFullImage(BufferedImage, float)}, with the grid chosen by the sizing.
+     */
+    public static SampledImage fromFullImage(BufferedImage bufferedImage, StripeGrid.Sizing sizing) {
+        final StripeGrid grid = sizing.forSize(bufferedImage.getWidth(), bufferedImage.getHeight());
+        return new SampledImage(grid,
+                bufferedImage, grid.getRowY(0), grid.horizontalStripesSize,
+                bufferedImage, grid.getColumnX(0), grid.verticalStripesSize);
+    }
+
+    /**
+     * Returns a SampledImage made of a compact image of the sampled rows and one of the sampled columns.
+     *
+     * @param rowsImage image as wide as the original one, having a row for each horizontal stripe of the grid
+     * @param columnsImage image as high as the original one, having a column for each vertical stripe of the grid
+     */
+    public static SampledImage fromStripes(StripeGrid grid, BufferedImage rowsImage, BufferedImage columnsImage) {
+        return new SampledImage(grid, rowsImage, 0, 1, columnsImage, 0, 1);
+    }
+
+    /**
+     * Returns the number of bytes of raster retained by this sample.
+     */
+    public long getRasterBytes() {
+        final long rowsBytes = getRasterBytes(rowsImage);
+        return columnsImage == rowsImage ? rowsBytes : rowsBytes + getRasterBytes(columnsImage);
+    }
+
+    private static long getRasterBytes(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * image.getColorModel().getPixelSize() / 8;
+    }
+}
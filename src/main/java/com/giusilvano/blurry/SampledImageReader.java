@@ -0,0 +1,403 @@
+package com.giusilvano.blurry;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+
+/**
+ * Decodes images keeping in memory only the rows and columns of pixels needed by the contrast evaluation.
+ *
+ * <p>The image is decoded in a single pass into a destination raster that has no backing pixels: as the decoder
+ * writes the lines of the image, the raster copies the sampled rows and the pixels of the sampled columns in two
+ * compact images, and drops everything else. So a 24 megapixel image needs a few hundred KB of raster instead of
+ * 72 MB, and the decoder skips the copy of the full raster.
+ *
+ * <p>Only the JPEG decoder writes its lines through {@link WritableRaster#setRect}: images of the other formats are
+ * decoded the usual way straight away. If a decoder writes the pixels in any other way anyway, it's stopped at its
+ * first write, and the image is decoded again the usual way.
+ */
+public class SampledImageReader {
+
+    /**
+     * Where the encoded image is read from: opened once to decode the stripes, and again to decode the full image.
+     */
+    private interface ImageSource {
+        /**
+         * @return a new stream at the beginning of the image, or null if it can't be read by ImageIO
+         */
+        ImageInputStream open() throws IOException;
+    }
+
+    /**
+     * Destination raster that captures only the pixels of the grid, and ignores all the others.
+     */
+    private static class StripesCapturingRaster extends WritableRaster {
+
+        private final StripeGrid grid;
+        private final WritableRaster rowsRaster;
+        private final WritableRaster columnsRaster;
+        private final boolean[] capturedLines;
+        private int capturedLinesCount = 0;
+        private Object pixelBuffer;
+
+        StripesCapturingRaster(SampleModel sampleModel, StripeGrid grid, BufferedImage rowsImage, BufferedImage columnsImage) {
+            super(sampleModel, new NoDataBuffer(sampleModel.getDataType()), new Point(0, 0));
+            this.grid = grid;
+            this.rowsRaster = rowsImage.getRaster();
+            this.columnsRaster = columnsImage.getRaster();
+            this.capturedLines = new boolean[grid.height];
+        }
+
+        @Override
+        public void setRect(int dx, int dy, Raster srcRaster) {
+            final int srcMinX = srcRaster.getMinX();
+            final int srcMinY = srcRaster.getMinY();
+            final int srcWidth = srcRaster.getWidth();
+            // Only full lines are expected, anything else is left uncaptured and makes the decoding fall back
+            if (dx + srcMinX != 0 || srcWidth != grid.width) {
+                return;
+            }
+            for (int j = 0; j < srcRaster.getHeight(); j++) {
+                captureLine(dy + srcMinY + j, srcRaster, srcMinX, srcMinY + j);
+            }
+        }
+
+        @Override
+        public void setDataElements(int x, int y, Raster inRaster) {
+            setRect(x, y, inRaster);
+        }
+
+        // The decoders writing a pixel or a sample at a time would run a whole decode for nothing: stop them at once
+
+        @Override
+        public void setDataElements(int x, int y, Object inData) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setDataElements(int x, int y, int w, int h, Object inData) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setPixel(int x, int y, int[] iArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setPixel(int x, int y, float[] fArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setPixel(int x, int y, double[] dArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setPixels(int x, int y, int w, int h, int[] iArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setPixels(int x, int y, int w, int h, float[] fArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setPixels(int x, int y, int w, int h, double[] dArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setSample(int x, int y, int b, int s) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setSample(int x, int y, int b, float s) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setSample(int x, int y, int b, double s) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setSamples(int x, int y, int w, int h, int b, int[] iArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setSamples(int x, int y, int w, int h, int b, float[] fArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public void setSamples(int x, int y, int w, int h, int b, double[] dArray) {
+            throw new NoStorageException();
+        }
+
+        @Override
+        public WritableRaster createWritableChild(int parentX, int parentY, int width, int height, int childMinX, int childMinY, int[] bandList) {
+            if (parentX == 0 && parentY == 0 && width == getWidth() && height == getHeight()
+                    && childMinX == 0 && childMinY == 0 && bandList == null) {
+                return this;
+            }
+            throw new NoStorageException();
+        }
+
+        @Override
+        public DataBuffer getDataBuffer() {
+            // The reader wants to write the pixels directly in the storage (e.g. it casts the DataBuffer to a concrete
+            // type), bypassing setRect
+            throw new NoStorageException();
+        }
+
+        private void captureLine(int y, Raster srcRaster, int srcX, int srcY) {
+            if (y < 0 || y >= grid.height) {
+                return;
+            }
+            // Some decoders (e.g. progressive ones) may write the same line more than once, the last write wins
+            if (!capturedLines[y]) {
+                capturedLines[y] = true;
+                capturedLinesCount++;
+            }
+            // Copy the whole line if it's the center row of a horizontal stripe
+            final int row = y / grid.horizontalStripesSize;
+            if (row < grid.horizontalStripesCount && grid.getRowY(row) == y) {
+                rowsRaster.setDataElements(0, row, srcRaster.createChild(srcX, srcY, grid.width, 1, 0, 0, null));
+            }
+            // Copy the pixel of each vertical stripe center column
+            for (int i = 0; i < grid.verticalStripesCount; i++) {
+                pixelBuffer = srcRaster.getDataElements(srcX + grid.getColumnX(i), srcY, pixelBuffer);
+                columnsRaster.setDataElements(i, y, pixelBuffer);
+            }
+        }
+
+        boolean isComplete() {
+            return capturedLinesCount == grid.height;
+        }
+    }
+
+    /**
+     * Thrown by the capturing raster when the reader tries to use it in a way that needs the storage of the pixels,
+     * so the image must be decoded the usual way.
+     */
+    private static class NoStorageException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NoStorageException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * DataBuffer with no storage: it's never read, because all the writes are intercepted by StripesCapturingRaster.
+     */
+    private static class NoDataBuffer extends DataBuffer {
+
+        NoDataBuffer(int dataType) {
+            super(dataType, 0);
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return 0;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {}
+    }
+
+    /**
+     * Decodes the file keeping only the pixels needed to evaluate its contrast with the given sample coverage.
+     *
+     * @return the sampled image, or null if the file is not an image readable by ImageIO
+     */
+    public static SampledImage read(File file, float sampleCoverage) throws IOException {
+        try {
+            return read(file, sampleCoverage, RasterMemoryBudget.unlimited());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Like {@link #read(File, float)}, but reserves in the budget the raster bytes before decoding them.
+     *
+     * <p>When this method returns a sampled image, exactly {@link SampledImage#getRasterBytes()} bytes are reserved in
+     * the budget, and the caller must release them when done with the image. In all the other cases nothing is left
+     * reserved.
+     */
+    public static SampledImage read(File file, float sampleCoverage, RasterMemoryBudget budget) throws IOException, InterruptedException {
+        return read(file, sampleCoverage, budget, RasterPool.disabled());
+    }
+
+    /**
+     * Like {@link #read(File, float, RasterMemoryBudget)}, but decodes into images taken from the pool, that the
+     * caller should give back with {@link RasterPool#release(SampledImage)} when done with the sampled image.
+     */
+    public static SampledImage read(File file, float sampleCoverage, RasterMemoryBudget budget, RasterPool pool) throws IOException, InterruptedException {
+        return read(file, StripeGrid.coverage(sampleCoverage), budget, pool);
+    }
+
+    /**
+     * Like {@link #read(File, float, RasterMemoryBudget, RasterPool)}, with the grid chosen by the sizing from the
+     * size of the image, read from its header.
+     */
+    public static SampledImage read(File file, StripeGrid.Sizing sizing, RasterMemoryBudget budget, RasterPool pool) throws IOException, InterruptedException {
+        return read(() -> ImageIO.createImageInputStream(file), sizing, budget, pool);
+    }
+
+    /**
+     * Like {@link #read(File, StripeGrid.Sizing, RasterMemoryBudget, RasterPool)}, for the content of a file already
+     * read in memory.
+     */
+    public static SampledImage read(byte[] content, StripeGrid.Sizing sizing, RasterMemoryBudget budget, RasterPool pool) throws IOException, InterruptedException {
+        return read(() -> new ByteArrayImageInputStream(content), sizing, budget, pool);
+    }
+
+    private static SampledImage read(ImageSource source, StripeGrid.Sizing sizing, RasterMemoryBudget budget, RasterPool pool) throws IOException, InterruptedException {
+        try (final ImageInputStream stream = source.open()) {
+            if (stream == null) {
+                return null;
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                final int width = reader.getWidth(0);
+                final int height = reader.getHeight(0);
+                final Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+                if (!imageTypes.hasNext()) {
+                    return null;
+                }
+                final ImageTypeSpecifier imageType = imageTypes.next();
+                if (!capturesStripes(reader)) {
+                    return readFullImage(reader, imageType, sizing, budget, pool);
+                }
+                final StripeGrid grid = sizing.forSize(width, height);
+                final int bitsPerPixel = imageType.getColorModel().getPixelSize();
+
+                final long stripesBytes = ((long) width * grid.horizontalStripesCount + (long) grid.verticalStripesCount * height) * bitsPerPixel / 8;
+                budget.acquire(stripesBytes);
+                final SampledImage sampledImage;
+                try {
+                    sampledImage = readStripes(reader, imageType, grid, pool);
+                } catch (IOException | RuntimeException | Error e) {
+                    budget.release(stripesBytes);
+                    throw e;
+                }
+                if (sampledImage != null) {
+                    budget.adjust(stripesBytes, sampledImage.getRasterBytes());
+                    return sampledImage;
+                }
+                budget.release(stripesBytes);
+            } finally {
+                reader.dispose();
+            }
+        }
+        // The decoder didn't write all the lines through the capturing raster: decode the full image
+        try (final ImageInputStream stream = source.open()) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                final Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+                if (!imageTypes.hasNext()) {
+                    return null;
+                }
+                return readFullImage(reader, imageTypes.next(), sizing, budget, pool);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the reader writes whole lines through {@link WritableRaster#setRect}, so its image can be decoded
+     * into a capturing raster.
+     */
+    private static boolean capturesStripes(ImageReader reader) throws IOException {
+        return "jpeg".equalsIgnoreCase(reader.getFormatName());
+    }
+
+    /**
+     * Returns the sampled image, or null if the reader didn't write all the lines through the capturing raster.
+     */
+    private static SampledImage readStripes(ImageReader reader, ImageTypeSpecifier imageType, StripeGrid grid, RasterPool pool) throws IOException {
+        final BufferedImage rowsImage = pool.acquire(imageType, grid.width, grid.horizontalStripesCount);
+        final BufferedImage columnsImage = pool.acquire(imageType, grid.verticalStripesCount, grid.height);
+
+        final StripesCapturingRaster capturingRaster = new StripesCapturingRaster(imageType.getSampleModel(grid.width, grid.height), grid, rowsImage, columnsImage);
+        final ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(new BufferedImage(imageType.getColorModel(), capturingRaster, false, null));
+        boolean complete = false;
+        try {
+            reader.read(0, param);
+            complete = capturingRaster.isComplete();
+        } catch (NoStorageException e) {
+            // The reader doesn't like a destination without storage
+        } finally {
+            if (!complete) {
+                pool.release(rowsImage);
+                pool.release(columnsImage);
+            }
+        }
+        return complete ? SampledImage.fromStripes(grid, rowsImage, columnsImage) : null;
+    }
+
+    /**
+     * Decodes the full image with the reader, already set on the image, into an image taken from the pool, and samples
+     * it. The bytes of the full raster are reserved in the budget while decoding.
+     */
+    private static SampledImage readFullImage(ImageReader reader, ImageTypeSpecifier imageType, StripeGrid.Sizing sizing,
+                                              RasterMemoryBudget budget, RasterPool pool) throws IOException, InterruptedException {
+        final int width = reader.getWidth(0);
+        final int height = reader.getHeight(0);
+        final long fullRasterBytes = (long) width * height * imageType.getColorModel().getPixelSize() / 8;
+        budget.acquire(fullRasterBytes);
+        final BufferedImage bufferedImage;
+        try {
+            final BufferedImage destination = pool.acquire(imageType, width, height);
+            boolean decoded = false;
+            try {
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(destination);
+                bufferedImage = reader.read(0, param);
+                decoded = true;
+            } finally {
+                if (!decoded) {
+                    pool.release(destination);
+                }
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            budget.release(fullRasterBytes);
+            throw e;
+        }
+        final SampledImage sampledImage = SampledImage.fromFullImage(bufferedImage, sizing);
+        budget.adjust(fullRasterBytes, sampledImage.getRasterBytes());
+        return sampledImage;
+    }
+}
@@ -0,0 +1,244 @@
+package com.giusilvano.blurry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the scores computed in previous runs, so unchanged images don't need to be decoded and scored again.
+ *
+ * <p>Each directory containing scored images gets an append-only index file, with a line for each score computed:
+ * <pre>size TAB lastModified TAB sampleCoverage TAB algorithm TAB contentHash TAB score TAB filename</pre>
+ * A score is reused only if size, last modified time, sample coverage and algorithm are unchanged and, when content
+ * hashing is enabled, also the content hash. When an image is scored again the new line is appended and the last one
+ * wins; the file is compacted when it's loaded and more than half of its lines are obsolete. Lines truncated by a
+ * crash are ignored. Filenames are escaped like in the {@link RenameJournal}.
+ *
+ * <p>Indexes are loaded lazily, the first time an image of their directory is looked up, and only the most recently
+ * used ones are kept in memory.
+ */
+public class ScoreCache {
+
+    public static final String INDEX_FILENAME = ".blurry-scores";
+
+    private static final int MAX_LOADED_DIRECTORIES = 64;
+    private static final String NO_HASH = "-";
+
+    /**
+     * The fingerprint of an image file and the parameters used to score it.
+     */
+    public static class Key {
+        final long size;
+        final long lastModified;
+        final float sampleCoverage;
+        final String algorithm;
+        final String contentHash;
+
+        Key(long size, long lastModified, float sampleCoverage, String algorithm, String contentHash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sampleCoverage = sampleCoverage;
+            this.algorithm = algorithm;
+            this.contentHash = contentHash;
+        }
+
+        boolean matches(Key other) {
+            return size == other.size
+                    && lastModified == other.lastModified
+                    && sampleCoverage == other.sampleCoverage
+                    && algorithm.equals(other.algorithm)
+                    && contentHash.equals(other.contentHash);
+        }
+    }
+
+    private static class Entry {
+        final Key key;
+        final double score;
+
+        Entry(Key key, double score) {
+            this.key = key;
+            this.score = score;
+        }
+    }
+
+    /**
+     * The index of a directory, loaded in memory.
+     */
+    private static class DirectoryIndex {
+        final File indexFile;
+        final Map<String, Entry> entries = new HashMap<>();
+        private boolean loaded = false;
+
+        DirectoryIndex(File directory) {
+            this.indexFile = new File(directory, INDEX_FILENAME);
+        }
+
+        private void ensureLoaded() {
+            if (!loaded) {
+                loaded = true;
+                load();
+            }
+        }
+
+        private void load() {
+            if (!indexFile.isFile()) {
+                return;
+            }
+            int lines = 0;
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    final String[] fields = line.split("\t", 7);
+                    if (fields.length < 7) {
+                        continue;
+                    }
+                    try {
+                        final Key key = new Key(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Float.parseFloat(fields[2]), fields[3], fields[4]);
+                        entries.put(AppendOnlyFile.unescape(fields[6]), new Entry(key, Double.parseDouble(fields[5])));
+                    } catch (NumberFormatException e) {
+                        // Corrupted line, ignore it
+                    }
+                }
+            } catch (IOException e) {
+                entries.clear();
+                return;
+            }
+            if (lines > 2 * entries.size()) {
+                compact();
+            }
+        }
+
+        /**
+         * Rewrites the index file keeping only the last line of each image.
+         */
+        private void compact() {
+            final File tmpFile = new File(indexFile.getPath() + ".tmp");
+            try (final Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+                for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    writer.write(formatLine(entry.getKey(), entry.getValue()));
+                }
+            } catch (IOException e) {
+                tmpFile.delete();
+                return;
+            }
+            try {
+                Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                tmpFile.delete();
+            }
+        }
+
+        synchronized Entry get(String filename) {
+            ensureLoaded();
+            return entries.get(filename);
+        }
+
+        synchronized void append(String filename, Entry entry) throws IOException {
+            ensureLoaded();
+            AppendOnlyFile.append(indexFile, formatLine(filename, entry), false);
+            entries.put(filename, entry);
+        }
+
+        private static String formatLine(String filename, Entry entry) {
+            final Key key = entry.key;
+            return key.size + "\t" + key.lastModified + "\t" + key.sampleCoverage + "\t" + key.algorithm + "\t"
+                    + key.contentHash + "\t" + entry.score + "\t" + AppendOnlyFile.escape(filename) + "\n";
+        }
+    }
+
+    private final boolean hashContent;
+    private final Map<File, DirectoryIndex> loadedIndexes = new LinkedHashMap<File, DirectoryIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, DirectoryIndex> eldest) {
+            return size() > MAX_LOADED_DIRECTORIES;
+        }
+    };
+
+    /**
+     * @param hashContent if true, the content of the files is hashed too, so scores are reused only for files with
+     *                    exactly the same bytes; it costs a full read of each file, but it's still much cheaper than
+     *                    decoding it
+     */
+    public ScoreCache(boolean hashContent) {
+        this.hashContent = hashContent;
+    }
+
+    /**
+     * Returns the fingerprint of the file as it is now, together with the parameters used to score it.
+     */
+    public Key getKey(File file, float sampleCoverage) throws IOException {
+        return getKey(file, sampleCoverage, ImageContrastEvaluation.ALGORITHM);
+    }
+
+    /**
+     * Like {@link #getKey(File, float)}, for scores computed by an algorithm other than the default one.
+     */
+    public Key getKey(File file, float sampleCoverage, String algorithm) throws IOException {
+        final String contentHash = hashContent ? hashContent(file) : NO_HASH;
+        return new Key(file.length(), file.lastModified(), sampleCoverage, algorithm, contentHash);
+    }
+
+    /**
+     * Returns the score previously computed for the file with the given key, or null if there's none.
+     */
+    public Double get(File file, Key key) {
+        final Entry entry = getDirectoryIndex(file).get(file.getName());
+        return entry != null && entry.key.matches(key) ? entry.score : null;
+    }
+
+    /**
+     * Stores the score of a file, whose key has been computed before scoring it.
+     */
+    public void put(File file, Key key, double score) throws IOException {
+        getDirectoryIndex(file).append(file.getName(), new Entry(key, score));
+    }
+
+    private DirectoryIndex getDirectoryIndex(File file) {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        // The index is loaded by its first use, outside of this lock, so other directories don't wait for it
+        synchronized (loadedIndexes) {
+            DirectoryIndex index = loadedIndexes.get(directory);
+            if (index == null) {
+                index = new DirectoryIndex(directory);
+                loadedIndexes.put(directory, index);
+            }
+            return index;
+        }
+    }
+
+    private static String hashContent(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final byte[] buffer = new byte[64 * 1024];
+        try (final InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,25 @@
+package com.giusilvano.blurry;
+
+/**
+ * Computes a sharpness metric of an image in a single pass over the luminances of its sampled rows and columns,
+ * passed a line at a time.
+ *
+ * <p>The luminances of each line are extracted once by {@link ImageContrastEvaluation#getMetricScores} and passed to
+ * the evaluators of all the metrics being computed, so several metrics cost little more than one. An evaluator is
+ * created for each image by {@link SharpnessMetric#newEvaluator}.
+ */
+public interface SharpnessEvaluator {
+
+    /**
+     * Adds the luminances of a sampled row or column, from 0 to 1.
+     *
+     * @param luminances the luminance of each pixel of the line, in order
+     * @param count the number of pixels of the line: the array may be longer
+     */
+    void addLine(double[] luminances, int count);
+
+    /**
+     * Returns the score of the lines added so far.
+     */
+    double getScore();
+}
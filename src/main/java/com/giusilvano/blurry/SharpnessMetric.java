@@ -0,0 +1,168 @@
+package com.giusilvano.blurry;
+
+import java.util.Locale;
+
+/**
+ * The metrics that can score the sharpness of an image.
+ *
+ * <p>Only single rows and columns of pixels are sampled, so the operators that are usually applied to a 2D
+ * neighborhood are applied along the sampled lines: the Laplacian is the second difference of the luminances of three
+ * consecutive pixels, and the Sobel gradient of Tenengrad is the central difference of the pixels before and after.
+ * Scores of different metrics have different scales and are not comparable.
+ */
+public enum SharpnessMetric {
+
+    // The mean absolute luminance difference between consecutive pixels, the original score
+    CONTRAST("contrast", ImageContrastEvaluation.ALGORITHM) {
+        @Override
+        public SharpnessEvaluator newEvaluator() {
+            return new ContrastEvaluator(false);
+        }
+    },
+    // The variance of the Laplacian: sharp edges make it high, smooth gradients keep it near 0
+    LAPLACIAN("laplacian", "laplacian-variance-v1") {
+        @Override
+        public SharpnessEvaluator newEvaluator() {
+            return new LaplacianVarianceEvaluator();
+        }
+    },
+    // The mean squared gradient magnitude, that weighs strong edges more than the contrast
+    TENENGRAD("tenengrad", "tenengrad-v1") {
+        @Override
+        public SharpnessEvaluator newEvaluator() {
+            return new TenengradEvaluator();
+        }
+    },
+    // The contrast divided by the mean luminance, so dark images are not penalized
+    NORMALIZED_CONTRAST("normalized-contrast", "normalized-contrast-v1") {
+        @Override
+        public SharpnessEvaluator newEvaluator() {
+            return new ContrastEvaluator(true);
+        }
+    };
+
+    private final String metricName;
+    private final String algorithm;
+
+    SharpnessMetric(String metricName, String algorithm) {
+        this.metricName = metricName;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Returns the name of the metric in the command line options and in the results.
+     */
+    public String getMetricName() {
+        return metricName;
+    }
+
+    /**
+     * Returns the identifier of the algorithm: change it whenever a change in the evaluator changes the scores.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns a new evaluator, that computes this metric for a single image.
+     */
+    public abstract SharpnessEvaluator newEvaluator();
+
+    /**
+     * Returns the metric with the given name, or null if there's none.
+     */
+    public static SharpnessMetric forName(String metricName) {
+        for (final SharpnessMetric metric : values()) {
+            if (metric.metricName.equals(metricName.trim().toLowerCase(Locale.ROOT))) {
+                return metric;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sums the differences of each line separately and then adds the line sums in order, like
+     * {@link ImageContrastEvaluation#getImageContrastScore(SampledImage)} does, so the score is exactly the same.
+     */
+    private static class ContrastEvaluator implements SharpnessEvaluator {
+        private final boolean normalized;
+        private double sum = 0;
+        private long differences = 0;
+        private double luminancesSum = 0;
+        private long pixels = 0;
+
+        ContrastEvaluator(boolean normalized) {
+            this.normalized = normalized;
+        }
+
+        @Override
+        public void addLine(double[] luminances, int count) {
+            double lineSum = 0;
+            for (int i = 1; i < count; i++) {
+                lineSum += Math.abs(luminances[i] - luminances[i - 1]);
+            }
+            sum += lineSum;
+            differences += count - 1;
+            if (normalized) {
+                for (int i = 0; i < count; i++) {
+                    luminancesSum += luminances[i];
+                }
+                pixels += count;
+            }
+        }
+
+        @Override
+        public double getScore() {
+            final double contrast = sum / differences;
+            if (!normalized) {
+                return contrast;
+            }
+            // A black image has no contrast at all
+            return luminancesSum > 0 ? contrast / (luminancesSum / pixels) : 0;
+        }
+    }
+
+    private static class LaplacianVarianceEvaluator implements SharpnessEvaluator {
+        private double sum = 0;
+        private double squaresSum = 0;
+        private long count = 0;
+
+        @Override
+        public void addLine(double[] luminances, int count) {
+            for (int i = 1; i < count - 1; i++) {
+                final double laplacian = luminances[i - 1] - 2 * luminances[i] + luminances[i + 1];
+                sum += laplacian;
+                squaresSum += laplacian * laplacian;
+            }
+            this.count += Math.max(0, count - 2);
+        }
+
+        @Override
+        public double getScore() {
+            if (count == 0) {
+                return 0;
+            }
+            final double mean = sum / count;
+            return Math.max(0, squaresSum / count - mean * mean);
+        }
+    }
+
+    private static class TenengradEvaluator implements SharpnessEvaluator {
+        private double squaresSum = 0;
+        private long count = 0;
+
+        @Override
+        public void addLine(double[] luminances, int count) {
+            for (int i = 1; i < count - 1; i++) {
+                final double gradient = luminances[i + 1] - luminances[i - 1];
+                squaresSum += gradient * gradient;
+            }
+            this.count += Math.max(0, count - 2);
+        }
+
+        @Override
+        public double getScore() {
+            return count == 0 ? 0 : squaresSum / count;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.giusilvano.blurry;
+
+import org.apache.commons.math3.util.FastMath;
+
+/**
+ * Describes the grid of rows and columns of pixels that are scanned to evaluate the contrast of an image.
+ *
+ * <p>The image is divided in horizontal and vertical stripes of the same size, and only the center row (or column)
+ * of pixels of each stripe is scanned.
+ */
+public class StripeGrid {
+
+    /**
+     * Chooses the grid of an image from its size.
+     */
+    public interface Sizing {
+        StripeGrid forSize(int width, int height);
+    }
+
+    public final int width;
+    public final int height;
+    public final int horizontalStripesCount;
+    public final int horizontalStripesSize;
+    public final int verticalStripesCount;
+    public final int verticalStripesSize;
+
+    private StripeGrid(int width, int height, int horizontalStripesCount, int verticalStripesCount) {
+        this.width = width;
+        this.height = height;
+        this.horizontalStripesCount = horizontalStripesCount;
+        this.horizontalStripesSize = height / horizontalStripesCount;
+        this.verticalStripesCount = verticalStripesCount;
+        this.verticalStripesSize = width / verticalStripesCount;
+    }
+
+    /**
+     * Returns the grid for an image of the given size.
+     *
+     * @param sampleCoverage with 1 all rows and columns in the image will be scanned, with less the number of
+     *                       rows/columns will be reduced proportionally, distributing them uniformly to cover all the
+     *                       image area
+     */
+    public static StripeGrid forCoverage(int width, int height, float sampleCoverage) {
+        // The image will be divided in stripes, according to the sample coverage
+        int horizontalStripesCount = (int)(height * sampleCoverage);
+        // If image is too small make 100 stripes by default; if the image is even smaller, make a stripe for each pixel
+        if (horizontalStripesCount == 0) horizontalStripesCount = FastMath.min(height, 100);
+
+        int verticalStripesCount = (int)(width * sampleCoverage);
+        if (verticalStripesCount == 0) verticalStripesCount = FastMath.min(width, 100);
+
+        return new StripeGrid(width, height, horizontalStripesCount, verticalStripesCount);
+    }
+
+    /**
+     * Returns a sizing that gives the grid {@link #forCoverage} to every image.
+     */
+    public static Sizing coverage(float sampleCoverage) {
+        return (width, height) -> forCoverage(width, height, sampleCoverage);
+    }
+
+    /**
+     * Returns a sizing that gives the grid {@link #forSampledPixels} to every image.
+     */
+    public static Sizing sampledPixels(long sampledPixels) {
+        return (width, height) -> forSampledPixels(width, height, sampledPixels);
+    }
+
+    /**
+     * Returns the grid for an image of the given size that scans about sampledPixels pixels, whatever the resolution
+     * of the image, so every image takes about the same time to score.
+     *
+     * <p>Like with {@link #forCoverage}, the same fraction of the rows and of the columns is scanned: the coverage is
+     * the one that gives sampledPixels. Images smaller than that get all their rows and columns scanned, and every
+     * image gets at least a row and a column.
+     */
+    public static StripeGrid forSampledPixels(int width, int height, long sampledPixels) {
+        // Scanning a fraction of the rows and the same fraction of the columns reads that fraction of 2 * width * height
+        final double coverage = FastMath.min(1, sampledPixels / (2d * width * height));
+        final int horizontalStripesCount = (int) FastMath.max(1, FastMath.round(height * coverage));
+        final int verticalStripesCount = (int) FastMath.max(1, FastMath.round(width * coverage));
+        return new StripeGrid(width, height, horizontalStripesCount, verticalStripesCount);
+    }
+
+    /**
+     * Returns the fraction of the rows and columns of the image that are scanned, the sample coverage actually used.
+     */
+    public double getCoverage() {
+        return ((double) horizontalStripesCount / height + (double) verticalStripesCount / width) / 2;
+    }
+
+    /**
+     * Returns the Y coord of the center row of pixels of the i-th horizontal stripe.
+     */
+    public int getRowY(int i) {
+        return (horizontalStripesSize * i) + (horizontalStripesSize / 2);
+    }
+
+    /**
+     * Returns the X coord of the center column of pixels of the i-th vertical stripe.
+     */
+    public int getColumnX(int i) {
+        return (verticalStripesSize * i) + (verticalStripesSize / 2);
+    }
+
+    /**
+     * Returns the number of luminance differences computed scanning the grid, that is the number of pixels scanned
+     * except the first of each row and column.
+     */
+    public double getSamplesCount() {
+        return horizontalStripesCount * (width-1) + verticalStripesCount * (height-1);
+    }
+}
@@ -0,0 +1,122 @@
+package com.giusilvano.blurry;
+
+import java.util.Arrays;
+
+/**
+ * The contrast scores of the tiles of an image, a sharpness map that tells where the image is sharp.
+ *
+ * <p>A subject in focus on a blurred background makes few sharp tiles in a soft image: the average over the whole
+ * frame would be low, while the aggregates of the tiles, like the max or a high percentile, tell that something in
+ * the picture is sharp.
+ */
+public class TiledScore {
+
+    /**
+     * How the scores of the tiles are combined in the score of the image.
+     */
+    public enum Aggregate {
+        // The score of the sharpest tile
+        MAX,
+        // A percentile of the scores of the tiles, high enough to ignore a few noisy tiles
+        PERCENTILE,
+        // The average of the scores of the tiles, weighting more the ones in the center of the image
+        CENTER_WEIGHTED
+    }
+
+    // Standard deviation of the center weights, as a fraction of the image size
+    private static final double CENTER_WEIGHT_SIGMA = 0.25d;
+
+    private final int tilesX;
+    private final int tilesY;
+    // Row by row, NaN for the tiles without samples
+    private final double[] scores;
+    private final double mean;
+
+    TiledScore(int tilesX, int tilesY, double[] scores, double mean) {
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.scores = scores;
+        this.mean = mean;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    /**
+     * Returns the score of a tile, or NaN if the tile is too small to have been sampled.
+     */
+    public double getTileScore(int tileX, int tileY) {
+        return scores[tileY * tilesX + tileX];
+    }
+
+    /**
+     * Returns the average of all the samples, that is the score of the image without tiles.
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    public double getMax() {
+        double max = 0;
+        for (final double score : scores) {
+            if (score > max) {
+                max = score;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the score that the given percentage (from 0 to 100) of the tiles doesn't exceed.
+     */
+    public double getPercentile(double percentile) {
+        final double[] sorted = Arrays.stream(scores).filter(score -> !Double.isNaN(score)).sorted().toArray();
+        if (sorted.length == 0) {
+            return 0;
+        }
+        // Nearest rank
+        final int rank = (int) Math.ceil(sorted.length * percentile / 100);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    public double getCenterWeighted() {
+        double weightedSum = 0;
+        double weightsSum = 0;
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                final double score = getTileScore(tileX, tileY);
+                if (Double.isNaN(score)) {
+                    continue;
+                }
+                // Distance of the center of the tile from the center of the image, as a fraction of the image size
+                final double dx = (tileX + 0.5d) / tilesX - 0.5d;
+                final double dy = (tileY + 0.5d) / tilesY - 0.5d;
+                final double weight = Math.exp(-(dx * dx + dy * dy) / (2 * CENTER_WEIGHT_SIGMA * CENTER_WEIGHT_SIGMA));
+                weightedSum += score * weight;
+                weightsSum += weight;
+            }
+        }
+        return weightsSum == 0 ? 0 : weightedSum / weightsSum;
+    }
+
+    /**
+     * Returns the aggregate of the scores of the tiles.
+     *
+     * @param percentile used only by {@link Aggregate#PERCENTILE}
+     */
+    public double getAggregate(Aggregate aggregate, double percentile) {
+        switch (aggregate) {
+            case MAX:
+                return getMax();
+            case PERCENTILE:
+                return getPercentile(percentile);
+            default:
+                return getCenterWeighted();
+        }
+    }
+}
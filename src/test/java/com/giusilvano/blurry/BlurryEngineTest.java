@@ -0,0 +1,126 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BlurryEngineTest {
+
+    private static final int IMAGES = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] newZebraPng() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(TestImages.newTestImage(TestImages::verticalZebraPixelGenerator), "png", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testScoreContent() throws Exception {
+        try (final BlurryEngine engine = new BlurryEngine(new ProcessingSettings())) {
+            final ImageProcessor fromBytes = engine.score(newZebraPng(), "upload.png").get();
+            assertEquals(ImageProcessor.Outcome.SUCCEEDED, fromBytes.getOutcome());
+            assertEquals(0.5, fromBytes.getScore(), 0);
+            assertEquals("upload.png", fromBytes.getFile().getName());
+
+            final ImageProcessor fromStream = engine.score(new ByteArrayInputStream(newZebraPng()), "stream.png").get();
+            assertEquals(0.5, fromStream.getScore(), 0);
+
+            final ImageProcessor notAnImage = engine.score("not an image".getBytes(StandardCharsets.UTF_8), "broken.jpg").get();
+            assertEquals(ImageProcessor.Outcome.SKIPPED, notAnImage.getOutcome());
+        }
+    }
+
+    @Test
+    public void testRenameJournaled() throws Exception {
+        final File images = folder.newFolder();
+        final File file = new File(images, "zebra.png");
+        ImageIO.write(TestImages.newTestImage(TestImages::verticalZebraPixelGenerator), "png", file);
+        try (final BlurryEngine engine = new BlurryEngine(new ProcessingSettings())) {
+            final ImageProcessor image = engine.score(file).get();
+            assertEquals(ImageProcessor.Outcome.SUCCEEDED, image.getOutcome());
+            assertFalse(file.exists());
+            assertTrue(image.getResultFile().isFile());
+        }
+        assertTrue(RenameJournal.exists(images));
+        assertEquals(1, RenameJournal.replay(images, (scoredFile, cause) -> fail()));
+        assertTrue(file.isFile());
+    }
+
+    @Test(timeout = 30000)
+    public void testErrorCompletesExceptionally() throws Exception {
+        try (final ResultsWriter resultsWriter = new ResultsWriter(folder.newFile("results.csv"), ResultsWriter.Format.CSV) {
+            @Override
+            public void write(ImageProcessor image) {
+                throw new OutOfMemoryError("Test");
+            }
+        }; final BlurryEngine engine = new BlurryEngine(new ProcessingSettings(), null, resultsWriter)) {
+            engine.score(newZebraPng(), "upload.png").get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+    }
+
+    @Test
+    public void testScoreAll() throws Exception {
+        final File images = folder.newFolder();
+        for (int i = 0; i < IMAGES; i++) {
+            ImageIO.write(TestImages.newTestImage(TestImages::verticalZebraPixelGenerator), "png", new File(images, "zebra" + i + ".png"));
+        }
+        final List<ImageProcessor> results = Collections.synchronizedList(new ArrayList<>());
+        final ProcessingSettings settings = new ProcessingSettings().setRenameFiles(false).setQueueCapacity(2);
+        try (final BlurryEngine engine = new BlurryEngine(settings)) {
+            engine.scoreAll(Collections.singletonList(images.getPath()), results::add).get();
+        }
+        assertEquals(IMAGES, results.size());
+        for (final ImageProcessor image : results) {
+            assertEquals(0.5, image.getScore(), 0);
+            // Not renamed
+            assertTrue(image.getFile().isFile());
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final BlurryEngine engine = new BlurryEngine(new ProcessingSettings(), executor, null);
+            // Keep the only thread busy, so the image waits
+            final CountDownLatch latch = new CountDownLatch(1);
+            executor.execute(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                }
+            });
+            final CompletableFuture<ImageProcessor> result = engine.score(newZebraPng(), "upload.png");
+            assertTrue(result.cancel(true));
+            latch.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(result.isCancelled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.giusilvano.blurry;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BurstGrouperTest {
+
+    @Test
+    public void testGroups() {
+        final BurstGrouper grouper = new BurstGrouper(4, 5000);
+        final long burstHash = 0x0F0F0F0F0F0F0F0FL;
+        // A burst of 3 shots, chained by small differences
+        grouper.add(new File("burst1.jpg"), 0.1, burstHash, 1000);
+        grouper.add(new File("burst2.jpg"), 0.3, burstHash ^ 0x7, 2000);
+        grouper.add(new File("burst3.jpg"), 0.2, burstHash ^ 0x7F, 3000);
+        // Same subject but an hour later
+        grouper.add(new File("later.jpg"), 0.5, burstHash, 3600000);
+        // Different subject at the same time
+        grouper.add(new File("other.jpg"), 0.4, ~burstHash, 2000);
+
+        final List<BurstGrouper.Group> groups = grouper.getGroups();
+        assertEquals(1, groups.size());
+        assertEquals(3, groups.get(0).members.size());
+        assertEquals("burst1.jpg", groups.get(0).members.get(0).file.getName());
+        assertEquals("burst2.jpg", groups.get(0).best.file.getName());
+    }
+
+    @Test
+    public void testPerceptualHash() throws Exception {
+        final TestImages.PixelGenerator gradient = (x, y) -> {
+            final int gray = (int) (255 * Math.abs(Math.sin(x / 40d + y / 70d)));
+            return (gray << 16) | (gray << 8) | gray;
+        };
+        final BufferedImage img = TestImages.newTestImage(gradient, BufferedImage.TYPE_3BYTE_BGR);
+        final long hash = PerceptualHash.compute(SampledImage.fromFullImage(img, 0.05f));
+        // The same picture sampled with another coverage or stored in another type is still similar
+        assertTrue(PerceptualHash.distance(hash, PerceptualHash.compute(SampledImage.fromFullImage(img, 0.2f))) <= 4);
+        final BufferedImage grayImg = TestImages.newTestImage(gradient, BufferedImage.TYPE_INT_RGB);
+        assertEquals(hash, PerceptualHash.compute(SampledImage.fromFullImage(grayImg, 0.05f)));
+        // A different picture is not
+        final BufferedImage zebra = TestImages.newTestImage(TestImages::verticalZebraPixelGenerator, BufferedImage.TYPE_3BYTE_BGR);
+        assertTrue(PerceptualHash.distance(hash, PerceptualHash.compute(SampledImage.fromFullImage(zebra, 0.05f))) > 10);
+    }
+}
@@ -0,0 +1,128 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DirectoryWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testExistingAndNewImages() throws Exception {
+        final File root = folder.getRoot();
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "png", new File(root, "existing.png"));
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "png", new File(root, "scored __0.1234.png"));
+
+        final BlockingQueue<File> found = new LinkedBlockingQueue<>();
+        try (final DirectoryWatcher watcher = new DirectoryWatcher(new ImageFilesFinder(2, false), 2, 50)) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    watcher.watch(Collections.singletonList(root.getPath()), found::put);
+                } catch (InterruptedException e) {
+                }
+            });
+            thread.start();
+
+            assertEquals("existing.png", found.poll(10, TimeUnit.SECONDS).getName());
+
+            // A new image in a new subdirectory, and a file that is not an image
+            final File sub = new File(root, "sub");
+            assertTrue(sub.mkdir());
+            Thread.sleep(100);
+            ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "jpg", new File(sub, "new.jpg"));
+            assertTrue(new File(root, "notes.txt").createNewFile());
+            // Watch services that poll can take a while
+            final File newImage = found.poll(30, TimeUnit.SECONDS);
+            assertNotNull(newImage);
+            assertEquals("new.jpg", newImage.getName());
+
+            thread.interrupt();
+            thread.join();
+        }
+        assertTrue(found.isEmpty());
+    }
+
+    /**
+     * Watches the root with the given images already in it, holding the watcher on the first one passed until more
+     * events than a watch key can keep have been lost, together with the creation of a subdirectory with a new image.
+     *
+     * @return the names of all the images passed, sorted
+     */
+    private List<String> watchThroughLostEvents(DirectoryWatcher watcher, String... existingImages) throws Exception {
+        final File root = folder.getRoot();
+        for (final String existingImage : existingImages) {
+            ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "png", new File(root, existingImage));
+        }
+
+        final BlockingQueue<File> found = new LinkedBlockingQueue<>();
+        final CountDownLatch eventsLost = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            try {
+                watcher.watch(Collections.singletonList(root.getPath()), file -> {
+                    found.put(file);
+                    eventsLost.await();
+                });
+            } catch (InterruptedException e) {
+            }
+        });
+        thread.start();
+
+        final List<String> passed = new ArrayList<>();
+        passed.add(found.poll(10, TimeUnit.SECONDS).getName());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(new File(root, "notes" + i + ".txt").createNewFile());
+        }
+        // Created after the overflow, so its own event is lost too
+        final File sub = new File(root, "sub");
+        assertTrue(sub.mkdir());
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "jpg", new File(sub, "new.jpg"));
+        eventsLost.countDown();
+
+        // Watch services that poll can take a while to find the new image, then wait for anything passed after it
+        File file = found.poll(30, TimeUnit.SECONDS);
+        while (file != null) {
+            passed.add(file.getName());
+            file = found.poll(passed.contains("new.jpg") ? 1 : 30, TimeUnit.SECONDS);
+        }
+        Collections.sort(passed);
+
+        thread.interrupt();
+        thread.join();
+        return passed;
+    }
+
+    @Test
+    public void testLostEvents() throws Exception {
+        try (final DirectoryWatcher watcher = new DirectoryWatcher(new ImageFilesFinder(2, false), 2, 50)) {
+            // The new subdirectory is watched, and the image already passed is not passed again
+            assertEquals(Arrays.asList("existing.png", "new.jpg"), watchThroughLostEvents(watcher, "existing.png"));
+        }
+    }
+
+    @Test
+    public void testLostEventsWithPassedFilesForgotten() throws Exception {
+        try (final DirectoryWatcher watcher = new DirectoryWatcher(new ImageFilesFinder(2, false), 2, 50, 1)) {
+            // Only the last image passed is remembered, so the other one is passed again
+            final List<String> passed = watchThroughLostEvents(watcher, "existing1.png", "existing2.png");
+            assertEquals(4, passed.size());
+            assertTrue(passed.contains("existing1.png"));
+            assertTrue(passed.contains("existing2.png"));
+            assertEquals("new.jpg", passed.get(3));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class EmbeddedPreviewReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] newJpeg(int width, int height) throws Exception {
+        final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                img.setRGB(x, y, TestImages.chessboardPixelGenerator(x, y));
+            }
+        }
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpg", jpeg);
+        return jpeg.toByteArray();
+    }
+
+    /**
+     * Returns an APP1 segment with big endian EXIF data having an empty IFD0 and an IFD1 pointing to the thumbnail,
+     * stored right after it.
+     */
+    private static byte[] newExifSegment(byte[] thumbnail) throws Exception {
+        final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(segment);
+        out.writeShort(0xFFE1);
+        out.writeShort(2 + 6 + 44 + thumbnail.length);
+        out.write(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+        out.write(new byte[]{'M', 'M', 0, 42, 0, 0, 0, 8});
+        // IFD0 without entries, then IFD1 at 14 with the offset and the length of the thumbnail, that is at 44
+        out.writeShort(0);
+        out.writeInt(14);
+        out.writeShort(2);
+        out.write(new byte[]{0x02, 0x01, 0, 4, 0, 0, 0, 1});
+        out.writeInt(44);
+        out.write(new byte[]{0x02, 0x02, 0, 4, 0, 0, 0, 1});
+        out.writeInt(thumbnail.length);
+        out.writeInt(0);
+        out.write(thumbnail);
+        return segment.toByteArray();
+    }
+
+    /**
+     * Returns an APP2 segment with big endian MPF data listing the main image and a preview.
+     *
+     * @param previewOffset offset of the preview from the beginning of the TIFF structure, after the MPF header
+     */
+    private static byte[] newMpfSegment(int mainLength, int previewLength, int previewOffset) throws Exception {
+        final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(segment);
+        out.writeShort(0xFFE2);
+        out.writeShort(2 + 4 + 26 + 32);
+        out.write(new byte[]{'M', 'P', 'F', 0});
+        out.write(new byte[]{'M', 'M', 0, 42, 0, 0, 0, 8});
+        // IFD0 with the MP entries, 32 bytes of type UNDEFINED at 26
+        out.writeShort(1);
+        out.write(new byte[]{(byte) 0xB0, 0x02, 0, 7, 0, 0, 0, 32});
+        out.writeInt(26);
+        out.writeInt(0);
+        // The main image, at offset 0, and the preview
+        out.writeInt(0x20030000);
+        out.writeInt(mainLength);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(0x00010001);
+        out.writeInt(previewLength);
+        out.writeInt(previewOffset);
+        out.writeInt(0);
+        return segment.toByteArray();
+    }
+
+    /**
+     * Writes a 200x150 JPEG with a 40x30 EXIF thumbnail and, if withMpf, a 120x90 MPF preview after the image.
+     */
+    private File newJpegWithPreviews(boolean withMpf) throws Exception {
+        final byte[] main = newJpeg(200, 150);
+        final byte[] exif = newExifSegment(newJpeg(40, 30));
+        final byte[] preview = newJpeg(120, 90);
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(main, 0, 2);
+        file.write(exif);
+        if (withMpf) {
+            final int mpfSegmentLength = newMpfSegment(0, 0, 0).length;
+            final int tiffPosition = 2 + exif.length + 4 + 4;
+            final int previewPosition = 2 + exif.length + mpfSegmentLength + main.length - 2;
+            file.write(newMpfSegment(main.length, preview.length, previewPosition - tiffPosition));
+        }
+        file.write(main, 2, main.length - 2);
+        if (withMpf) {
+            file.write(preview);
+        }
+        final File jpeg = folder.newFile();
+        Files.write(jpeg.toPath(), file.toByteArray());
+        return jpeg;
+    }
+
+    @Test
+    public void testBiggestPreview() throws Exception {
+        final File jpeg = newJpegWithPreviews(true);
+        // The image is still readable, at full resolution
+        assertEquals(200, ImageIO.read(jpeg).getWidth());
+
+        EmbeddedPreviewReader.Preview preview = EmbeddedPreviewReader.read(jpeg, 30);
+        assertEquals(120, preview.image.getWidth());
+        assertEquals(90, preview.image.getHeight());
+        assertTrue(preview.bytesRead < jpeg.length());
+
+        preview = EmbeddedPreviewReader.read(jpeg, 120);
+        assertEquals(120, preview.image.getWidth());
+        // The main image is not a preview
+        assertNull(EmbeddedPreviewReader.read(jpeg, 121));
+    }
+
+    @Test
+    public void testExifThumbnail() throws Exception {
+        final File jpeg = newJpegWithPreviews(false);
+        final EmbeddedPreviewReader.Preview preview = EmbeddedPreviewReader.read(jpeg, 40);
+        assertEquals(40, preview.image.getWidth());
+        assertEquals(30, preview.image.getHeight());
+        assertNull(EmbeddedPreviewReader.read(jpeg, 41));
+    }
+
+    @Test
+    public void testNoPreview() throws Exception {
+        final File jpeg = folder.newFile("a.jpg");
+        Files.write(jpeg.toPath(), newJpeg(200, 150));
+        assertNull(EmbeddedPreviewReader.read(jpeg, 1));
+
+        final File png = folder.newFile("a.png");
+        ImageIO.write(TestImages.newTestImage(TestImages::chessboardPixelGenerator), "png", png);
+        assertNull(EmbeddedPreviewReader.read(png, 1));
+    }
+}
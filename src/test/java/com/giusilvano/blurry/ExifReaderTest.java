@@ -0,0 +1,65 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+
+import static org.junit.Assert.*;
+
+public class ExifReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns an APP1 segment with the EXIF data of a big endian TIFF structure having only IFD0 with a DateTime.
+     */
+    private static byte[] newExifSegment(String dateTime) throws Exception {
+        final ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        tiff.write(new byte[]{'M', 'M', 0, 42, 0, 0, 0, 8});
+        // IFD0 with 1 entry: tag 0x0132, type ASCII, 20 characters at offset 26, then no next IFD
+        tiff.write(new byte[]{0, 1, 0x01, 0x32, 0, 2, 0, 0, 0, 20, 0, 0, 0, 26, 0, 0, 0, 0});
+        tiff.write(dateTime.getBytes(StandardCharsets.US_ASCII));
+        tiff.write(0);
+
+        final ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        final int length = 2 + 6 + tiff.size();
+        segment.write(new byte[]{(byte) 0xFF, (byte) 0xE1, (byte) (length >> 8), (byte) length, 'E', 'x', 'i', 'f', 0, 0});
+        segment.write(tiff.toByteArray());
+        return segment.toByteArray();
+    }
+
+    @Test
+    public void testCaptureTime() throws Exception {
+        final File jpeg = folder.newFile("a.jpg");
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "jpg", jpeg);
+        assertEquals(-1, ExifReader.readCaptureTime(jpeg));
+
+        // Insert the EXIF segment right after the SOI marker
+        final byte[] bytes = Files.readAllBytes(jpeg.toPath());
+        final ByteArrayOutputStream withExif = new ByteArrayOutputStream();
+        withExif.write(bytes, 0, 2);
+        withExif.write(newExifSegment("2020:01:02 03:04:05"));
+        withExif.write(bytes, 2, bytes.length - 2);
+        Files.write(jpeg.toPath(), withExif.toByteArray());
+
+        final long expected = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse("2020-01-02 03:04:05").getTime();
+        assertEquals(expected, ExifReader.readCaptureTime(jpeg));
+        // The image must still be readable
+        assertNotNull(ImageIO.read(jpeg));
+    }
+
+    @Test
+    public void testNotJpeg() throws Exception {
+        final File png = folder.newFile("a.png");
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "png", png);
+        assertEquals(-1, ExifReader.readCaptureTime(png));
+    }
+}
@@ -3,6 +3,8 @@ package com.giusilvano.blurry;
 import org.junit.Test;
 
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -44,4 +46,169 @@ public class ImageContrastEvaluationTest {
         score = ImageContrastEvaluation.getImageContrastScore(img, SAMPLE_COVERAGE);
         assertEquals(0, score, delta);
     }
-}
\ No newline at end of file
+
+    /**
+     * Checks that the patterns of testGetImageContrastScore get the same scores also in the given image type.
+     */
+    private void assertScoresOfType(String message, java.util.function.Function<TestImages.PixelGenerator, BufferedImage> imageFactory) throws Exception {
+        final double delta = 0;
+        assertEquals(message, 1, ImageContrastEvaluation.getImageContrastScore(imageFactory.apply(TestImages::chessboardPixelGenerator), SAMPLE_COVERAGE), delta);
+        assertEquals(message, 0.5, ImageContrastEvaluation.getImageContrastScore(imageFactory.apply(TestImages::verticalZebraPixelGenerator), SAMPLE_COVERAGE), delta);
+        assertEquals(message, 0.5, ImageContrastEvaluation.getImageContrastScore(imageFactory.apply(TestImages::horizontalZebraPixelGenerator), SAMPLE_COVERAGE), delta);
+        assertEquals(message, 0, ImageContrastEvaluation.getImageContrastScore(imageFactory.apply(TestImages::emptyPixelGenerator), SAMPLE_COVERAGE), delta);
+    }
+
+    @Test
+    public void testGetImageContrastScoreAllImageTypes() throws Exception {
+        final int[] imageTypes = {
+                BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_INT_ARGB,
+                BufferedImage.TYPE_INT_ARGB_PRE,
+                BufferedImage.TYPE_INT_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR,
+                BufferedImage.TYPE_4BYTE_ABGR_PRE,
+                BufferedImage.TYPE_BYTE_GRAY,
+                BufferedImage.TYPE_USHORT_GRAY,
+                BufferedImage.TYPE_BYTE_INDEXED,
+                BufferedImage.TYPE_BYTE_BINARY,
+                BufferedImage.TYPE_USHORT_565_RGB,
+                BufferedImage.TYPE_USHORT_555_RGB,
+        };
+        for (final int imageType : imageTypes) {
+            assertScoresOfType("image type " + imageType, generator -> TestImages.newTestImage(generator, imageType));
+        }
+        assertScoresOfType("16-bit RGB", TestImages::newTest16BitRgbImage);
+    }
+
+    @Test
+    public void testSameLuminanceForAllImageTypes() throws Exception {
+        // A gray level must get the same luminance in RGB, gray and indexed images
+        final TestImages.PixelGenerator grayGradient = (x, y) -> {
+            final int gray = (x * 5) % 256;
+            return (gray << 16) | (gray << 8) | gray;
+        };
+        final double expected = ImageContrastEvaluation.getImageContrastScore(TestImages.newTestImage(grayGradient), SAMPLE_COVERAGE);
+        final int[] imageTypes = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY};
+        for (final int imageType : imageTypes) {
+            final BufferedImage img = TestImages.newTestImage(grayGradient, imageType);
+            // setRGB converts to the linear gray color space of TYPE_BYTE_GRAY, so write the gray levels directly
+            if (imageType == BufferedImage.TYPE_BYTE_GRAY) {
+                for (int x = 0; x < img.getWidth(); x++) {
+                    for (int y = 0; y < img.getHeight(); y++) {
+                        img.getRaster().setSample(x, y, 0, grayGradient.generatePixel(x, y) & 0xFF);
+                    }
+                }
+            }
+            assertEquals("image type " + imageType, expected, ImageContrastEvaluation.getImageContrastScore(img, SAMPLE_COVERAGE), 0);
+        }
+    }
+
+    @Test
+    public void testColumnsScannedTogetherLikeOneByOne() throws Exception {
+        // Scanning the columns a row at a time must give exactly the sums of scanning them one by one
+        final TestImages.PixelGenerator noise = (x, y) -> (x * 7919 + y * 104729) * 31 ^ (x * y);
+        final int[] imageTypes = {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_565_RGB};
+        for (final int imageType : imageTypes) {
+            final BufferedImage img = TestImages.newTestImage(noise, imageType);
+            final LineContrastKernel kernel = LineContrastKernel.forImage(img);
+            final int firstX = 3, xStep = 10, columns = (img.getWidth() - firstX + xStep - 1) / xStep;
+            final double[] sums = new double[columns];
+            kernel.addColumnsContrastsSums(firstX, xStep, columns, img.getHeight(), sums);
+            for (int i = 0; i < columns; i++) {
+                assertEquals("image type " + imageType, kernel.getLineContrastsSum(firstX + xStep * i, 0, 0, 1, img.getHeight()), sums[i], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelScoreSameAsSequential() throws Exception {
+        final TestImages.PixelGenerator noise = (x, y) -> (x * 7919 + y * 104729) * 31 ^ (x * y);
+        // A type with its own kernel, and one scanned through the ColorModel
+        for (final int imageType : new int[]{BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_USHORT_565_RGB}) {
+            final BufferedImage image = new BufferedImage(600, 400, imageType);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, noise.generatePixel(x, y));
+                }
+            }
+            final SampledImage sampledImage = SampledImage.fromFullImage(image, 0.2f);
+            final double sequentialScore = ImageContrastEvaluation.getImageContrastScore(sampledImage);
+            for (int i = 0; i < 10; i++) {
+                // With a threshold of 0 every image is split among the threads
+                assertEquals("type " + imageType, sequentialScore, ImageContrastEvaluation.getImageContrastScore(sampledImage, 0), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testMetricScores() throws Exception {
+        final List<SharpnessMetric> metrics = Arrays.asList(SharpnessMetric.values());
+        for (final TestImages.PixelGenerator generator : new TestImages.PixelGenerator[]{
+                TestImages::chessboardPixelGenerator, TestImages::verticalZebraPixelGenerator, TestImages::emptyPixelGenerator}) {
+            final SampledImage sampledImage = SampledImage.fromFullImage(TestImages.newTestImage(generator), SAMPLE_COVERAGE);
+            // The contrast computed together with the other metrics is exactly the same
+            assertEquals(ImageContrastEvaluation.getImageContrastScore(sampledImage),
+                    ImageContrastEvaluation.getMetricScores(sampledImage, metrics)[0], 0);
+        }
+
+        // Along the lines of a chessboard the Laplacian is 2 and -2 alternately, the central difference is 0 and the
+        // mean luminance is 0.5
+        final SampledImage chessboard = SampledImage.fromFullImage(TestImages.newTestImage(TestImages::chessboardPixelGenerator), SAMPLE_COVERAGE);
+        final double[] scores = ImageContrastEvaluation.getMetricScores(chessboard, metrics);
+        assertEquals(4, scores[metrics.indexOf(SharpnessMetric.LAPLACIAN)], 1e-9);
+        assertEquals(0, scores[metrics.indexOf(SharpnessMetric.TENENGRAD)], 1e-9);
+        assertEquals(2, scores[metrics.indexOf(SharpnessMetric.NORMALIZED_CONTRAST)], 1e-9);
+
+        final SampledImage empty = SampledImage.fromFullImage(TestImages.newTestImage(TestImages::emptyPixelGenerator), SAMPLE_COVERAGE);
+        for (final double score : ImageContrastEvaluation.getMetricScores(empty, metrics)) {
+            assertEquals(0, score, 0);
+        }
+    }
+
+    @Test
+    public void testTiledContrastScore() throws Exception {
+        // Sharp zebra stripes only in the top left quarter of the image, flat elsewhere
+        final BufferedImage img = TestImages.newTestImage(TestImages::emptyPixelGenerator, BufferedImage.TYPE_3BYTE_BGR);
+        final BufferedImage zebra = TestImages.newTestImage(TestImages::verticalZebraPixelGenerator, BufferedImage.TYPE_3BYTE_BGR);
+        for (int x = 0; x < img.getWidth() / 2; x++) {
+            for (int y = 0; y < img.getHeight() / 2; y++) {
+                img.setRGB(x, y, zebra.getRGB(x, y));
+            }
+        }
+        final SampledImage sampledImage = SampledImage.fromFullImage(img, 1);
+        final TiledScore tiledScore = ImageContrastEvaluation.getTiledContrastScore(sampledImage, 2, 2);
+        // The mean of all the samples is the score of the whole image
+        assertEquals(ImageContrastEvaluation.getImageContrastScore(sampledImage), tiledScore.getMean(), 1e-9);
+        assertTrue(tiledScore.getTileScore(0, 0) > 0.4);
+        assertEquals(0, tiledScore.getTileScore(1, 1), 1e-9);
+        assertEquals(tiledScore.getTileScore(0, 0), tiledScore.getMax(), 0);
+        assertTrue(tiledScore.getMax() > 3 * tiledScore.getMean());
+        assertEquals(tiledScore.getMax(), tiledScore.getPercentile(100), 0);
+        assertEquals(0, tiledScore.getPercentile(50), 1e-9);
+    }
+
+    @Test
+    public void testClassifyContrast() throws Exception {
+        // The chessboard scores 1 and all its lines are alike, so a few of them are enough to tell
+        final SampledImage chessboard = SampledImage.fromFullImage(TestImages.newTestImage(TestImages::chessboardPixelGenerator, BufferedImage.TYPE_3BYTE_BGR), 1);
+        ContrastClassification classification = ImageContrastEvaluation.classifyContrast(chessboard, 0.5, 3);
+        assertEquals(ContrastClassification.Label.SHARP, classification.getLabel());
+        assertEquals(1, classification.getScore(), 1e-9);
+        assertTrue(classification.getPixelsRead() < classification.getTotalPixels() / 4);
+        // Zebra rows score 1 and columns 0: the estimate weights them by their share of the pixels
+        final SampledImage zebra = SampledImage.fromFullImage(TestImages.newTestImage(TestImages::verticalZebraPixelGenerator, BufferedImage.TYPE_3BYTE_BGR), 1);
+        classification = ImageContrastEvaluation.classifyContrast(zebra, 0.6, 3);
+        assertEquals(ContrastClassification.Label.BLURRY, classification.getLabel());
+        assertEquals(0.5, classification.getScore(), 1e-9);
+        assertFalse(classification.isComplete());
+
+        // A threshold equal to the score is never settled: all the lines are read, and the score is the exact one
+        final TestImages.PixelGenerator noise = (x, y) -> (x * 7919 + y * 104729) * 31 ^ (x * y);
+        final SampledImage sampledImage = SampledImage.fromFullImage(TestImages.newTestImage(noise, BufferedImage.TYPE_3BYTE_BGR), 1);
+        final double score = ImageContrastEvaluation.getImageContrastScore(sampledImage);
+        classification = ImageContrastEvaluation.classifyContrast(sampledImage, score, 3);
+        assertTrue(classification.isComplete());
+        assertEquals(score, classification.getScore(), 0);
+        assertEquals(ContrastClassification.Label.SHARP, classification.getLabel());
+    }
+}
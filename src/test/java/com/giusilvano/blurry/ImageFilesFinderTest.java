@@ -0,0 +1,74 @@
+package com.giusilvano.blurry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ImageFilesFinderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void createTree() throws Exception {
+        // root/a.jpg, root/notes.txt, root/sub/b.PNG, root/sub/deeper/c.jpeg, root/sub/deeper/noext (a PNG)
+        final File root = folder.getRoot();
+        final File sub = new File(root, "sub");
+        final File deeper = new File(sub, "deeper");
+        assertTrue(deeper.mkdirs());
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "jpg", new File(root, "a.jpg"));
+        Files.write(new File(root, "notes.txt").toPath(), "not an image".getBytes("UTF-8"));
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "png", new File(sub, "b.PNG"));
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "jpg", new File(deeper, "c.jpeg"));
+        ImageIO.write(TestImages.newTestImage(TestImages::emptyPixelGenerator), "png", new File(deeper, "noext"));
+    }
+
+    private Set<String> findNames(int maxDepth, boolean sniffMagicNumbers) {
+        final List<File> files = new ImageFilesFinder(maxDepth, sniffMagicNumbers)
+                .findAll(Collections.singletonList(folder.getRoot().getPath()));
+        final Set<String> names = new HashSet<>();
+        for (final File file : files) {
+            names.add(file.getName());
+        }
+        // Every image must be found only once
+        assertEquals(files.size(), names.size());
+        return names;
+    }
+
+    @Test
+    public void testDepth() {
+        assertEquals(setOf("a.jpg"), findNames(1, false));
+        assertEquals(setOf("a.jpg", "b.PNG"), findNames(2, false));
+        assertEquals(setOf("a.jpg", "b.PNG", "c.jpeg"), findNames(Integer.MAX_VALUE, false));
+    }
+
+    @Test
+    public void testSniffMagicNumbers() {
+        assertEquals(setOf("a.jpg", "b.PNG", "c.jpeg", "noext"), findNames(Integer.MAX_VALUE, true));
+    }
+
+    @Test
+    public void testSingleFile() {
+        final String path = new File(folder.getRoot(), "a.jpg").getPath();
+        assertEquals(1, new ImageFilesFinder(1, false).findAll(Collections.singletonList(path)).size());
+        final String notImagePath = new File(folder.getRoot(), "notes.txt").getPath();
+        assertEquals(0, new ImageFilesFinder(1, true).findAll(Collections.singletonList(notImagePath)).size());
+    }
+
+    private static Set<String> setOf(String... names) {
+        final Set<String> set = new HashSet<>();
+        Collections.addAll(set, names);
+        return set;
+    }
+}
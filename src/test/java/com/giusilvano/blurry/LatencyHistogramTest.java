@@ -0,0 +1,28 @@
+package com.giusilvano.blurry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMillis(50), 0);
+        // 90 durations of 0.1 ms and 10 of 50 ms
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100_000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(50_000_000);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5.09, histogram.getMeanMillis(), 1e-9);
+        assertEquals(50, histogram.getMaxMillis(), 0);
+        // Percentiles are the upper bounds of their buckets: 0.128 ms and 65.536 ms, capped to the max
+        assertEquals(0.128, histogram.getPercentileMillis(50), 0);
+        assertEquals(0.128, histogram.getPercentileMillis(90), 0);
+        assertEquals(50, histogram.getPercentileMillis(99), 0);
+    }
+}
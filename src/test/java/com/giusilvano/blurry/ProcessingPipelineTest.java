@@ -0,0 +1,184 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ProcessingPipelineTest {
+
+    private static final int IMAGES = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A writer of the results that waits for the latch before taking each record, and then drops it.
+     */
+    private static class BlockingResultsWriter extends ResultsWriter {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        BlockingResultsWriter(File file) throws IOException {
+            super(file, Format.CSV);
+        }
+
+        @Override
+        public void write(ImageProcessor image) throws InterruptedException {
+            latch.await();
+        }
+    }
+
+    private File newImagesFolder(int images) throws Exception {
+        final File folder = this.folder.newFolder();
+        for (int i = 0; i < images; i++) {
+            ImageIO.write(TestImages.newTestImage(TestImages::verticalZebraPixelGenerator), "png", new File(folder, "zebra" + i + ".png"));
+        }
+        return folder;
+    }
+
+    private static int countRenamed(File folder) {
+        return folder.listFiles((dir, name) -> name.matches("zebra\\d+ __0[.,]5000\\.png")).length;
+    }
+
+    private static void process(ProcessingPipeline pipeline, File folder) throws InterruptedException {
+        try (final PathsProcessor.processingProgress progress = new PathsProcessor.processingProgress(1000)) {
+            pipeline.process(new ImageFilesFinder(1, false), Collections.singletonList(folder.getPath()), progress);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testAllImagesDone() throws Exception {
+        final File images = newImagesFolder(IMAGES);
+        final ProcessingPipeline pipeline = new ProcessingPipeline(new ProcessingSettings()
+                .setDecodeThreads(3).setScoreThreads(2).setQueueCapacity(2));
+        // Returns only once the END mark has gone through all the threads of all the stages
+        process(pipeline, images);
+
+        assertEquals(IMAGES, countRenamed(images));
+        assertEquals(0, pipeline.getBudget().getInFlightBytes());
+    }
+
+    @Test(timeout = 30000)
+    public void testNotRenamedIfNotJournaled() throws Exception {
+        final File images = newImagesFolder(IMAGES);
+        // The journal can't be written, so the renames couldn't be undone
+        assertTrue(new File(images, RenameJournal.JOURNAL_FILENAME).mkdir());
+        process(new ProcessingPipeline(new ProcessingSettings()), images);
+
+        assertEquals(0, countRenamed(images));
+        assertEquals(IMAGES + 1, images.list().length);
+    }
+
+    @Test(timeout = 30000)
+    public void testBackPressure() throws Exception {
+        final File images = newImagesFolder(IMAGES);
+        final ProcessingSettings settings = new ProcessingSettings().setDecodeThreads(1).setScoreThreads(1).setQueueCapacity(1);
+        try (final BlockingResultsWriter resultsWriter = new BlockingResultsWriter(folder.newFile("results.csv"))) {
+            final ProcessingPipeline pipeline = new ProcessingPipeline(settings, resultsWriter);
+            final AtomicInteger submitted = new AtomicInteger();
+            final Thread submitter = new Thread(() -> {
+                try (final PathsProcessor.processingProgress progress = new PathsProcessor.processingProgress(1000)) {
+                    pipeline.start(progress);
+                    for (final File file : new ImageFilesFinder(1, false).findAll(Collections.singletonList(images.getPath()))) {
+                        pipeline.submit(file);
+                        submitted.incrementAndGet();
+                    }
+                    pipeline.finish();
+                } catch (InterruptedException e) {
+                }
+            });
+            submitter.start();
+
+            // The rename stage waits for the writer, so the other stages fill up and the submitter waits too
+            Thread.sleep(500);
+            assertTrue(submitted.get() < IMAGES);
+
+            resultsWriter.latch.countDown();
+            submitter.join();
+            assertEquals(IMAGES, submitted.get());
+            assertEquals(IMAGES, countRenamed(images));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testThrowingStepsDontStall() throws Exception {
+        final File images = newImagesFolder(IMAGES);
+        // Skipped by the decode stage, that reports it there
+        Files.write(new File(images, "broken.jpg").toPath(), "not an image".getBytes(StandardCharsets.UTF_8));
+        try (final ResultsWriter resultsWriter = new ResultsWriter(folder.newFile("results.csv"), ResultsWriter.Format.CSV) {
+            @Override
+            public void write(ImageProcessor image) {
+                throw new OutOfMemoryError("Test");
+            }
+        }) {
+            final ProcessingPipeline pipeline = new ProcessingPipeline(new ProcessingSettings()
+                    .setDecodeThreads(2).setScoreThreads(2).setQueueCapacity(2), resultsWriter);
+            // Every stage keeps going, and the END mark reaches the last one
+            process(pipeline, images);
+            assertEquals(0, pipeline.getBudget().getInFlightBytes());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testReadAhead() throws Exception {
+        final File images = newImagesFolder(IMAGES);
+        // Read in memory, and then skipped by the decode stage
+        Files.write(new File(images, "broken.jpg").toPath(), "not an image".getBytes(StandardCharsets.UTF_8));
+        long maxFileBytes = 0;
+        for (final File file : images.listFiles()) {
+            maxFileBytes = Math.max(maxFileBytes, file.length());
+        }
+        // A budget smaller than any file lets a file at a time be read ahead
+        final ProcessingPipeline pipeline = new ProcessingPipeline(new ProcessingSettings()
+                .setReadThreads(4).setReadAheadBytes(1).setQueueCapacity(2));
+        process(pipeline, images);
+
+        assertEquals(IMAGES, countRenamed(images));
+        assertTrue(pipeline.getReadAheadBudget().getMaxInFlightBytes() > 0);
+        assertTrue(pipeline.getReadAheadBudget().getMaxInFlightBytes() <= maxFileBytes);
+        assertEquals(0, pipeline.getReadAheadBudget().getInFlightBytes());
+        assertEquals(0, pipeline.getBudget().getInFlightBytes());
+    }
+
+    @Test(timeout = 30000)
+    public void testReadAheadReleasedOnCancel() throws Exception {
+        final File images = newImagesFolder(IMAGES);
+        final ProcessingSettings settings = new ProcessingSettings().setReadThreads(2).setQueueCapacity(2);
+        try (final BlockingResultsWriter resultsWriter = new BlockingResultsWriter(folder.newFile("results.csv"))) {
+            final ProcessingPipeline pipeline = new ProcessingPipeline(settings, resultsWriter);
+            final Thread submitter = new Thread(() -> {
+                try (final PathsProcessor.processingProgress progress = new PathsProcessor.processingProgress(1000)) {
+                    pipeline.start(progress);
+                    for (final File file : new ImageFilesFinder(1, false).findAll(Collections.singletonList(images.getPath()))) {
+                        pipeline.submit(file);
+                    }
+                    pipeline.finish();
+                } catch (InterruptedException e) {
+                }
+            });
+            submitter.start();
+
+            // The rename stage waits for the writer, so the files read pile up in front of the decode stage
+            while (pipeline.getReadAheadBudget().getInFlightBytes() == 0) {
+                Thread.sleep(10);
+            }
+            pipeline.cancel();
+            submitter.interrupt();
+            submitter.join();
+
+            while (pipeline.getReadAheadBudget().getInFlightBytes() > 0 || pipeline.getBudget().getInFlightBytes() > 0) {
+                Thread.sleep(10);
+            }
+        }
+    }
+}
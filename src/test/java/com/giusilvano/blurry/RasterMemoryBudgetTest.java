@@ -0,0 +1,48 @@
+package com.giusilvano.blurry;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RasterMemoryBudgetTest {
+
+    @Test(timeout = 10000)
+    public void testAcquireWaitsForRelease() throws Exception {
+        final RasterMemoryBudget budget = new RasterMemoryBudget(100);
+        budget.acquire(60);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            try {
+                budget.acquire(60);
+                acquired.countDown();
+            } catch (InterruptedException e) {
+            }
+        });
+        thread.start();
+        // 120 bytes don't fit in the budget
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(60, budget.getInFlightBytes());
+
+        budget.release(60);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(60, budget.getInFlightBytes());
+        budget.release(60);
+        assertEquals(0, budget.getInFlightBytes());
+        assertEquals(60, budget.getMaxInFlightBytes());
+    }
+
+    @Test(timeout = 10000)
+    public void testOversizeWhenEmpty() throws Exception {
+        final RasterMemoryBudget budget = new RasterMemoryBudget(100);
+        // Bigger than the whole budget, but nothing else is in flight
+        budget.acquire(500);
+        budget.adjust(500, 50);
+        assertEquals(50, budget.getInFlightBytes());
+        budget.acquire(50);
+        assertEquals(100, budget.getInFlightBytes());
+        assertEquals(500, budget.getMaxInFlightBytes());
+    }
+}
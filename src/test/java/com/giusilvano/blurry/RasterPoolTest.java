@@ -0,0 +1,84 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class RasterPoolTest {
+
+    private static final ImageTypeSpecifier RGB = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testImagesAreReused() {
+        final RasterPool pool = new RasterPool(1 << 20);
+        final BufferedImage image = pool.acquire(RGB, 10, 10);
+        image.setRGB(5, 5, 0xFFFFFF);
+        pool.release(image);
+
+        final BufferedImage reused = pool.acquire(RGB, 10, 10);
+        assertSame(image, reused);
+        // Other dimensions can't reuse it
+        assertNotSame(image, pool.acquire(RGB, 10, 11));
+        assertEquals(1, pool.getReusedCount());
+        assertEquals(2, pool.getCreatedCount());
+    }
+
+    @Test
+    public void testIdleBytesAreBounded() {
+        // Room for two 10x10 RGB images only
+        final RasterPool pool = new RasterPool(2 * 10 * 10 * 3);
+        final BufferedImage image1 = pool.acquire(RGB, 10, 10);
+        final BufferedImage image2 = pool.acquire(RGB, 10, 10);
+        final BufferedImage image3 = pool.acquire(RGB, 10, 10);
+        pool.release(image1);
+        pool.release(image2);
+        pool.release(image3);
+        assertEquals(2 * 10 * 10 * 3, pool.getIdleBytes());
+        // Images not taken from the pool, or released twice, are ignored
+        pool.release(image3);
+        pool.release(new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR));
+        assertEquals(2 * 10 * 10 * 3, pool.getIdleBytes());
+
+        // The images of the least recently used dimensions make room for the new ones
+        pool.release(pool.acquire(RGB, 20, 5));
+        assertEquals(2 * 10 * 10 * 3, pool.getIdleBytes());
+        pool.acquire(RGB, 20, 5);
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    public void testDisabledPoolKeepsNothing() {
+        final RasterPool pool = RasterPool.disabled();
+        final BufferedImage image = pool.acquire(RGB, 10, 10);
+        pool.release(image);
+        assertEquals(0, pool.getIdleBytes());
+        assertNotSame(image, pool.acquire(RGB, 10, 10));
+    }
+
+    @Test
+    public void testPooledDecodingHasTheSameScore() throws Exception {
+        final RasterPool pool = new RasterPool(1 << 20);
+        final RasterMemoryBudget budget = RasterMemoryBudget.unlimited();
+        for (final String format : new String[]{"jpg", "png"}) {
+            final File file = folder.newFile("test." + format);
+            ImageIO.write(TestImages.newTestImage(TestImages::chessboardPixelGenerator), format, file);
+            final double score = ImageContrastEvaluation.getImageContrastScore(SampledImageReader.read(file, 0.1f));
+            for (int i = 0; i < 3; i++) {
+                final SampledImage sampledImage = SampledImageReader.read(file, 0.1f, budget, pool);
+                assertEquals(score, ImageContrastEvaluation.getImageContrastScore(sampledImage), 0);
+                pool.release(sampledImage);
+            }
+        }
+        assertTrue(pool.getReusedCount() > 0);
+    }
+}
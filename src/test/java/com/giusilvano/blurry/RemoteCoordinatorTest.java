@@ -0,0 +1,230 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RemoteCoordinatorTest {
+
+    private static final int IMAGES = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Connects as a worker, takes a batch and disconnects without sending any result.
+     *
+     * @return the number of files in the batch
+     */
+    private static int takeBatchAndDisconnect(int port) throws Exception {
+        try (final Socket socket = new Socket("localhost", port)) {
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(RemoteCoordinator.MAGIC);
+            out.writeInt(RemoteCoordinator.VERSION);
+            out.writeInt(1);
+            out.flush();
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            new ProcessingSettings().readScoringSettings(in);
+            final int batchSize = in.readInt();
+            for (int i = 0; i < batchSize; i++) {
+                in.readInt();
+                in.readUTF();
+            }
+            return batchSize;
+        }
+    }
+
+    /**
+     * Connects as a worker, takes a batch and disconnects in the middle of the result of its first file.
+     */
+    private static void takeBatchAndDisconnectWhileSending(int port) throws Exception {
+        try (final Socket socket = new Socket("localhost", port)) {
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(RemoteCoordinator.MAGIC);
+            out.writeInt(RemoteCoordinator.VERSION);
+            out.writeInt(1);
+            out.flush();
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            new ProcessingSettings().readScoringSettings(in);
+            final int batchSize = in.readInt();
+            int firstIndex = -1;
+            for (int i = 0; i < batchSize; i++) {
+                final int index = in.readInt();
+                in.readUTF();
+                if (i == 0) {
+                    firstIndex = index;
+                }
+            }
+            out.writeInt(firstIndex);
+            out.write(new byte[2]);
+            out.flush();
+        }
+    }
+
+    private File newImagesFolder() throws Exception {
+        final File images = folder.newFolder();
+        for (int i = 0; i < IMAGES; i++) {
+            ImageIO.write(TestImages.newTestImage(TestImages::verticalZebraPixelGenerator), "png", new File(images, "zebra" + i + ".png"));
+        }
+        return images;
+    }
+
+    @Test
+    public void testWorkersOnLocalhost() throws Exception {
+        final File images = newImagesFolder();
+
+        final ServerSocket serverSocket = new ServerSocket(0, 50, null);
+        final int port = serverSocket.getLocalPort();
+        final AtomicInteger lostFiles = new AtomicInteger();
+        final AtomicInteger workedFiles = new AtomicInteger();
+        final List<Thread> workers = new ArrayList<>();
+        // A worker is lost with its first batch, then two workers share all the images
+        final Thread starter = new Thread(() -> {
+            try {
+                lostFiles.set(takeBatchAndDisconnect(port));
+                for (int i = 0; i < 2; i++) {
+                    final Thread worker = new Thread(() -> {
+                        try {
+                            workedFiles.addAndGet(new RemoteWorker(new ProcessingSettings().setScoreThreads(2)).run("localhost", port));
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                    worker.start();
+                    synchronized (workers) {
+                        workers.add(worker);
+                    }
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        starter.start();
+
+        PathsProcessor.coordinate(Collections.singletonList(images.getPath()), new ProcessingSettings(), serverSocket);
+        starter.join();
+        synchronized (workers) {
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+        }
+
+        assertTrue(lostFiles.get() > 0);
+        assertEquals(IMAGES, workedFiles.get());
+        final File[] renamed = images.listFiles((dir, name) -> name.endsWith(".png"));
+        assertEquals(IMAGES, renamed.length);
+        for (final File file : renamed) {
+            assertTrue(file.getName(), file.getName().matches("zebra\\d+ __0[.,]5000\\.png"));
+        }
+        // Renamed by the coordinator, through the journal
+        assertTrue(RenameJournal.exists(images));
+        assertTrue(serverSocket.isClosed());
+    }
+
+    @Test(timeout = 30000)
+    public void testWorkerLostWhileSendingAResult() throws Exception {
+        final File images = newImagesFolder();
+
+        final ServerSocket serverSocket = new ServerSocket(0, 50, null);
+        final int port = serverSocket.getLocalPort();
+        final AtomicInteger workedFiles = new AtomicInteger();
+        // The file whose result is cut short is handed out again to the second worker
+        final Thread starter = new Thread(() -> {
+            try {
+                takeBatchAndDisconnectWhileSending(port);
+                workedFiles.set(new RemoteWorker(new ProcessingSettings()).run("localhost", port));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        starter.start();
+
+        PathsProcessor.coordinate(Collections.singletonList(images.getPath()), new ProcessingSettings(), serverSocket);
+        starter.join();
+
+        assertEquals(IMAGES, workedFiles.get());
+        assertEquals(IMAGES, images.listFiles((dir, name) -> name.matches("zebra\\d+ __0[.,]5000\\.png")).length);
+    }
+
+    @Test(timeout = 30000)
+    public void testHungWorker() throws Exception {
+        final File images = newImagesFolder();
+
+        final ServerSocket serverSocket = new ServerSocket(0, 50, null);
+        final int port = serverSocket.getLocalPort();
+        final AtomicInteger workedFiles = new AtomicInteger();
+        // Takes a batch and never answers, keeping the connection open, like a worker hung or cut off by the network
+        final Socket hungSocket = new Socket("localhost", port);
+        final Thread starter = new Thread(() -> {
+            try {
+                final DataOutputStream out = new DataOutputStream(hungSocket.getOutputStream());
+                out.writeInt(RemoteCoordinator.MAGIC);
+                out.writeInt(RemoteCoordinator.VERSION);
+                out.writeInt(1);
+                out.flush();
+                final DataInputStream in = new DataInputStream(hungSocket.getInputStream());
+                new ProcessingSettings().readScoringSettings(in);
+                final int batchSize = in.readInt();
+                for (int i = 0; i < batchSize; i++) {
+                    in.readInt();
+                    in.readUTF();
+                }
+                workedFiles.set(new RemoteWorker(new ProcessingSettings()).run("localhost", port));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        starter.start();
+
+        try {
+            PathsProcessor.coordinate(Collections.singletonList(images.getPath()),
+                    new ProcessingSettings().setWorkerResultTimeoutMillis(500), serverSocket);
+            starter.join();
+        } finally {
+            hungSocket.close();
+        }
+
+        assertEquals(IMAGES, workedFiles.get());
+        assertEquals(IMAGES, images.listFiles((dir, name) -> name.matches("zebra\\d+ __0[.,]5000\\.png")).length);
+    }
+
+    @Test(timeout = 30000)
+    public void testSamePathFoundTwice() throws Exception {
+        final File images = newImagesFolder();
+        final File twice = new File(images, "zebra0.png");
+
+        final ServerSocket serverSocket = new ServerSocket(0, 50, null);
+        final int port = serverSocket.getLocalPort();
+        final AtomicInteger workedFiles = new AtomicInteger();
+        // Connects once all the files have been found, with threads enough to take all of them in a single batch
+        final Thread worker = new Thread(() -> {
+            try {
+                Thread.sleep(500);
+                workedFiles.set(new RemoteWorker(new ProcessingSettings().setScoreThreads(8)).run("localhost", port));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        worker.start();
+
+        PathsProcessor.coordinate(Arrays.asList(images.getPath(), twice.getPath()), new ProcessingSettings(), serverSocket);
+        worker.join();
+
+        assertEquals(IMAGES + 1, workedFiles.get());
+        assertEquals(IMAGES, images.listFiles((dir, name) -> name.matches("zebra\\d+ __0[.,]5000\\.png")).length);
+    }
+}
@@ -0,0 +1,134 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RenameJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RenameJournal.Rename renameWithScore(File file, double score) {
+        return new RenameJournal.Rename(file, FileRenamer.getScoredFile(file, score));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        final File directory = folder.getRoot();
+        final File a = folder.newFile("a.jpg");
+        final File b = folder.newFile("b\tc.jpg");
+        final File crashed = folder.newFile("crashed.jpg");
+        assertEquals(-1, RenameJournal.replay(directory, (file, cause) -> fail()));
+
+        // The rename of the last file is journaled but never done, as if the process died
+        final RenameJournal.Rename renameA = renameWithScore(a, 0.5);
+        final RenameJournal.Rename renameB = renameWithScore(b, 0.25);
+        RenameJournal.append(Arrays.asList(renameA, renameB, renameWithScore(crashed, 0.75)));
+        assertEquals(renameA.renamedFile, FileRenamer.renameAddingScore(a, 0.5));
+        assertEquals(renameB.renamedFile, FileRenamer.renameAddingScore(b, 0.25));
+        // Renamed again in a second run
+        final RenameJournal.Rename renameAgainA = renameWithScore(renameA.renamedFile, 0.125);
+        RenameJournal.append(Collections.singletonList(renameAgainA));
+        FileRenamer.renameAddingScore(renameA.renamedFile, 0.125);
+        assertTrue(RenameJournal.exists(directory));
+
+        assertEquals(2, RenameJournal.replay(directory, (file, cause) -> fail()));
+        assertTrue(a.exists());
+        assertTrue(b.exists());
+        assertTrue(crashed.exists());
+        assertFalse(renameA.renamedFile.exists());
+        assertFalse(renameAgainA.renamedFile.exists());
+        assertFalse(RenameJournal.exists(directory));
+    }
+
+    @Test
+    public void testCancelledAndFailedRenames() throws Exception {
+        final File directory = folder.getRoot();
+        final File a = folder.newFile("a.jpg");
+        final File b = folder.newFile("b.jpg");
+        final RenameJournal.Rename renameA = renameWithScore(a, 0.5);
+        final RenameJournal.Rename renameB = renameWithScore(b, 0.5);
+        // The name is already taken by another file, so the rename of a fails and is cancelled
+        assertTrue(renameA.renamedFile.createNewFile());
+        RenameJournal.append(Arrays.asList(renameA, renameB));
+        try {
+            FileRenamer.renameAddingScore(a, 0.5);
+            fail();
+        } catch (FileRenamer.CantRenameException e) {
+            RenameJournal.cancel(Collections.singletonList(renameA));
+        }
+        FileRenamer.renameAddingScore(b, 0.5);
+        // A new file took the original name of b
+        assertTrue(b.createNewFile());
+
+        final List<File> failedFiles = new ArrayList<>();
+        assertEquals(0, RenameJournal.replay(directory, (file, cause) -> failedFiles.add(file)));
+        assertEquals(Collections.singletonList(renameB.renamedFile), failedFiles);
+        assertTrue(renameA.renamedFile.exists());
+        assertTrue(renameB.renamedFile.exists());
+
+        // The failed rename is kept in the journal, and undone once the name is free
+        assertTrue(b.delete());
+        assertEquals(1, RenameJournal.replay(directory, (file, cause) -> fail()));
+        assertTrue(b.exists());
+        assertFalse(RenameJournal.exists(directory));
+    }
+
+    @Test
+    public void testRestoreFilenamesNotJournaled() throws Exception {
+        final File journaledDirectory = folder.newFolder("journaled");
+        final File journaled = new File(journaledDirectory, "journaled.jpg");
+        assertTrue(journaled.createNewFile());
+        final RenameJournal.Rename rename = renameWithScore(journaled, 0.5);
+        RenameJournal.append(Collections.singletonList(rename));
+        FileRenamer.renameAddingScore(journaled, 0.5);
+        // Renamed before the directory had a journal
+        final File unrelated = new File(journaledDirectory, "unrelated __0.1000.jpg");
+        assertTrue(unrelated.createNewFile());
+        // Renamed without a journal, e.g. by an older version
+        final File legacyDirectory = folder.newFolder("legacy");
+        final File notJournaled = new File(legacyDirectory, "not journaled.jpg");
+        assertTrue(notJournaled.createNewFile());
+        final File scored = FileRenamer.renameAddingScore(notJournaled, 0.25);
+
+        PathsProcessor.restoreFilenames(Arrays.asList(journaledDirectory.getPath(), legacyDirectory.getPath()), new ProcessingSettings());
+        assertTrue(journaled.exists());
+        assertFalse(rename.renamedFile.exists());
+        assertFalse(RenameJournal.exists(journaledDirectory));
+        assertFalse(unrelated.exists());
+        assertTrue(new File(journaledDirectory, "unrelated.jpg").exists());
+        assertTrue(notJournaled.exists());
+        assertFalse(scored.exists());
+    }
+
+    @Test
+    public void testAppendAfterTruncatedLine() throws Exception {
+        final File directory = folder.getRoot();
+        final File a = folder.newFile("a.jpg");
+        final File b = folder.newFile("b.jpg");
+        RenameJournal.append(Collections.singletonList(renameWithScore(a, 0.5)));
+        FileRenamer.renameAddingScore(a, 0.5);
+        // Simulate a line truncated by a crash
+        Files.write(new File(directory, RenameJournal.JOURNAL_FILENAME).toPath(), "crashed.jpg\tcra".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        // The next run appends a line after the truncated one, that must not be joined to it
+        RenameJournal.append(Collections.singletonList(renameWithScore(b, 0.25)));
+        FileRenamer.renameAddingScore(b, 0.25);
+        assertEquals(2, RenameJournal.replay(directory, (file, cause) -> fail()));
+        assertTrue(a.exists());
+        assertTrue(b.exists());
+    }
+}
@@ -0,0 +1,90 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResultsWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<String> processWithOutput(String outputFilename) throws Exception {
+        return processWithOutput(outputFilename, new ProcessingSettings());
+    }
+
+    private List<String> processWithOutput(String outputFilename, ProcessingSettings settings) throws Exception {
+        final File images = folder.newFolder();
+        ImageIO.write(TestImages.newTestImage(TestImages::verticalZebraPixelGenerator), "png", new File(images, "zebra, striped.png"));
+        Files.write(new File(images, "broken.jpg").toPath(), "not an image".getBytes(StandardCharsets.UTF_8));
+        final File output = new File(folder.getRoot(), outputFilename);
+
+        settings.setRenameFiles(false)
+                .setOutput(output, ResultsWriter.Format.forFile(output));
+        PathsProcessor.process(Collections.singletonList(images.getPath()), settings);
+
+        // Files must be untouched
+        assertTrue(new File(images, "zebra, striped.png").isFile());
+        final List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+        Collections.sort(lines);
+        return lines;
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        final List<String> lines = processWithOutput("results.csv");
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).matches("\".*zebra, striped\\.png\",0\\.500000,contrast,\\d+,\\d+,[0-9.]+,[0-9.]+,[0-9.]+,succeeded"));
+        assertTrue(lines.get(1).matches(".*broken\\.jpg,,,,,,[0-9.]+,0\\.000,skipped"));
+        assertEquals("path,score,metric,width,height,coverage,decode_ms,score_ms,status", lines.get(2));
+    }
+
+    @Test
+    public void testJsonLines() throws Exception {
+        final List<String> lines = processWithOutput("results.jsonl");
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).matches("\\{\"path\":\".*broken\\.jpg\",\"score\":null,\"metric\":null,\"width\":null,\"height\":null,\"coverage\":null,.*\"status\":\"skipped\"}"));
+        assertTrue(lines.get(1).matches("\\{\"path\":\".*zebra, striped\\.png\",\"score\":0\\.500000,\"metric\":\"contrast\",\"width\":\\d+,.*\"status\":\"succeeded\"}"));
+    }
+
+    @Test
+    public void testMoreMetrics() throws Exception {
+        final ProcessingSettings settings = new ProcessingSettings()
+                .setMetrics(Arrays.asList(SharpnessMetric.NORMALIZED_CONTRAST, SharpnessMetric.CONTRAST));
+        List<String> lines = processWithOutput("results.csv", settings);
+        assertEquals("path,score,metric,width,height,coverage,decode_ms,score_ms,status,contrast", lines.get(2));
+        assertTrue(lines.get(0).matches("\".*zebra, striped\\.png\",1\\.000000,normalized-contrast,.*,succeeded,0\\.500000"));
+        lines = processWithOutput("results.jsonl", settings);
+        assertTrue(lines.get(1).matches("\\{.*\"score\":1\\.000000,\"metric\":\"normalized-contrast\",.*\"scores\":\\{\"contrast\":0\\.500000}}"));
+    }
+
+    @Test
+    public void testNonFiniteScoreAndCarriageReturn() throws Exception {
+        final File images = folder.newFolder();
+        // A single pixel has no neighbours, so its contrast is 0 / 0
+        ImageIO.write(new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR), "png", new File(images, "pixel\r.png"));
+        final ProcessingSettings settings = new ProcessingSettings().setRenameFiles(false);
+
+        final File csv = new File(folder.getRoot(), "results.csv");
+        PathsProcessor.process(Collections.singletonList(images.getPath()), settings.setOutput(csv, ResultsWriter.Format.CSV));
+        final String csvRecord = new String(Files.readAllBytes(csv.toPath()), StandardCharsets.UTF_8).split("\n")[1];
+        assertTrue(csvRecord, csvRecord.matches("\".*pixel\r\\.png\",,contrast,1,1,.*,succeeded"));
+
+        final File jsonl = new File(folder.getRoot(), "results.jsonl");
+        PathsProcessor.process(Collections.singletonList(images.getPath()), settings.setOutput(jsonl, ResultsWriter.Format.JSONL));
+        final List<String> lines = Files.readAllLines(jsonl.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).matches("\\{\"path\":\".*pixel\\\\u000d\\.png\",\"score\":null,\"metric\":\"contrast\",.*\"status\":\"succeeded\"}"));
+    }
+}
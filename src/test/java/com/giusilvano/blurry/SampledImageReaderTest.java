@@ -0,0 +1,65 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class SampledImageReaderTest {
+
+    private final static float SAMPLE_COVERAGE = 0.1f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes the image in the given format, then checks that the score of the sampled decoding is exactly the same
+     * of the score of the full decoding.
+     */
+    private void assertSameScoreOfFullDecoding(BufferedImage img, String format) throws Exception {
+        final File file = File.createTempFile("test", "." + format, folder.getRoot());
+        ImageIO.write(img, format, file);
+
+        final double fullScore = ImageContrastEvaluation.getImageContrastScore(ImageIO.read(file), SAMPLE_COVERAGE);
+        final SampledImage sampledImage = SampledImageReader.read(file, SAMPLE_COVERAGE);
+        assertNotNull(sampledImage);
+        assertEquals(fullScore, ImageContrastEvaluation.getImageContrastScore(sampledImage), 0);
+
+        // The same when the file has been read in memory
+        final SampledImage contentImage = SampledImageReader.read(Files.readAllBytes(file.toPath()),
+                StripeGrid.coverage(SAMPLE_COVERAGE), RasterMemoryBudget.unlimited(), RasterPool.disabled());
+        assertNotNull(contentImage);
+        assertEquals(fullScore, ImageContrastEvaluation.getImageContrastScore(contentImage), 0);
+    }
+
+    @Test
+    public void testSameScoreOfFullDecoding() throws Exception {
+        // Lossy compression blurs the patterns a bit, but the sampled decoding must see the same pixels anyway
+        assertSameScoreOfFullDecoding(TestImages.newTestImage(TestImages::chessboardPixelGenerator), "jpg");
+        assertSameScoreOfFullDecoding(TestImages.newTestImage(TestImages::verticalZebraPixelGenerator), "jpg");
+        assertSameScoreOfFullDecoding(TestImages.newTestImage(TestImages::chessboardPixelGenerator), "png");
+        assertSameScoreOfFullDecoding(TestImages.newTestImage(TestImages::horizontalZebraPixelGenerator), "bmp");
+    }
+
+    @Test
+    public void testSampledDecodingKeepsOnlyTheGrid() throws Exception {
+        final File file = folder.newFile("test.jpg");
+        ImageIO.write(TestImages.newTestImage(TestImages::chessboardPixelGenerator), "jpg", file);
+
+        final SampledImage sampledImage = SampledImageReader.read(file, SAMPLE_COVERAGE);
+        // A 50x50 image with 10% coverage has 5 rows and 5 columns of 50 pixels, 3 bytes each
+        assertEquals(2 * 5 * 50 * 3, sampledImage.getRasterBytes());
+    }
+
+    @Test
+    public void testNotAnImage() throws Exception {
+        final File file = folder.newFile("test.txt");
+        assertNull(SampledImageReader.read(file, SAMPLE_COVERAGE));
+    }
+}
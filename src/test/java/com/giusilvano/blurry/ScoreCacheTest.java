@@ -0,0 +1,148 @@
+package com.giusilvano.blurry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class ScoreCacheTest {
+
+    private final static float SAMPLE_COVERAGE = 0.01f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File newFile(String name, String content) throws Exception {
+        final File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void testReusedInNextRun() throws Exception {
+        final File file = newFile("a b.jpg", "content");
+        ScoreCache cache = new ScoreCache(false);
+        assertNull(cache.get(file, cache.getKey(file, SAMPLE_COVERAGE)));
+        cache.put(file, cache.getKey(file, SAMPLE_COVERAGE), 0.25);
+
+        // A new cache, as in the next run, must load the score from disk
+        cache = new ScoreCache(false);
+        assertEquals(0.25, cache.get(file, cache.getKey(file, SAMPLE_COVERAGE)), 0);
+        // With a different sample coverage the score must be computed again
+        assertNull(cache.get(file, cache.getKey(file, 0.5f)));
+    }
+
+    @Test
+    public void testChangedFile() throws Exception {
+        final File file = newFile("a.jpg", "content");
+        final ScoreCache cache = new ScoreCache(false);
+        cache.put(file, cache.getKey(file, SAMPLE_COVERAGE), 0.25);
+
+        Files.write(file.toPath(), "longer content".getBytes(StandardCharsets.UTF_8));
+        assertNull(new ScoreCache(false).get(file, cache.getKey(file, SAMPLE_COVERAGE)));
+    }
+
+    @Test
+    public void testContentHash() throws Exception {
+        final File file = newFile("a.jpg", "content");
+        final long lastModified = file.lastModified();
+        ScoreCache cache = new ScoreCache(true);
+        cache.put(file, cache.getKey(file, SAMPLE_COVERAGE), 0.25);
+
+        // Same size and last modified time, but different bytes
+        Files.write(file.toPath(), "CONTENT".getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(lastModified));
+        assertNull(new ScoreCache(false).get(file, new ScoreCache(true).getKey(file, SAMPLE_COVERAGE)));
+        cache = new ScoreCache(false);
+        assertNull(cache.get(file, cache.getKey(file, SAMPLE_COVERAGE)));
+    }
+
+    @Test
+    public void testLastLineWinsAndCorruptedLinesIgnored() throws Exception {
+        final File file = newFile("a.jpg", "content");
+        final ScoreCache cache = new ScoreCache(false);
+        final ScoreCache.Key key = cache.getKey(file, SAMPLE_COVERAGE);
+        for (int i = 1; i <= 5; i++) {
+            cache.put(file, key, i / 10d);
+        }
+        // Simulate a line truncated by a crash
+        final File indexFile = new File(folder.getRoot(), ScoreCache.INDEX_FILENAME);
+        Files.write(indexFile.toPath(), "7\t12".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        assertEquals(0.5, new ScoreCache(false).get(file, key), 0);
+        // Loading compacted the index, that now has only the last line
+        assertEquals(1, Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8).size());
+        assertEquals(0.5, new ScoreCache(false).get(file, key), 0);
+    }
+
+    @Test
+    public void testAppendAfterTruncatedLine() throws Exception {
+        final File a = newFile("a.jpg", "a");
+        final File b = newFile("b.jpg", "b");
+        ScoreCache cache = new ScoreCache(false);
+        cache.put(a, cache.getKey(a, SAMPLE_COVERAGE), 0.25);
+        // Simulate a line truncated by a crash
+        final File indexFile = new File(folder.getRoot(), ScoreCache.INDEX_FILENAME);
+        Files.write(indexFile.toPath(), "7\t12".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        // The next run appends a line after the truncated one, that must not be joined to it
+        cache = new ScoreCache(false);
+        cache.put(b, cache.getKey(b, SAMPLE_COVERAGE), 0.5);
+        cache = new ScoreCache(false);
+        assertEquals(0.25, cache.get(a, cache.getKey(a, SAMPLE_COVERAGE)), 0);
+        assertEquals(0.5, cache.get(b, cache.getKey(b, SAMPLE_COVERAGE)), 0);
+    }
+
+    @Test
+    public void testEscapedFilename() throws Exception {
+        final File file = newFile("a\nb\\c\td.jpg", "content");
+        final File other = newFile("b.jpg", "content");
+        final ScoreCache cache = new ScoreCache(false);
+        cache.put(file, cache.getKey(file, SAMPLE_COVERAGE), 0.25);
+        cache.put(other, cache.getKey(other, SAMPLE_COVERAGE), 0.5);
+
+        final ScoreCache nextCache = new ScoreCache(false);
+        assertEquals(0.25, nextCache.get(file, nextCache.getKey(file, SAMPLE_COVERAGE)), 0);
+        assertEquals(0.5, nextCache.get(other, nextCache.getKey(other, SAMPLE_COVERAGE)), 0);
+    }
+
+    @Test
+    public void testConcurrentAppends() throws Exception {
+        final int threads = 4;
+        final int filesPerThread = 200;
+        final Thread[] appenders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            // A cache each, like indexes of the same directory loaded twice
+            final ScoreCache cache = new ScoreCache(false);
+            appenders[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < filesPerThread; i++) {
+                        final File file = newFile(thread + "-" + i + ".jpg", "content");
+                        cache.put(file, cache.getKey(file, SAMPLE_COVERAGE), 0.25);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            appenders[t].start();
+        }
+        for (final Thread appender : appenders) {
+            appender.join();
+        }
+
+        final ScoreCache cache = new ScoreCache(false);
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < filesPerThread; i++) {
+                final File file = new File(folder.getRoot(), t + "-" + i + ".jpg");
+                assertEquals(file.getName(), 0.25, cache.get(file, cache.getKey(file, SAMPLE_COVERAGE)), 0);
+            }
+        }
+    }
+}
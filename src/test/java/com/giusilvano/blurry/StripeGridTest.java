@@ -0,0 +1,34 @@
+package com.giusilvano.blurry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StripeGridTest {
+
+    private static long getSampledPixels(StripeGrid grid) {
+        return (long) grid.horizontalStripesCount * grid.width + (long) grid.verticalStripesCount * grid.height;
+    }
+
+    @Test
+    public void testForSampledPixels() {
+        // The same pixels are scanned whatever the resolution
+        for (final int[] size : new int[][]{{8000, 6000}, {4000, 3000}, {1920, 1080}}) {
+            final StripeGrid grid = StripeGrid.forSampledPixels(size[0], size[1], 200000);
+            // Give or take half a row and half a column each
+            assertEquals(200000, getSampledPixels(grid), (size[0] + size[1]) / 2);
+            assertEquals(200000d / (2d * size[0] * size[1]), grid.getCoverage(), 0.001);
+        }
+
+        // A small image is scanned entirely
+        final StripeGrid small = StripeGrid.forSampledPixels(200, 100, 200000);
+        assertEquals(100, small.horizontalStripesCount);
+        assertEquals(200, small.verticalStripesCount);
+        assertEquals(1, small.getCoverage(), 0);
+
+        // At least a row and a column
+        final StripeGrid tiny = StripeGrid.forSampledPixels(8000, 6000, 1);
+        assertEquals(1, tiny.horizontalStripesCount);
+        assertEquals(1, tiny.verticalStripesCount);
+    }
+}
@@ -1,19 +1,26 @@
 package com.giusilvano.blurry;
 
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
 
 public class TestImages {
     private final static int TEST_IMAGES_WIDTH = 50;
     private final static int TEST_IMAGES_HEIGHT = 50;
-    private final static int BLACK_PIXEL = 0;
-    private final static int WHITE_PIXEL = (255 << 16) | (255 << 8) | 255;
+    // Pixels are opaque, so they look the same also in image types with (premultiplied) alpha
+    private final static int BLACK_PIXEL = 255 << 24;
+    private final static int WHITE_PIXEL = (255 << 24) | (255 << 16) | (255 << 8) | 255;
 
     /**
      * Abstracts the method to generate pixels procedurally.
      */
     public interface PixelGenerator {
         /**
-         * Returns the color (3-byte BGR) of the pixel at the x and y coordinates.
+         * Returns the color (ARGB) of the pixel at the x and y coordinates.
          */
         public int generatePixel(int x, int y);
     }
@@ -23,7 +30,27 @@ public class TestImages {
      * You can use the generators already provided by this class.
      */
     public static BufferedImage newTestImage(PixelGenerator pixelGenerator) {
-        final BufferedImage img = new BufferedImage(TEST_IMAGES_WIDTH, TEST_IMAGES_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        return newTestImage(pixelGenerator, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    /**
+     * Like {@link #newTestImage(PixelGenerator)}, but with the given BufferedImage type.
+     */
+    public static BufferedImage newTestImage(PixelGenerator pixelGenerator, int imageType) {
+        return fill(new BufferedImage(TEST_IMAGES_WIDTH, TEST_IMAGES_HEIGHT, imageType), pixelGenerator);
+    }
+
+    /**
+     * Like {@link #newTestImage(PixelGenerator)}, but with 16 bits per RGB sample (like a 48-bit PNG).
+     */
+    public static BufferedImage newTest16BitRgbImage(PixelGenerator pixelGenerator) {
+        final ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false,
+                Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+        final WritableRaster raster = colorModel.createCompatibleWritableRaster(TEST_IMAGES_WIDTH, TEST_IMAGES_HEIGHT);
+        return fill(new BufferedImage(colorModel, raster, false, null), pixelGenerator);
+    }
+
+    private static BufferedImage fill(BufferedImage img, PixelGenerator pixelGenerator) {
         for (int x = 0; x < TEST_IMAGES_WIDTH; x++) {
             for (int y = 0; y < TEST_IMAGES_HEIGHT; y++) {
                 img.setRGB(x, y, pixelGenerator.generatePixel(x, y));